@@ -25,6 +25,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -32,55 +33,72 @@ import java.util.Map;
  * Abstract implementations of a {@link FreedesktopService} that provides
  * methods for maintaining the list of base directories (common to all
  * specifications).
+ * <p>
+ * Lookups may be made from any number of threads without locking. Adding or
+ * removing a base is serialized, and builds a new immutable snapshot of the
+ * bases, their entities and any index subclasses build from them, that is
+ * published in one step once it is complete, so readers either see the state
+ * before the change or after it, never part way through.
  */
 public abstract class AbstractFreedesktopService<T extends FreedesktopEntity> implements FreedesktopService<T> {
 	// Private instance variables
-	protected Map<Path, Collection<T>> bases = new HashMap<Path, Collection<T>>();
-	protected List<Path> basesList = new ArrayList<Path>();
+	private volatile Snapshot<T> snapshot = new Snapshot<T>(Collections.<Path, Collection<T>>emptyMap(),
+			Collections.<T>emptyList(), Collections.<String, T>emptyMap(), null, false, 0);
 
-	public void addBase(Path base) throws IOException {
-		if (!basesList.contains(base)) {
-			bases.put(base, scanBase(base));
-			basesList.add(base);
+	/**
+	 * The entities of every base, replaced by a read only view each time the
+	 * bases change.
+	 * 
+	 * @deprecated use {@link #getBaseEntities()}, changing this map has no
+	 *             effect
+	 */
+	@Deprecated
+	protected volatile Map<Path, Collection<T>> bases = snapshot.bases;
+
+	/**
+	 * The bases in the order they were added, replaced by a read only view
+	 * each time the bases change.
+	 * 
+	 * @deprecated use {@link #getBases()}, changing this list has no effect
+	 */
+	@Deprecated
+	protected volatile List<Path> basesList = snapshot.basesList;
+
+	public synchronized void addBase(Path base) throws IOException {
+		if (!snapshot.bases.containsKey(base)) {
+			Collection<T> entities = scanBase(base);
+			Map<Path, Collection<T>> newBases = new LinkedHashMap<Path, Collection<T>>(snapshot.bases);
+			newBases.put(base, Collections.unmodifiableCollection(entities));
+			publish(newBases);
 		}
 	}
 
-	public void removeBase(Path base) {
-		bases.remove(base);
-		basesList.remove(base);
+	public synchronized void removeBase(Path base) {
+		if (snapshot.bases.containsKey(base)) {
+			Map<Path, Collection<T>> newBases = new LinkedHashMap<Path, Collection<T>>(snapshot.bases);
+			newBases.remove(base);
+			publish(newBases);
+		}
 	}
 
 	public Collection<T> getEntities(Path base) {
-		return bases.get(base);
+		return snapshot.bases.get(base);
 	}
 
 	public Collection<T> getAllEntities() {
-		List<T> all = new ArrayList<T>();
-		for (Path base : getBasesInReverse()) {
-			all.addAll(getEntities(base));
-		}
-		return all;
+		return snapshot.allEntities;
 	}
 
 	public T getEntity(String name) {
-		for (Path base : bases.keySet()) {
-			for (T theme : bases.get(base)) {
-				if (theme.getInternalName().equals(name)) {
-					return theme;
-				}
-			}
-		}
-		return null;
+		return snapshot.entitiesByName.get(name);
 	}
 
 	public Collection<Path> getBases() {
-		return basesList;
+		return snapshot.basesList;
 	}
 
 	public Collection<Path> getBasesInReverse() {
-		List<Path> reverseBases = new ArrayList<Path>(basesList);
-		Collections.reverse(reverseBases);
-		return reverseBases;
+		return snapshot.basesInReverse;
 	}
 
 	public void checkAndAddBase(Path file) throws IOException, ParseException {
@@ -95,6 +113,50 @@ public abstract class AbstractFreedesktopService<T extends FreedesktopEntity> im
 		}
 	}
 
+	/**
+	 * Get a number that changes every time a base is added or removed, or the
+	 * index is otherwise rebuilt, so that anything worked out from the
+	 * entities of this service can tell when it is out of date.
+	 * 
+	 * @return generation
+	 */
+	public long getGeneration() {
+		return snapshot.generation;
+	}
+
+	/**
+	 * Get the entities of every base, keyed by base in the order they were
+	 * added. The map is from the same snapshot throughout, unlike separate
+	 * calls to {@link #getBases()} and {@link #getEntities(Path)}.
+	 * 
+	 * @return entities by base
+	 */
+	protected Map<Path, Collection<T>> getBaseEntities() {
+		return snapshot.bases;
+	}
+
+	/**
+	 * Get the index that {@link #createIndex(List)} built for the current
+	 * bases.
+	 * 
+	 * @param <I> type of index
+	 * @return index
+	 */
+	@SuppressWarnings("unchecked")
+	protected <I> I getIndex() {
+		Snapshot<T> snapshot = this.snapshot;
+		if (!snapshot.indexed) {
+			// The first snapshot is made before subclasses are constructed
+			synchronized (this) {
+				if (!this.snapshot.indexed) {
+					this.snapshot = snapshot(this.snapshot.bases, this.snapshot.generation);
+				}
+				snapshot = this.snapshot;
+			}
+		}
+		return (I) snapshot.index;
+	}
+
 	protected Path[] listDirs(Path dir) throws IOException {
 		List<Path> l = new ArrayList<>();
 		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, new DirectorySelector())) {
@@ -107,6 +169,84 @@ public abstract class AbstractFreedesktopService<T extends FreedesktopEntity> im
 
 	protected abstract Collection<T> scanBase(Path base) throws IOException;
 
+	/**
+	 * Build an index of the entities of some bases. Subclasses that keep
+	 * indexes merged from all bases should build them here, so that lookups
+	 * do not need to visit each base in turn. The index is published in the
+	 * same snapshot as the bases it was built from, so readers never see one
+	 * without the other. This is called while holding the lock on this
+	 * service, and the index must not be changed once it is returned.
+	 * 
+	 * @param bases bases in the order they were added
+	 * @return index
+	 */
+	protected Object createIndex(List<Path> bases) {
+		return null;
+	}
+
+	/**
+	 * Rebuild the index from the same bases, when something else it is built
+	 * from has changed.
+	 */
+	protected synchronized void indexChanged() {
+		publish(snapshot.bases);
+	}
+
+	private void publish(Map<Path, Collection<T>> newBases) {
+		Snapshot<T> newSnapshot = snapshot(newBases, snapshot.generation + 1);
+		snapshot = newSnapshot;
+		bases = newSnapshot.bases;
+		basesList = newSnapshot.basesList;
+	}
+
+	private Snapshot<T> snapshot(Map<Path, Collection<T>> newBases, long generation) {
+		List<T> all = new ArrayList<T>();
+		Map<String, T> byName = new HashMap<String, T>();
+		List<Path> reverseBases = new ArrayList<Path>(newBases.keySet());
+		Collections.reverse(reverseBases);
+		for (Path base : reverseBases) {
+			for (T entity : newBases.get(base)) {
+				all.add(entity);
+				// Overriding bases come first, so keep the first found
+				if (!byName.containsKey(entity.getInternalName())) {
+					byName.put(entity.getInternalName(), entity);
+				}
+			}
+		}
+		Object index = createIndex(Collections.unmodifiableList(new ArrayList<Path>(newBases.keySet())));
+		return new Snapshot<T>(Collections.unmodifiableMap(newBases), Collections.unmodifiableList(all), byName,
+				index, true, generation);
+	}
+
+	/**
+	 * Everything derived from the bases, published in one step.
+	 */
+	private final static class Snapshot<T> {
+		private final Map<Path, Collection<T>> bases;
+		private final List<Path> basesList;
+		private final List<Path> basesInReverse;
+		private final Collection<T> allEntities;
+		private final Map<String, T> entitiesByName;
+		private final Object index;
+		private final boolean indexed;
+		private final long generation;
+
+		Snapshot(Map<Path, Collection<T>> bases, Collection<T> allEntities, Map<String, T> entitiesByName,
+				Object index, boolean indexed, long generation) {
+			this.bases = bases;
+			this.allEntities = allEntities;
+			this.entitiesByName = entitiesByName;
+			this.index = index;
+			this.indexed = indexed;
+			this.generation = generation;
+			List<Path> list = new ArrayList<Path>(bases.keySet());
+			basesList = Collections.unmodifiableList(list);
+			List<Path> reverse = new ArrayList<Path>(list);
+			Collections.reverse(reverse);
+			basesInReverse = Collections.unmodifiableList(reverse);
+		}
+	}
+
 	class DirectorySelector implements DirectoryStream.Filter<Path> {
 		@Override
 		public boolean accept(Path entry) throws IOException {
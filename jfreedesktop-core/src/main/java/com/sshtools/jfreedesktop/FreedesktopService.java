@@ -52,7 +52,8 @@ public interface FreedesktopService<T extends FreedesktopEntity> {
 
     /**
      * Get a entities given its name. If the entities exists in more than one base
-     * directory, the first base that the named theme is found in is returned.
+     * directory, the first base that the named theme is found in is returned,
+     * searching in the same order as {@link #getAllEntities()}.
      * 
      * @param name internal name of entities
      * @return icon theme
@@ -40,10 +40,6 @@ public class DefaultCursorService extends AbstractThemeService<CursorTheme> impl
 		return null;
 	}
 
-	public Collection<CursorTheme> getEntities(Path base) {
-		return bases.get(base);
-	}
-
 	protected Collection<CursorTheme> scanBase(Path base) throws IOException {
 		List<CursorTheme> themes = new ArrayList<CursorTheme>();
 		for (Path dir : listDirs(base)) {
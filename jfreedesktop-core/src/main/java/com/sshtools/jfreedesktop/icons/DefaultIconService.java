@@ -23,13 +23,13 @@ import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import com.sshtools.jfreedesktop.themes.AbstractThemeService;
 import com.sshtools.jfreedesktop.util.Log;
@@ -40,7 +40,7 @@ import com.sshtools.jfreedesktop.util.Log;
  * <p>
  * Icon locations are also cached in memory, keyed on
  * [iconName]_[preferredSize]. Use {@link #clearCache()} to remove all cached
- * locations.
+ * locations. The cache is safe to use from many threads at once.
  */
 public class DefaultIconService extends AbstractThemeService<IconTheme> implements IconService {
 
@@ -50,12 +50,12 @@ public class DefaultIconService extends AbstractThemeService<IconTheme> implemen
 	public final static String[] SUPPORTED_EXTENSIONS = { "png", "svg", "gif", "xpm" };
 
 	// Private instance variables
-	private Map<String, Path> cache = new HashMap<String, Path>();
+	private Map<String, Path> cache = new ConcurrentHashMap<String, Path>();
 
-	private boolean returnMissingImage = true;
-	private Map<String, String> existing = new TreeMap<String, String>();
-	protected String defaultThemeName = null;
-	private Set<String> globalFallbackThemes = new HashSet<>();
+	private volatile boolean returnMissingImage = true;
+	private Map<String, String> existing = new ConcurrentSkipListMap<String, String>();
+	protected volatile String defaultThemeName = null;
+	private Set<String> globalFallbackThemes = new CopyOnWriteArraySet<>();
 
 	public DefaultIconService() throws IOException, ParseException {
 		super();
@@ -95,6 +95,8 @@ public class DefaultIconService extends AbstractThemeService<IconTheme> implemen
 			}
 		}
 		
+		Map<Path, Collection<IconTheme>> bases = getBaseEntities();
+
 		/* Prefer to find jfreedesktop-tango */
 		for(Path base : bases.keySet()) {
 			String basename = base.toString();
@@ -141,8 +143,9 @@ public class DefaultIconService extends AbstractThemeService<IconTheme> implemen
 	public Path findIcon(String name, int size) throws IOException {
 		String key = name + "_" + size;
 		Path file = null;
-		if (cache.containsKey(key)) {
-			return cache.get(key);
+		file = cache.get(key);
+		if (file != null) {
+			return file;
 		}
 
 		// if(!existing.containsKey(name)) {
@@ -303,7 +306,7 @@ public class DefaultIconService extends AbstractThemeService<IconTheme> implemen
 			}
 		}
 		
-		for (Path base : bases.keySet()) {
+		for (Path base : getBases()) {
 			for (String extension : SUPPORTED_EXTENSIONS) {
 				Path f = base.resolve(iconname + "." + extension);
 				if (Files.exists(f)) {
@@ -0,0 +1,82 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounds the file system work done by the tasks of a fork/join pool. Work
+ * waits for a permit and then runs inside a
+ * {@link ForkJoinPool.ManagedBlocker}, so while a worker waits on the file
+ * system the pool may start another thread to keep its parallelism. Waiting
+ * for a permit is not managed, as any thread started then would only take
+ * more work and wait for a permit too, so at most one extra thread is started
+ * for each permit. Outside a pool the work simply runs in the calling thread.
+ */
+final class BoundedIO {
+
+	/**
+	 * Work that blocks on the file system.
+	 */
+	interface Action {
+		void run() throws IOException;
+	}
+
+	private BoundedIO() {
+	}
+
+	/**
+	 * Run some work once a permit is available.
+	 *
+	 * @param permits permits
+	 * @param action work
+	 * @throws IOException if the work fails
+	 * @throws InterruptedException if interrupted waiting for a permit
+	 */
+	static void run(final Semaphore permits, final Action action) throws IOException, InterruptedException {
+		permits.acquire();
+		try {
+			final IOException[] failure = new IOException[1];
+			ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+				private boolean done;
+
+				public boolean block() {
+					if (!done) {
+						try {
+							action.run();
+						} catch (IOException ioe) {
+							failure[0] = ioe;
+						} finally {
+							done = true;
+						}
+					}
+					return true;
+				}
+
+				public boolean isReleasable() {
+					return done;
+				}
+			});
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+		} finally {
+			permits.release();
+		}
+	}
+}
@@ -43,6 +43,12 @@ public class BuiltInMIMEService extends DefaultMIMEService {
 	}
 
 	public static void addJarMimeSet(AbstractFreedesktopService<?> srv, String set) throws IOException, ParseException {
+		// Prefer the snapshot written by the build, it is read once per JVM
+		Path snapshot = MimeSnapshot.loadBuiltIn(srv.getClass().getClassLoader(), set);
+		if (snapshot != null) {
+			srv.addBase(snapshot);
+			return;
+		}
 		URL loc = srv.getClass().getClassLoader().getResource(set + "/types");
 		Path obj = null;
 		if (loc != null) {
@@ -52,27 +58,27 @@ public class BuiltInMIMEService extends DefaultMIMEService {
 			}
 		}
 		if (obj != null) {
-			try {
-				URI uri = obj.toUri();
-				String uriStr = uri.toString();
-				int idx = uriStr.lastIndexOf('!');
-				if (idx != -1) {
-					uriStr = uriStr.substring(idx + 1);
-					if (uriStr.endsWith("/types"))
-						uriStr = uriStr.substring(0, uriStr.length() - 6);
-				} else
-					uriStr = null;
-				if (uri.getScheme().equals("jar")) {
-					for (Path r : obj.getFileSystem().getRootDirectories()) {
-						if (uriStr != null)
-							r = r.resolve(uriStr);
-						srv.checkAndAddBase(r);
-					}
-				} else if (uri.getScheme().equals("file")) {
-					srv.checkAndAddBase(obj.getParent());
+			/*
+			 * The jar file system is left open, as the XML of each type is read
+			 * from it when first needed. It is shared by all built-in services
+			 */
+			URI uri = obj.toUri();
+			String uriStr = uri.toString();
+			int idx = uriStr.lastIndexOf('!');
+			if (idx != -1) {
+				uriStr = uriStr.substring(idx + 1);
+				if (uriStr.endsWith("/types"))
+					uriStr = uriStr.substring(0, uriStr.length() - 6);
+			} else
+				uriStr = null;
+			if (uri.getScheme().equals("jar")) {
+				for (Path r : obj.getFileSystem().getRootDirectories()) {
+					if (uriStr != null)
+						r = r.resolve(uriStr);
+					srv.checkAndAddBase(r);
 				}
-			} finally {
-				obj.getFileSystem().close();
+			} else if (uri.getScheme().equals("file")) {
+				srv.checkAndAddBase(obj.getParent());
 			}
 		}
 	}
@@ -0,0 +1,521 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sshtools.jfreedesktop.AbstractFreedesktopService;
+import com.sshtools.jfreedesktop.mime.Classification.Stage;
+import com.sshtools.jfreedesktop.util.Log;
+
+/**
+ * A {@link MIMEService} that remembers the types detected for files, for
+ * applications that classify the same files over and over again, such as
+ * when refreshing a listing. Everything else is passed on to the service it
+ * wraps.
+ * <p>
+ * A result is reused for as long as the file has the same path, file key
+ * (the inode, where the file system has one), size and modification time,
+ * all of which come from a single read of its attributes. Only the least
+ * recently used results are kept once the cache is full. Every result is
+ * dropped when a base is added to or removed from the wrapped service, or
+ * from the services it uses, if it is an {@link AbstractFreedesktopService}.
+ * Otherwise {@link #invalidate()} should be called when the bases change.
+ * <p>
+ * Only the types of regular files are cached. Directories, whose type may
+ * depend on what they contain, failures, and files that cannot have their
+ * attributes read are passed straight to the wrapped service.
+ * <p>
+ * Results may also be kept in a store file, so that files do not have to be
+ * read again after a restart. Only the types of regular files on the default
+ * file system that were decided by reading their content are stored, keyed
+ * by device, inode, file name, size and modification time (or by path, where
+ * the file system has no inodes). The store is tagged with a hash of the
+ * loaded database, and is emptied when that changes, such as when a newer
+ * database is installed. It should be {@link #close() closed} when done
+ * with.
+ */
+public class CachingMIMEService implements MIMEService, Closeable {
+	private final static boolean UNIX = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+
+	private final MIMEService delegate;
+	private final Map<Key, Classification> cache;
+	private final MimeResultStore store;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong storeHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private long generation;
+	private volatile long storeGeneration = -1;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param delegate service that detects types
+	 * @param maximumSize maximum number of results to keep
+	 */
+	public CachingMIMEService(MIMEService delegate, int maximumSize) {
+		this(delegate, maximumSize, (MimeResultStore) null);
+	}
+
+	/**
+	 * Constructor for a cache that also keeps results in a store file, which
+	 * is created if it does not exist.
+	 * 
+	 * @param delegate service that detects types
+	 * @param maximumSize maximum number of results to keep in memory
+	 * @param store store file
+	 * @throws IOException if the store cannot be opened, or is in use by
+	 *             another process
+	 */
+	public CachingMIMEService(MIMEService delegate, int maximumSize, Path store) throws IOException {
+		this(delegate, maximumSize, MimeResultStore.open(store));
+	}
+
+	private CachingMIMEService(MIMEService delegate, final int maximumSize, MimeResultStore store) {
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("Maximum size must be at least 1.");
+		}
+		this.delegate = delegate;
+		this.store = store;
+		this.generation = generationOf(delegate);
+		cache = new LinkedHashMap<Key, Classification>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Classification> eldest) {
+				return size() > maximumSize;
+			}
+		};
+	}
+
+	/**
+	 * Get the service that detects types.
+	 * 
+	 * @return delegate
+	 */
+	public MIMEService getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * Get how many files were classified using a cached result.
+	 * 
+	 * @return hits
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Get how many of the {@link #getHitCount() hits} used a result read from
+	 * the store file.
+	 * 
+	 * @return store hits
+	 */
+	public long getStoreHitCount() {
+		return storeHits.get();
+	}
+
+	/**
+	 * Get how many files had to be classified by the wrapped service.
+	 * 
+	 * @return misses
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Get how many results are cached.
+	 * 
+	 * @return size
+	 */
+	public int getSize() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	/**
+	 * Drop every result cached in memory. Stored results are only dropped
+	 * when the database changes.
+	 */
+	public void invalidate() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Close the store file, if there is one. Results are still cached in
+	 * memory afterwards.
+	 */
+	public void close() throws IOException {
+		if (store != null) {
+			store.close();
+		}
+	}
+
+	public MIMEEntry getMimeTypeForFile(Path file, boolean useMagic) throws IOException {
+		Classification result = classify(file, useMagic);
+		if (result.getError() != null) {
+			throw result.getError();
+		}
+		return result.getEntry();
+	}
+
+	public Classification classify(Path file, boolean useMagic) throws IOException {
+		long generation = checkGeneration();
+		Key key = key(file, useMagic);
+		Classification result = get(key);
+		if (result == null) {
+			result = load(key);
+			if (result == null) {
+				misses.incrementAndGet();
+				result = delegate.classify(file, useMagic);
+				save(key, result, generation);
+			}
+			put(key, result, generation);
+		}
+		return result;
+	}
+
+	public List<Classification> classifyAll(Collection<Path> files, boolean useMagic) {
+		long generation = checkGeneration();
+		List<Classification> results = new ArrayList<Classification>(files.size());
+		List<Path> missed = new ArrayList<Path>();
+		List<Key> missedKeys = new ArrayList<Key>();
+		List<Integer> missedAt = new ArrayList<Integer>();
+		for (Path file : files) {
+			Key key = key(file, useMagic);
+			Classification result = get(key);
+			if (result == null) {
+				result = load(key);
+				if (result != null) {
+					put(key, result, generation);
+				}
+			}
+			if (result == null) {
+				missed.add(file);
+				missedKeys.add(key);
+				missedAt.add(results.size());
+			}
+			results.add(result);
+		}
+		// Only the files that were not cached are classified, all at once
+		if (!missed.isEmpty()) {
+			misses.addAndGet(missed.size());
+			List<Classification> classified = delegate.classifyAll(missed, useMagic);
+			for (int i = 0; i < classified.size(); i++) {
+				Classification result = classified.get(i);
+				results.set(missedAt.get(i), result);
+				save(missedKeys.get(i), result, generation);
+				put(missedKeys.get(i), result, generation);
+			}
+		}
+		return results;
+	}
+
+	private Classification get(Key key) {
+		Classification result = null;
+		if (key != null) {
+			synchronized (cache) {
+				result = cache.get(key);
+			}
+		}
+		if (result != null) {
+			hits.incrementAndGet();
+		}
+		return result;
+	}
+
+	/**
+	 * Get a result from the store file.
+	 */
+	private Classification load(Key key) {
+		if (key == null || !key.stored) {
+			return null;
+		}
+		MimeResultStore.Result stored = store.get(key.device, key.inode, nameOf(key.file), key.size,
+				key.modified.to(TimeUnit.NANOSECONDS));
+		MIMEEntry entry = stored == null ? null : delegate.getEntryForMimeType(stored.mimeType);
+		if (entry == null) {
+			return null;
+		}
+		Classification result = new Classification(key.file);
+		result.decide(entry, stored.stage);
+		hits.incrementAndGet();
+		storeHits.incrementAndGet();
+		return result;
+	}
+
+	/**
+	 * Keep a result in the store file, if the file content had to be read to
+	 * get it.
+	 */
+	private void save(Key key, Classification result, long generation) {
+		if (key == null || !key.stored || result.getError() != null || result.getEntry() == null
+				|| (result.getStage() != Stage.MAGIC && result.getStage() != Stage.FALLBACK)
+				|| generation != storeGeneration) {
+			return;
+		}
+		try {
+			store.put(key.device, key.inode, nameOf(key.file), key.size, key.modified.to(TimeUnit.NANOSECONDS),
+					result.getEntry().getInternalName(), result.getStage());
+		} catch (IOException ioe) {
+			Log.warn("Failed to store MIME type of " + key.file + ". " + ioe.getMessage());
+		}
+	}
+
+	private static long nameOf(Path file) {
+		Path name = file.getFileName();
+		return MimeResultStore.hash(name == null ? "" : name.toString());
+	}
+
+	private void put(Key key, Classification result, long generation) {
+		if (key != null && result.getError() == null) {
+			synchronized (cache) {
+				// A result worked out from bases that have since changed is dropped
+				if (generation == this.generation) {
+					cache.put(key, result);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drop every cached result if the bases have changed since they were
+	 * cached.
+	 * 
+	 * @return current generation
+	 */
+	private long checkGeneration() {
+		long generation = generationOf(delegate);
+		synchronized (cache) {
+			if (generation != this.generation) {
+				cache.clear();
+				this.generation = generation;
+			}
+		}
+		if (store != null && generation != storeGeneration) {
+			// Checked on first use, when the bases have most likely all been added
+			try {
+				store.setDatabaseHash(databaseHash(delegate));
+				storeGeneration = generation;
+			} catch (IOException ioe) {
+				Log.warn("Failed to check MIME type store. " + ioe.getMessage());
+			}
+		}
+		return generation;
+	}
+
+	private static byte[] databaseHash(MIMEService service) {
+		if (service instanceof DefaultMIMEService) {
+			return ((DefaultMIMEService) service).getDatabaseHash();
+		}
+		MessageDigest digest = MimeResultStore.newDigest();
+		List<String> types = new ArrayList<String>();
+		for (MIMEEntry entry : service.getAllEntities()) {
+			types.add(entry.getInternalName());
+		}
+		Collections.sort(types);
+		for (String type : types) {
+			MimeResultStore.update(digest, type);
+		}
+		return digest.digest();
+	}
+
+	private static long generationOf(MIMEService service) {
+		return service instanceof AbstractFreedesktopService
+				? ((AbstractFreedesktopService<?>) service).getGeneration()
+				: 0;
+	}
+
+	/**
+	 * Get the key of a file, or <code>null</code> if its type should not be
+	 * cached. Only regular files are cached. The type of a directory, such as
+	 * from tree magic, depends on what it contains, which can change without
+	 * changing any of its own attributes.
+	 */
+	private Key key(Path file, boolean useMagic) {
+		try {
+			boolean stored = store != null && useMagic && file.getFileSystem() == FileSystems.getDefault();
+			Key key;
+			if (stored && UNIX) {
+				// The same single read, with the device and inode as numbers
+				Map<String, Object> attrs = Files.readAttributes(file,
+						"unix:dev,ino,size,lastModifiedTime,fileKey,isRegularFile");
+				if (!(Boolean) attrs.get("isRegularFile")) {
+					return null;
+				}
+				key = new Key(file, attrs.get("fileKey"), (Long) attrs.get("size"),
+						(FileTime) attrs.get("lastModifiedTime"), useMagic);
+				key.device = (Long) attrs.get("dev");
+				key.inode = (Long) attrs.get("ino");
+			} else {
+				BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+				if (!attrs.isRegularFile()) {
+					return null;
+				}
+				key = new Key(file, attrs.fileKey(), attrs.size(), attrs.lastModifiedTime(), useMagic);
+				if (stored) {
+					key.inode = MimeResultStore.hash(file.toAbsolutePath().toString());
+				}
+			}
+			key.stored = stored;
+			return key;
+		} catch (IOException ioe) {
+			return null;
+		}
+	}
+
+	public MIMEEntry getEntryForMimeType(String mimeType) {
+		return delegate.getEntryForMimeType(mimeType);
+	}
+
+	public MIMEEntry getMimeTypeForPattern(String pattern) throws MagicRequiredException {
+		return delegate.getMimeTypeForPattern(pattern);
+	}
+
+	public MIMEEntry getMimeTypeForFileName(CharSequence name) throws MagicRequiredException {
+		return delegate.getMimeTypeForFileName(name);
+	}
+
+	public MIMEEntry getMimeTypeForContent(CharSequence name, ByteBuffer data) {
+		return delegate.getMimeTypeForContent(name, data);
+	}
+
+	public MIMEEntry getMimeTypeForContent(CharSequence name, byte[] data) {
+		return delegate.getMimeTypeForContent(name, data);
+	}
+
+	public MIMEEntry getMimeTypeForContent(CharSequence name, InputStream in) throws IOException {
+		return delegate.getMimeTypeForContent(name, in);
+	}
+
+	public String getDefaultExtension(MIMEEntry mimeEntry) {
+		return delegate.getDefaultExtension(mimeEntry);
+	}
+
+	public Collection<String> getExtensionsForMimeType(MIMEEntry mimeEntry) {
+		return delegate.getExtensionsForMimeType(mimeEntry);
+	}
+
+	public AliasEntry getAliasEntryForAlias(String alias) {
+		return delegate.getAliasEntryForAlias(alias);
+	}
+
+	public boolean isSubclassOf(String mimeType, String superType) {
+		return delegate.isSubclassOf(mimeType, superType);
+	}
+
+	public List<String> getAncestors(String mimeType) {
+		return delegate.getAncestors(mimeType);
+	}
+
+	public void addBase(Path base) throws IOException {
+		delegate.addBase(base);
+		invalidate();
+	}
+
+	public void removeBase(Path base) {
+		delegate.removeBase(base);
+		invalidate();
+	}
+
+	public Collection<Path> getBases() {
+		return delegate.getBases();
+	}
+
+	public MIMEEntry getEntity(String name) {
+		return delegate.getEntity(name);
+	}
+
+	public Collection<MIMEEntry> getEntities(Path base) {
+		return delegate.getEntities(base);
+	}
+
+	public Collection<MIMEEntry> getAllEntities() {
+		return delegate.getAllEntities();
+	}
+
+	/**
+	 * Identifies a file and the version of its content. The path is part of
+	 * it, as the name of a file decides its type as much as its content does,
+	 * and a rename keeps the file key and modification time.
+	 */
+	private final static class Key {
+		private final Path file;
+		private final Object fileKey;
+		private final long size;
+		private final FileTime modified;
+		private final boolean useMagic;
+		private final int hash;
+		/* Set when the result may be kept in the store file */
+		private boolean stored;
+		private long device;
+		private long inode;
+
+		Key(Path file, Object fileKey, long size, FileTime modified, boolean useMagic) {
+			this.file = file;
+			this.fileKey = fileKey;
+			this.size = size;
+			this.modified = modified;
+			this.useMagic = useMagic;
+			int h = file.hashCode();
+			h = h * 31 + (fileKey == null ? 0 : fileKey.hashCode());
+			h = h * 31 + (int) (size ^ (size >>> 32));
+			h = h * 31 + modified.hashCode();
+			hash = h * 31 + (useMagic ? 1 : 0);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hash == other.hash && size == other.size && useMagic == other.useMagic
+					&& file.equals(other.file) && modified.equals(other.modified)
+					&& (fileKey == null ? other.fileKey == null : fileKey.equals(other.fileKey));
+		}
+	}
+}
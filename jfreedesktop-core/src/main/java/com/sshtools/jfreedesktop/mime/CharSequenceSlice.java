@@ -0,0 +1,78 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+/**
+ * A view of part of another {@link CharSequence}. Unlike
+ * {@link String#subSequence(int, int)}, no characters are copied.
+ */
+final class CharSequenceSlice implements CharSequence {
+	private final CharSequence text;
+	private final int start;
+	private final int end;
+
+	CharSequenceSlice(CharSequence text, int start, int end) {
+		if (start < 0 || end > text.length() || start > end) {
+			throw new IndexOutOfBoundsException();
+		}
+		this.text = text;
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Get the last element of a path, i.e. the text after the last separator.
+	 * Trailing separators are ignored.
+	 *
+	 * @param path path
+	 * @param separator separator
+	 * @return file name
+	 */
+	static CharSequence fileName(CharSequence path, char separator) {
+		int end = path.length();
+		while (end > 1 && path.charAt(end - 1) == separator) {
+			end--;
+		}
+		int start = end;
+		while (start > 0 && path.charAt(start - 1) != separator) {
+			start--;
+		}
+		return start == 0 && end == path.length() ? path : new CharSequenceSlice(path, start, end);
+	}
+
+	public int length() {
+		return end - start;
+	}
+
+	public char charAt(int index) {
+		if (index < 0 || index >= end - start) {
+			throw new IndexOutOfBoundsException();
+		}
+		return text.charAt(start + index);
+	}
+
+	public CharSequence subSequence(int start, int end) {
+		if (start < 0 || end > this.end - this.start || start > end) {
+			throw new IndexOutOfBoundsException();
+		}
+		return new CharSequenceSlice(text, this.start + start, this.start + end);
+	}
+
+	@Override
+	public String toString() {
+		return text.subSequence(start, end).toString();
+	}
+}
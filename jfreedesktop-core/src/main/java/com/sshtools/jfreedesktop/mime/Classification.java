@@ -0,0 +1,156 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+
+/**
+ * The result of classifying a single file with
+ * {@link MIMEService#classify(Path, boolean)} or
+ * {@link MIMEService#classifyAll(Collection, boolean)}. As well as the MIME
+ * type, it records which stage of detection decided it.
+ */
+public class Classification {
+	/**
+	 * The stage of detection that decided the type of a file.
+	 */
+	public enum Stage {
+		/**
+		 * The file is a directory
+		 */
+		DIRECTORY,
+		/**
+		 * A glob pattern matched the file name, or the first of several
+		 * conflicting glob matches was used
+		 */
+		GLOB,
+		/**
+		 * Magic sniffing of the file content, or tree magic for a directory,
+		 * decided the type
+		 */
+		MAGIC,
+		/**
+		 * Nothing else matched, so the type is either
+		 * <i>application/octet-stream</i> or <i>text/plain</i>
+		 */
+		FALLBACK
+	}
+
+	private final Path file;
+	private MIMEEntry entry;
+	private Stage stage;
+	private IOException error;
+	Collection<GlobEntry> alternatives;
+
+	Classification(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Classify a file with any service, from the type it gives for the file.
+	 * The stage is inferred, the type counts as decided by its glob if the
+	 * name alone gives the same type, and by magic if it is neither of the
+	 * fallback types.
+	 *
+	 * @param service service
+	 * @param file file
+	 * @param useMagic whether to read the file content
+	 * @return classification
+	 * @throws IOException on error reading the file
+	 */
+	static Classification classify(MIMEService service, Path file, boolean useMagic) throws IOException {
+		Classification result = new Classification(file);
+		MIMEEntry entry = service.getMimeTypeForFile(file, useMagic);
+		MIMEEntry byName = null;
+		Path name = file.getFileName();
+		if (name != null) {
+			try {
+				byName = service.getMimeTypeForFileName(name.toString());
+			} catch (MagicRequiredException mre) {
+				// Several types match the name, so it did not decide
+			}
+		}
+		if (Files.isDirectory(file)) {
+			result.decide(entry, Stage.DIRECTORY);
+		} else if (entry != null && byName != null && entry.getInternalName().equals(byName.getInternalName())) {
+			result.decide(entry, Stage.GLOB);
+		} else if (useMagic && entry != null && !entry.getInternalName().equals("application/octet-stream")
+				&& !entry.getInternalName().equals("text/plain")) {
+			result.decide(entry, Stage.MAGIC);
+		} else {
+			result.decide(entry, Stage.FALLBACK);
+		}
+		return result;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Get the MIME type of the file. This will be <code>null</code> if the
+	 * file could not be read (see {@link #getError()}), or if the database
+	 * has no entry for the type that was detected.
+	 *
+	 * @return MIME type
+	 */
+	public MIMEEntry getEntry() {
+		return entry;
+	}
+
+	/**
+	 * Get the stage of detection that decided the type.
+	 *
+	 * @return stage or <code>null</code> if detection failed
+	 */
+	public Stage getStage() {
+		return stage;
+	}
+
+	/**
+	 * Get the error that stopped the file being classified, if any. Only
+	 * batch classification reports errors this way.
+	 *
+	 * @return error
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	boolean isDone() {
+		return stage != null || error != null;
+	}
+
+	void decide(MIMEEntry entry, Stage stage) {
+		this.entry = entry;
+		this.stage = stage;
+		alternatives = null;
+	}
+
+	void fail(IOException error) {
+		this.error = error;
+		alternatives = null;
+	}
+
+	@Override
+	public String toString() {
+		return "Classification [file=" + file + ", entry=" + (entry == null ? null : entry.getInternalName())
+				+ ", stage=" + stage + ", error=" + error + "]";
+	}
+}
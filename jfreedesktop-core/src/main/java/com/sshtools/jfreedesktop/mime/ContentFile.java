@@ -0,0 +1,107 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.sshtools.jfreedesktop.util.Log;
+
+/**
+ * Types content that is in memory or in a stream with any
+ * {@link MIMEService}, by writing it to a temporary file of the same name, so
+ * that its globs still apply. This is what the default methods of the
+ * interface do, services that can sniff content directly should override
+ * them.
+ */
+final class ContentFile {
+	/* Name of the file when the content has none, or it cannot be used */
+	private final static String DEFAULT_NAME = "content";
+
+	private ContentFile() {
+	}
+
+	static MIMEEntry getMimeType(MIMEService service, CharSequence name, ByteBuffer data) {
+		Path dir = null;
+		try {
+			dir = Files.createTempDirectory("mime");
+			Path file = file(dir, name);
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+					StandardOpenOption.WRITE)) {
+				ByteBuffer b = data.duplicate();
+				while (b.hasRemaining()) {
+					channel.write(b);
+				}
+			}
+			return service.getMimeTypeForFile(file, true);
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		} finally {
+			delete(dir);
+		}
+	}
+
+	static MIMEEntry getMimeType(MIMEService service, CharSequence name, InputStream in) throws IOException {
+		Path dir = Files.createTempDirectory("mime");
+		try {
+			Path file = file(dir, name);
+			Files.copy(in, file);
+			return service.getMimeTypeForFile(file, true);
+		} finally {
+			delete(dir);
+		}
+	}
+
+	private static Path file(Path dir, CharSequence name) {
+		if (name != null) {
+			String fileName = CharSequenceSlice.fileName(name, '/').toString();
+			if (fileName.length() > 0 && !fileName.equals(".") && !fileName.equals("..")
+					&& fileName.indexOf(File.separatorChar) == -1 && fileName.indexOf('/') == -1) {
+				try {
+					return dir.resolve(fileName);
+				} catch (InvalidPathException ipe) {
+					// Not a name this file system allows
+				}
+			}
+		}
+		return dir.resolve(DEFAULT_NAME);
+	}
+
+	private static void delete(Path dir) {
+		if (dir == null) {
+			return;
+		}
+		try {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path file : stream) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(dir);
+		} catch (IOException ioe) {
+			Log.debug("Could not delete " + dir + ". " + ioe.getMessage());
+		}
+	}
+}
@@ -21,7 +21,10 @@ import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -36,6 +39,16 @@ public class DefaultAliasService extends AbstractFreedesktopService<AliasEntry>
     	Path f = base.resolve("aliases");
         AliasBase aliasBase = new AliasBase();
         aliasBases.put(base, aliasBase);
+        MimeSnapshot snapshot = MimeSnapshot.get(base);
+        MimeCache cache = snapshot == null ? MimeCache.open(base) : null;
+        if (snapshot != null || cache != null) {
+            for (String[] alias : snapshot != null ? snapshot.getAliases() : cache.getAliases()) {
+                AliasEntry entry = new AliasEntry(alias[0], alias[1]);
+                aliasBase.byType.put(alias[0], entry);
+                aliasBase.byAlias.put(alias[1], entry);
+            }
+            return aliasBase.byType.values();
+        }
         try(BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(f)))) {
             String line;
             while ((line = reader.readLine()) != null) {
@@ -56,34 +69,43 @@ public class DefaultAliasService extends AbstractFreedesktopService<AliasEntry>
         return aliasBase.byType.values();
     }
 
-    public void removeBase(Path base) {
-        super.removeBase(base);
+    /**
+     * Get every alias of a base, in the order they were defined.
+     */
+    synchronized Collection<AliasEntry> getAliases(Path base) {
+        AliasBase aliasBase = aliasBases.get(base);
+        return aliasBase == null ? Collections.<AliasEntry>emptyList() : aliasBase.byType.values();
+    }
+
+    public synchronized void removeBase(Path base) {
         aliasBases.remove(base);
+        super.removeBase(base);
+    }
+
+    @Override
+    protected Object createIndex(List<Path> bases) {
+        // Merge all bases, later bases override earlier ones
+        AliasBase index = new AliasBase();
+        for (Path base : bases) {
+            AliasBase aliasBase = aliasBases.get(base);
+            index.byType.putAll(aliasBase.byType);
+            index.byAlias.putAll(aliasBase.byAlias);
+        }
+        return index;
     }
     
     class AliasBase {
-        Map<String, AliasEntry> byType = new HashMap<String, AliasEntry>();        
+        // Kept in file order, so it may be read back the way it was written
+        Map<String, AliasEntry> byType = new LinkedHashMap<String, AliasEntry>();        
         Map<String, AliasEntry> byAlias = new HashMap<String, AliasEntry>();
     }
 
     public AliasEntry getAliasEntryForMimeType(String mimeType) {
-        for(Path base : getBasesInReverse()) {
-            AliasEntry entry = aliasBases.get(base).byType.get(mimeType);
-            if(entry != null) {
-                return entry;
-            }
-        }
-        return null;
+        return this.<AliasBase>getIndex().byType.get(mimeType);
     }
 
     public AliasEntry getAliasEntryForAlias(String mimeType) {
-        for(Path base : getBasesInReverse()) {
-            AliasEntry entry = aliasBases.get(base).byAlias.get(mimeType);
-            if(entry != null) {
-                return entry;
-            }
-        }
-        return null;
+        return this.<AliasBase>getIndex().byAlias.get(mimeType);
     }
 
 }
@@ -21,121 +21,265 @@ import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Stack;
 import java.util.TreeMap;
 
 import com.sshtools.jfreedesktop.AbstractFreedesktopService;
+import com.sshtools.jfreedesktop.mime.GlobEntry.Glob;
 
 public class DefaultGlobService extends AbstractFreedesktopService<GlobEntry> implements GlobService {
+	/**
+	 * Pattern used in globs2 to discard globs for a type defined in a lower
+	 * priority base
+	 */
+	private final static String NO_GLOBS = "__NOGLOBS__";
+
 	private Map<Path, GlobBase> globBases = new TreeMap<Path, GlobBase>(new PathComparator());
 
 	@Override
 	protected Collection<GlobEntry> scanBase(Path base) throws IOException {
-		Path f = base.resolve("globs");
-		GlobBase globBase = new GlobBase();
+		final GlobBase globBase = new GlobBase();
 		globBases.put(base, globBase);
-		BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(f)));
-		try {
+		MimeCache.GlobVisitor visitor = new MimeCache.GlobVisitor() {
+			public void glob(String mimeType, String pattern, int weight, boolean caseSensitive) {
+				add(globBase, mimeType, pattern, weight, caseSensitive);
+			}
+		};
+		MimeSnapshot snapshot = MimeSnapshot.get(base);
+		if (snapshot != null) {
+			snapshot.visitGlobs(visitor);
+			return globBase.byType.values();
+		}
+		MimeCache cache = MimeCache.open(base);
+		if (cache != null) {
+			cache.visitGlobs(visitor);
+			return globBase.byType.values();
+		}
+		// Prefer the weighted globs2, the legacy globs file is a fallback
+		Path f = base.resolve("globs2");
+		boolean weighted = Files.exists(f);
+		if (!weighted) {
+			f = base.resolve("globs");
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(f), "UTF-8"))) {
 			String line;
 			while ((line = reader.readLine()) != null) {
 				line = line.trim();
 				if (!line.equals("") && !line.startsWith("#")) {
-					int idx = line.indexOf(':');
-					if (idx == -1) {
-						throw new IOException(f + " contains invalid data '" + line + "'.");
-					}
-					String mimeType = line.substring(0, idx);
-					String pattern = line.substring(idx + 1);
-					// A single mime type may have several patterns
-					GlobEntry entry = globBase.byType.get(mimeType);
-					if (entry == null) {
-						entry = new GlobEntry(mimeType);
-						globBase.byType.put(mimeType, entry);
-					}
-					entry.addPattern(pattern);
-					// Provide a quick lookup table for simple patterns and
-					// explicit names
-					if (isSimplePattern(pattern) || !isExpression(pattern)) {
-						ArrayList<GlobEntry> entries = globBase.byPattern.get(pattern);
-						if (entries == null) {
-							entries = new ArrayList<GlobEntry>();
-							globBase.byPattern.put(pattern, entries);
+					int weight = GlobEntry.DEFAULT_WEIGHT;
+					boolean caseSensitive = false;
+					String mimeType;
+					String pattern;
+					if (weighted) {
+						String[] fields = line.split(":", 4);
+						if (fields.length < 3) {
+							throw new IOException(f + " contains invalid data '" + line + "'.");
 						}
-						if (!entries.contains(entry)) {
-							entries.add(entry);
+						try {
+							weight = Integer.parseInt(fields[0]);
+						} catch (NumberFormatException nfe) {
+							throw new IOException(f + " contains invalid weight '" + line + "'.");
 						}
+						mimeType = fields[1];
+						pattern = fields[2];
+						caseSensitive = fields.length > 3 && Arrays.asList(fields[3].split(",")).contains("cs");
+					} else {
+						int idx = line.indexOf(':');
+						if (idx == -1) {
+							throw new IOException(f + " contains invalid data '" + line + "'.");
+						}
+						mimeType = line.substring(0, idx);
+						pattern = line.substring(idx + 1);
+						// Case insensitive patterns are always written in lower case
+						caseSensitive = !pattern.equals(pattern.toLowerCase(Locale.ROOT));
 					}
+					add(globBase, mimeType, pattern, weight, caseSensitive);
 				}
 			}
-		} finally {
-			reader.close();
 		}
 		return globBase.byType.values();
 	}
 
-	public void removeBase(Path base) {
-		super.removeBase(base);
+	private static void add(GlobBase globBase, String mimeType, String pattern, int weight, boolean caseSensitive) {
+		// A single mime type may have several patterns
+		GlobEntry entry = globBase.byType.get(mimeType);
+		if (entry == null) {
+			entry = new GlobEntry(mimeType);
+			globBase.byType.put(mimeType, entry);
+		}
+		/*
+		 * update-mime-database repeats each case sensitive glob without flags
+		 * for older readers, so a pattern the type already has as written is
+		 * not added again in lower case
+		 */
+		if (entry.getGlob(pattern) != null) {
+			return;
+		}
+		// The marker is looked up as it is written
+		if (!caseSensitive && !pattern.equals(NO_GLOBS)) {
+			pattern = pattern.toLowerCase(Locale.ROOT);
+		}
+		if (entry.getGlob(pattern) == null) {
+			globBase.globs.add(entry.addPattern(pattern, weight, caseSensitive));
+		}
+	}
+
+	/**
+	 * Get the globs of a base in the order they were defined.
+	 */
+	synchronized List<Glob> getGlobs(Path base) {
+		GlobBase globBase = globBases.get(base);
+		return globBase == null ? Collections.<Glob>emptyList() : globBase.globs;
+	}
+
+	public synchronized void removeBase(Path base) {
 		globBases.remove(base);
+		super.removeBase(base);
 	}
 
-	public GlobEntry match(String text) throws MagicRequiredException {
-		for (Path base : getBasesInReverse()) {
-			GlobEntry entry = match(base, text);
-			if (entry != null) {
-				return entry;
-			} else {
-				entry = match(base, text.toLowerCase());
-				if (entry != null) {
-					return entry;
+	@Override
+	protected Object createIndex(List<Path> bases) {
+		/*
+		 * Merge the globs of all bases into a single index. Globs for a type
+		 * in a later base are added to those from earlier bases, unless the
+		 * later base uses __NOGLOBS__ to discard them
+		 */
+		GlobIndex index = new GlobIndex();
+		List<Glob> globs = new ArrayList<Glob>();
+		for (Path base : bases) {
+			GlobBase globBase = globBases.get(base);
+			for (GlobEntry entry : globBase.byType.values()) {
+				GlobEntry previous = index.byType.get(entry.getInternalName());
+				if (previous == null) {
+					index.byType.put(entry.getInternalName(), entry);
+				} else if (entry.getGlob(NO_GLOBS) != null) {
+					index.byType.put(entry.getInternalName(), entry);
+					for (Iterator<Glob> it = globs.iterator(); it.hasNext();) {
+						if (it.next().getEntry().getInternalName().equals(entry.getInternalName())) {
+							it.remove();
+						}
+					}
+				} else {
+					GlobEntry merged = new GlobEntry(entry.getInternalName());
+					for (Glob glob : entry.getGlobs()) {
+						merged.addPattern(glob.getPattern(), glob.getWeight(), glob.isCaseSensitive());
+					}
+					for (Glob glob : previous.getGlobs()) {
+						merged.addPattern(glob.getPattern(), glob.getWeight(), glob.isCaseSensitive());
+					}
+					index.byType.put(entry.getInternalName(), merged);
 				}
 			}
+			globs.addAll(globBase.globs);
 		}
-		return null;
+		// Index in file order, so ties keep the order they were defined in
+		List<Glob> complex = new ArrayList<Glob>();
+		for (Glob glob : globs) {
+			String pattern = glob.getPattern();
+			GlobTiers tiers = glob.isCaseSensitive() ? index.caseSensitive : index.caseInsensitive;
+			// Provide quick lookups for simple patterns and explicit names
+			if (pattern.equals(NO_GLOBS)) {
+				continue;
+			} else if (isSimplePattern(pattern)) {
+				tiers.bySuffix.add(pattern.substring(1), glob);
+			} else if (!isExpression(pattern)) {
+				tiers.byLiteral.add(pattern, glob);
+			} else {
+				complex.add(glob);
+			}
+		}
+		// Order every tier so the preferred glob comes first
+		Collections.sort(complex);
+		for (Glob glob : complex) {
+			(glob.isCaseSensitive() ? index.caseSensitive : index.caseInsensitive).complex.add(glob.getPattern(), glob);
+		}
+		return index.compile();
+	}
+
+	public GlobEntry match(String text) throws MagicRequiredException {
+		return match(this.<GlobIndex>getIndex(), text);
+	}
+
+	public GlobEntry match(CharSequence text) throws MagicRequiredException {
+		return match(this.<GlobIndex>getIndex(), text);
 	}
 
-	GlobEntry match(Path base, String text) throws MagicRequiredException {
+	GlobEntry match(GlobIndex index, CharSequence text) throws MagicRequiredException {
+		/*
+		 * Each tier is tried case sensitively first, then case insensitively by
+		 * folding the text as it is walked
+		 */
+		GlobTiers sensitive = index.caseSensitive;
+		GlobTiers insensitive = index.caseInsensitive;
 		// First lookup explicit pattern
-		GlobBase globBase = globBases.get(base);
-		if (globBase.byPattern.containsKey(text)) {
-			ArrayList<GlobEntry> arrayList = globBase.byPattern.get(text);
-			if (arrayList.size() > 1) {
-				throw new MagicRequiredException("Explicit pattern matches more than one entry, magic required.", arrayList);
-			}
-			return arrayList.get(0);
+		GlobEntry entry = resolve("Explicit", sensitive.byLiteral.matchExact(text, false));
+		if (entry == null) {
+			entry = resolve("Explicit", insensitive.byLiteral.matchExact(text, true));
 		}
 		// Now try lookup based on the longest available filename extension
-		int idx = text.indexOf('.');
-		while (idx > -1) {
-			String extension = text.substring(idx + 1);
-			String key = "*." + extension;
-			if (globBase.byPattern.containsKey(key)) {
-				ArrayList<GlobEntry> arrayList = globBase.byPattern.get(key);
-				if (arrayList.size() > 1) {
-					throw new MagicRequiredException("Extension pattern matches more than one entry, magic required.", arrayList);
+		if (entry == null) {
+			entry = resolve("Extension", sensitive.bySuffix.match(text, false));
+		}
+		if (entry == null) {
+			entry = resolve("Extension", insensitive.bySuffix.match(text, true));
+		}
+		// Still no match, run all the remaining patterns at once
+		if (entry == null) {
+			entry = resolve("Complex", sensitive.complex.match(text));
+		}
+		if (entry == null) {
+			entry = resolve("Complex", insensitive.complex.match(text));
+		}
+		return entry;
+	}
+
+	/**
+	 * Pick the entry of the preferred glob from a list of matching globs that
+	 * is already ordered by preference. If more than one entry shares the
+	 * preferred weight and pattern length, magic is required to decide
+	 * between them.
+	 */
+	private GlobEntry resolve(String kind, List<Glob> matches) throws MagicRequiredException {
+		if (matches == null || matches.isEmpty()) {
+			return null;
+		}
+		Glob best = matches.get(0);
+		List<GlobEntry> conflicts = null;
+		for (Glob glob : matches) {
+			if (glob.compareTo(best) != 0) {
+				break;
+			}
+			if (!glob.getEntry().getInternalName().equals(best.getEntry().getInternalName())) {
+				if (conflicts == null) {
+					conflicts = new ArrayList<GlobEntry>();
+					conflicts.add(best.getEntry());
+				}
+				if (!containsType(conflicts, glob.getEntry())) {
+					conflicts.add(glob.getEntry());
 				}
-				return arrayList.get(0);
 			}
-			idx = text.indexOf('.', idx + 1);
 		}
-		// Still no match, look at all the entries using regexp. matching
-		// against each one
-		GlobEntry match = null;
-		for (GlobEntry entry : getEntities(base)) {
-			for (String pattern : entry.getPatterns()) {
-				if (text.matches(globToRE(pattern))) {
-					if (match == null) {
-						match = entry;
-					} else {
-						throw new MagicRequiredException("Regular expression pattern matches more than one entry, magic required.",
-								match, entry);
-					}
-				}
+		if (conflicts != null) {
+			throw new MagicRequiredException(kind + " pattern matches more than one entry, magic required.", conflicts);
+		}
+		return best.getEntry();
+	}
+
+	private static boolean containsType(List<GlobEntry> entries, GlobEntry entry) {
+		for (GlobEntry e : entries) {
+			if (e.getInternalName().equals(entry.getInternalName())) {
+				return true;
 			}
 		}
-		return match;
+		return false;
 	}
 
 	/**
@@ -239,32 +383,40 @@ public class DefaultGlobService extends AbstractFreedesktopService<GlobEntry> im
 		return found;
 	}
 
-	@SuppressWarnings("unused")
-	private Collection<GlobEntry> bySimplePattern(String pattern) {
-		if (!isSimplePattern(pattern)) {
-			throw new IllegalArgumentException("Only simple patterns are cached.");
-		}
-		for (Path base : getBasesInReverse()) {
-			Collection<GlobEntry> entries = globBases.get(base).byPattern.get(pattern);
-			if (entries != null) {
-				return entries;
-			}
-		}
-		return null;
+	public GlobEntry getByMimeType(String mimeType) {
+		return this.<GlobIndex>getIndex().byType.get(mimeType);
 	}
 
-	public GlobEntry getByMimeType(String mimeType) {
-		for (Path base : getBasesInReverse()) {
-			GlobEntry entry = globBases.get(base).byType.get(mimeType);
-			if (entry != null) {
-				return entry;
-			}
+	class GlobBase {
+		Map<String, GlobEntry> byType = new LinkedHashMap<String, GlobEntry>();
+		List<Glob> globs = new ArrayList<Glob>();
+	}
+
+	class GlobIndex {
+		Map<String, GlobEntry> byType = new LinkedHashMap<String, GlobEntry>();
+		GlobTiers caseSensitive = new GlobTiers(true);
+		GlobTiers caseInsensitive = new GlobTiers(false);
+
+		GlobIndex compile() {
+			caseSensitive.compile();
+			caseInsensitive.compile();
+			return this;
 		}
-		return null;
 	}
 
-	class GlobBase {
-		Map<String, GlobEntry> byType = new HashMap<String, GlobEntry>();
-		Map<String, ArrayList<GlobEntry>> byPattern = new HashMap<String, ArrayList<GlobEntry>>();
+	class GlobTiers {
+		SuffixTrie<Glob> byLiteral = new SuffixTrie<Glob>();
+		SuffixTrie<Glob> bySuffix = new SuffixTrie<Glob>();
+		GlobAutomaton<Glob> complex;
+
+		GlobTiers(boolean caseSensitive) {
+			complex = new GlobAutomaton<Glob>(caseSensitive, null);
+		}
+
+		void compile() {
+			byLiteral.sort(null);
+			bySuffix.sort(null);
+			complex.compile();
+		}
 	}
 }
@@ -15,26 +15,54 @@
  */
 package com.sshtools.jfreedesktop.mime;
 
-import java.io.DataInputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.nio.file.DirectoryStream;
-import java.nio.file.FileSystemException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
 
 import com.sshtools.jfreedesktop.AbstractFreedesktopService;
+import com.sshtools.jfreedesktop.mime.Classification.Stage;
+import com.sshtools.jfreedesktop.mime.GlobEntry.Glob;
 import com.sshtools.jfreedesktop.util.Log;
 
 public class DefaultMIMEService extends AbstractFreedesktopService<MIMEEntry> implements MIMEService {
+	/* Number of bytes checked when deciding between text and binary */
+	private final static int TEXT_SNIFF_LENGTH = 32;
+
 	private Map<Path, MimeBase> mimeBases = new TreeMap<Path, MimeBase>(new PathComparator());
 	private GlobService globService;
 	private AliasService aliasService;
 	private MagicService magicService;
+	private volatile TreeMagicService treeMagicService;
+	private volatile ForkJoinPool classifierPool;
+	private volatile Semaphore magicPermits = new Semaphore(Runtime.getRuntime().availableProcessors());
+	private volatile long mapThreshold = MagicBuffer.DEFAULT_MAP_THRESHOLD;
+	private boolean preferPackages;
+	private long hashGeneration = -1;
+	private byte[] databaseHash;
+	/* Guards the generation, and what it was worked out from */
+	private final Object generationLock = new Object();
+	private long generation;
+	private Object[] seenServices = new Object[5];
+	private long[] seenGenerations = new long[5];
 
 	public DefaultMIMEService() {
 	}
@@ -54,9 +82,61 @@ public class DefaultMIMEService extends AbstractFreedesktopService<MIMEEntry> im
 
 	@Override
 	protected Collection<MIMEEntry> scanBase(Path base) throws IOException {
-		Path[] d = listDirs(base);
 		MimeBase mimeBase = new MimeBase();
 		mimeBases.put(base, mimeBase);
+		MimeSnapshot snapshot = MimeSnapshot.get(base);
+		if (snapshot != null) {
+			for (MIMEEntry entry : snapshot.getTypes()) {
+				mimeBase.byType.put(entry.getInternalName(), entry);
+			}
+			return mimeBase.byType.values();
+		}
+		Path[] d = listDirs(base);
+		/*
+		 * With a cache, everything but comments and acronyms is known without
+		 * parsing the XML of each type. Types are looked up in lower case, as
+		 * the names of the XML files are
+		 */
+		MimeCache cache = MimeCache.open(base);
+		Map<String, List<String>> parents = null;
+		Map<String, String> icons = null;
+		Map<String, String> genericIcons = null;
+		if (cache != null) {
+			parents = cache.getParents(true);
+			icons = cache.getIcons(false, true);
+			genericIcons = cache.getIcons(true, true);
+			mimeBase.parents = parents;
+		} else {
+			// The parents of every type are listed, so need not be parsed
+			mimeBase.parents = readParents(base.resolve("subclasses"));
+			/*
+			 * Without one, the XML of each type is parsed when it is first
+			 * needed. The icons can still be known up front, if the database
+			 * lists them
+			 */
+			icons = readIcons(base.resolve("icons"));
+			genericIcons = readIcons(base.resolve("generic-icons"));
+			if (icons == null || genericIcons == null) {
+				icons = genericIcons = null;
+			}
+		}
+		/*
+		 * Without a cache, the package files can be streamed in one pass
+		 * instead. This reads every type in full, so it is only done when
+		 * asked, or when there are no per-type files to parse lazily
+		 */
+		if (cache == null && (preferPackages || !hasFamilies(d))) {
+			List<Path> packages = PackageLoader.listPackages(base);
+			if (!packages.isEmpty()) {
+				PackageLoader loader = new PackageLoader();
+				for (Path p : packages) {
+					Log.debug("Loading package " + p);
+					loader.load(p);
+				}
+				mimeBase.byType.putAll(loader.complete());
+				return mimeBase.byType.values();
+			}
+		}
 		if (d != null) {
 			for (Path dir : d) {
 				String family = dir.getFileName().toString();
@@ -71,7 +151,18 @@ public class DefaultMIMEService extends AbstractFreedesktopService<MIMEEntry> im
 						for (Path type : stream) {
 							String typeName = type.getFileName().toString().substring(0,
 									type.getFileName().toString().length() - 4);
-							MIMEEntry entry = new MIMEEntry(family, typeName, type);
+							MIMEEntry entry;
+							String name = (family + "/" + typeName).toLowerCase(Locale.ROOT);
+							if (icons == null) {
+								entry = new MIMEEntry(family, typeName, type);
+							} else if (cache == null) {
+								entry = new MIMEEntry(family, typeName, type, icons.get(name), genericIcons.get(name));
+							} else {
+								List<String> p = parents.get(name);
+								entry = new MIMEEntry(family, typeName, type,
+										p == null ? Collections.<String>emptyList() : p, cache.getAliases(name),
+										icons.get(name), genericIcons.get(name));
+							}
 							Log.debug("    Adding type " + entry.getInternalName());
 							mimeBase.byType.put(entry.getInternalName(), entry);
 						}
@@ -82,92 +173,511 @@ public class DefaultMIMEService extends AbstractFreedesktopService<MIMEEntry> im
 		return mimeBase.byType.values();
 	}
 
-	public void removeBase(Path base) {
-		super.removeBase(base);
+	private static boolean hasFamilies(Path[] dirs) {
+		if (dirs != null) {
+			for (Path dir : dirs) {
+				if (!dir.getFileName().toString().equals("packages")) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Read a <i>subclasses</i> file, which lists the parents of types as
+	 * <code>type parent</code>.
+	 * 
+	 * @return parents keyed by type, or <code>null</code> if there is no such
+	 *         file
+	 */
+	private static Map<String, List<String>> readParents(Path f) throws IOException {
+		if (!Files.exists(f)) {
+			return null;
+		}
+		Map<String, List<String>> parents = new HashMap<String, List<String>>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(f), "UTF-8"))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (!line.equals("") && !line.startsWith("#")) {
+					int idx = line.indexOf(' ');
+					if (idx == -1) {
+						throw new IOException(f + " contains invalid data '" + line + "'.");
+					}
+					String type = line.substring(0, idx);
+					List<String> l = parents.get(type);
+					if (l == null) {
+						l = new ArrayList<String>();
+						parents.put(type, l);
+					}
+					l.add(line.substring(idx + 1).trim());
+				}
+			}
+		}
+		return parents;
+	}
+
+	/**
+	 * Read an <i>icons</i> or <i>generic-icons</i> file, which lists the icon
+	 * names given to types as <code>type:icon</code>.
+	 * 
+	 * @return icon names keyed by lower case type, or <code>null</code> if
+	 *         there is no such file
+	 */
+	private static Map<String, String> readIcons(Path f) throws IOException {
+		if (!Files.exists(f)) {
+			return null;
+		}
+		Map<String, String> icons = new HashMap<String, String>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(f), "UTF-8"))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (!line.equals("") && !line.startsWith("#")) {
+					int idx = line.indexOf(':');
+					if (idx == -1) {
+						throw new IOException(f + " contains invalid data '" + line + "'.");
+					}
+					icons.put(line.substring(0, idx).toLowerCase(Locale.ROOT), line.substring(idx + 1));
+				}
+			}
+		}
+		return icons;
+	}
+
+	public synchronized void removeBase(Path base) {
 		mimeBases.remove(base);
+		super.removeBase(base);
 	}
 
-	public MIMEEntry getMimeTypeForFile(Path file, boolean useMagic) throws IOException {
-		// Directories are always inode/directory
-		if (Files.isDirectory(file)) {
-			return getEntryForMimeType("inode/directory");
+	@Override
+	protected Object createIndex(List<Path> bases) {
+		// Merge all bases, later bases override earlier ones
+		MimeBase index = new MimeBase();
+		for (Path base : bases) {
+			MimeBase mimeBase = mimeBases.get(base);
+			index.byType.putAll(mimeBase.byType);
+			index.bases.add(mimeBase);
+		}
+		return index;
+	}
+
+	/**
+	 * Get a number that changes every time a base is added to or removed from
+	 * this service, or from the glob, alias, magic or tree magic services it
+	 * uses, or one of those services is replaced, as any of these may change
+	 * the type detected for a file. It is a count of the changes seen, so
+	 * never returns to an earlier value.
+	 */
+	@Override
+	public long getGeneration() {
+		Object[] services = { this, globService, aliasService, magicService, treeMagicService };
+		synchronized (generationLock) {
+			boolean changed = false;
+			for (int i = 0; i < services.length; i++) {
+				Object service = services[i];
+				long serviceGeneration = service == this ? super.getGeneration()
+						: service instanceof AbstractFreedesktopService
+								? ((AbstractFreedesktopService<?>) service).getGeneration()
+								: 0;
+				if (service != seenServices[i] || serviceGeneration != seenGenerations[i]) {
+					seenServices[i] = service;
+					seenGenerations[i] = serviceGeneration;
+					changed = true;
+				}
+			}
+			if (changed) {
+				generation++;
+			}
+			return generation;
 		}
-		// First try matching using glob pattterns
-		try {
-			MIMEEntry mimeTypeForPattern = getMimeTypeForPattern(file.toString());
-			if (mimeTypeForPattern != null) {
-				return mimeTypeForPattern;
+	}
+
+	/**
+	 * Get a hash of everything that decides the type detected for a file,
+	 * which only changes when the database does. It is worked out once for
+	 * each {@link #getGeneration() generation}.
+	 */
+	synchronized byte[] getDatabaseHash() {
+		long generation = getGeneration();
+		if (databaseHash == null || generation != hashGeneration) {
+			MessageDigest digest = MimeResultStore.newDigest();
+			List<String> types = new ArrayList<String>(this.<MimeBase>getIndex().byType.keySet());
+			Collections.sort(types);
+			for (String type : types) {
+				MimeResultStore.update(digest, type);
 			}
-		} catch (MagicRequiredException mre) {
-			Log.debug("Conflicting match, magic required");
-			// Try and get exact match using magic
-			if (useMagic) {
-				for (GlobEntry ge : mre.getAlternatives()) {
-					MagicEntry me = magicService.getEntity(ge.getInternalName());
-					if (me == null) {
-						Log.debug("NO Mime Entry for " + ge.getInternalName());
+			if (globService != null) {
+				for (GlobEntry entry : globService.getAllEntities()) {
+					for (Glob glob : entry.getGlobs()) {
+						MimeResultStore.update(digest, glob.toString());
 					}
-					if (me != null && me.match(file)) {
-						MIMEEntry entity = getEntity(me.getInternalName());
-						if (entity != null) {
-							Log.debug("Will use " + entity.getName());
-							return entity;
+				}
+			}
+			if (aliasService != null) {
+				for (AliasEntry entry : aliasService.getAllEntities()) {
+					MimeResultStore.update(digest, entry.getInternalName() + " " + entry.getAlias());
+				}
+			}
+			if (magicService != null) {
+				ByteBuffer fields = ByteBuffer.allocate(32);
+				for (MagicEntry entry : magicService.getAllEntities()) {
+					MimeResultStore.update(digest, entry.getPriority() + ":" + entry.getInternalName());
+					for (MagicEntry.Pattern pattern : entry) {
+						fields.clear();
+						fields.putInt(pattern.getIndent()).putLong(pattern.getOffset()).putInt(pattern.getWordSize())
+								.putInt(pattern.getRangeLength()).putInt(pattern.getValueLength());
+						fields.flip();
+						digest.update(fields);
+						digest.update(pattern.getValue());
+						if (pattern.getMask() != null) {
+							digest.update(pattern.getMask());
 						}
 					}
 				}
 			}
-			// Return the first one we have a mime entry for
-			for (GlobEntry ge : mre.getAlternatives()) {
-				Log.debug("Trying " + ge.getInternalName());
-				MIMEEntry me = getEntity(ge.getInternalName());
+			TreeMagicService tms = treeMagicService;
+			if (tms != null) {
+				for (TreeMagicEntry entry : tms.getAllEntities()) {
+					MimeResultStore.update(digest, entry.toString());
+				}
+			}
+			databaseHash = digest.digest();
+			hashGeneration = generation;
+		}
+		return databaseHash;
+	}
+
+	public boolean isSubclassOf(String mimeType, String superType) {
+		return getSubclassIndex().isSubclassOf(mimeType, superType);
+	}
+
+	public List<String> getAncestors(String mimeType) {
+		return getSubclassIndex().getAncestors(mimeType);
+	}
+
+	/**
+	 * Get the ancestors of every type in the current index, computing them
+	 * the first time they are needed.
+	 */
+	private SubclassIndex getSubclassIndex() {
+		MimeBase index = getIndex();
+		SubclassIndex subclasses = index.subclasses;
+		if (subclasses == null) {
+			synchronized (index) {
+				subclasses = index.subclasses;
+				if (subclasses == null) {
+					subclasses = buildSubclassIndex(index);
+					index.subclasses = subclasses;
+				}
+			}
+		}
+		return subclasses;
+	}
+
+	private SubclassIndex buildSubclassIndex(MimeBase index) {
+		SubclassIndex subclasses = new SubclassIndex();
+		for (MIMEEntry entry : index.byType.values()) {
+			subclasses.addType(entry.getInternalName());
+		}
+		AliasService aliasService = this.aliasService;
+		if (aliasService != null) {
+			for (AliasEntry alias : aliasService.getAllEntities()) {
+				subclasses.addAlias(alias.getInternalName(), alias.getAlias());
+			}
+		}
+		// Later bases replace the parents of a type given by earlier ones
+		for (MimeBase mimeBase : index.bases) {
+			if (mimeBase.parents != null) {
+				for (Map.Entry<String, List<String>> en : mimeBase.parents.entrySet()) {
+					subclasses.setParents(en.getKey(), en.getValue());
+				}
+			} else {
+				// Only parses the XML of types whose parents are not yet known
+				for (MIMEEntry entry : mimeBase.byType.values()) {
+					subclasses.setParents(entry.getInternalName(), entry.getSubclasses());
+				}
+			}
+		}
+		return subclasses.compile();
+	}
+
+	/**
+	 * Set the pool used by {@link #classifyAll(Collection, boolean)}. When not
+	 * set, the common pool is used.
+	 * 
+	 * @param classifierPool pool
+	 */
+	public void setClassifierPool(ForkJoinPool classifierPool) {
+		this.classifierPool = classifierPool;
+	}
+
+	/**
+	 * Set the maximum number of files that
+	 * {@link #classifyAll(Collection, boolean)} will check or read at the same
+	 * time. Defaults to the number of processors.
+	 * 
+	 * @param magicConcurrency maximum number of files touched at once
+	 */
+	public void setMagicConcurrency(int magicConcurrency) {
+		if (magicConcurrency < 1) {
+			throw new IllegalArgumentException("Magic concurrency must be at least 1.");
+		}
+		magicPermits = new Semaphore(magicConcurrency);
+	}
+
+	/**
+	 * Set the size at or above which a file is memory mapped rather than read
+	 * when sniffing its content. Only the pages that the magic rules look at
+	 * are then read from disk. Defaults to 8 MB.
+	 * 
+	 * @param mapThreshold map threshold, or a negative number to never map
+	 */
+	public void setMapThreshold(long mapThreshold) {
+		this.mapThreshold = mapThreshold;
+	}
+
+	/**
+	 * Get whether types are loaded from the <i>packages</i> files of a
+	 * database rather than from the file of each type.
+	 * 
+	 * @return prefer packages
+	 */
+	public synchronized boolean isPreferPackages() {
+		return preferPackages;
+	}
+
+	/**
+	 * Set whether types are loaded from the <i>packages</i> files of a
+	 * database rather than from the file of each type. The packages are read
+	 * in a single streaming pass when a base is added, so every entry is
+	 * complete up front, including the globs it declares. Otherwise the file
+	 * of each type is only parsed when it is first needed, which is quicker
+	 * to start. Either way, a usable <i>mime.cache</i> is preferred, and the
+	 * packages are used when a database has no per-type files. Only affects
+	 * bases added after it is set. Defaults to <code>false</code>.
+	 * 
+	 * @param preferPackages prefer packages
+	 */
+	public synchronized void setPreferPackages(boolean preferPackages) {
+		this.preferPackages = preferPackages;
+	}
+
+	/**
+	 * Set the service used to identify the content of directories, such as
+	 * the root of a DVD or camera card, when magic is used. When not set, or
+	 * when nothing matches, directories are <i>inode/directory</i>.
+	 * 
+	 * @param treeMagicService tree magic service
+	 */
+	public void setTreeMagicService(TreeMagicService treeMagicService) {
+		this.treeMagicService = treeMagicService;
+	}
+
+	public MIMEEntry getMimeTypeForFile(Path file, boolean useMagic) throws IOException {
+		return classify(file, useMagic).getEntry();
+	}
+
+	public Classification classify(Path file, boolean useMagic) throws IOException {
+		Classification result = classifyByName(file, useMagic);
+		classifyFile(result, useMagic);
+		return result;
+	}
+
+	public MIMEEntry getMimeTypeForContent(CharSequence name, ByteBuffer data) {
+		Classification result = new Classification(null);
+		classifyByName(result, name, '/', true);
+		if (!result.isDone()) {
+			// Rules index from zero, so view the remaining bytes without copying
+			classifyByContent(result, data.slice());
+		}
+		return result.getEntry();
+	}
+
+	public MIMEEntry getMimeTypeForContent(CharSequence name, byte[] data) {
+		return getMimeTypeForContent(name, ByteBuffer.wrap(data));
+	}
+
+	public MIMEEntry getMimeTypeForContent(CharSequence name, InputStream in) throws IOException {
+		Classification result = new Classification(null);
+		classifyByName(result, name, '/', true);
+		if (!result.isDone()) {
+			int length = getContentLength();
+			boolean mark = in.markSupported();
+			if (mark) {
+				in.mark(length);
+			}
+			ByteBuffer data;
+			try {
+				data = MagicBuffer.read(in, length);
+			} finally {
+				if (mark) {
+					in.reset();
+				}
+			}
+			classifyByContent(result, data);
+		}
+		return result.getEntry();
+	}
+
+	public List<Classification> classifyAll(Collection<Path> files, boolean useMagic) {
+		Path[] paths = files.toArray(new Path[0]);
+		Classification[] results = new Classification[paths.length];
+		ForkJoinPool pool = classifierPool == null ? ForkJoinPool.commonPool() : classifierPool;
+		/*
+		 * Match every name in memory first, then check each file, reading
+		 * only those that are left
+		 */
+		pool.invoke(new ClassifyTask(paths, results, 0, paths.length, useMagic, false));
+		pool.invoke(new ClassifyTask(paths, results, 0, paths.length, useMagic, true));
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * The first stage of detection, which decides everything that can be
+	 * decided from the name alone, without touching the file.
+	 */
+	private Classification classifyByName(Path file, boolean useMagic) {
+		Classification result = new Classification(file);
+		classifyByName(result, file.toString(), file.getFileSystem().getSeparator().charAt(0), useMagic);
+		return result;
+	}
+
+	private void classifyByName(Classification result, CharSequence name, char separator, boolean useMagic) {
+		// First try matching using glob pattterns against the file name only
+		if (name != null) {
+			try {
+				MIMEEntry mimeTypeForPattern = getMimeTypeForFileName(name, separator);
+				if (mimeTypeForPattern != null) {
+					result.decide(mimeTypeForPattern, Stage.GLOB);
+					return;
+				}
+			} catch (MagicRequiredException mre) {
+				Log.debug("Conflicting match, magic required");
+				result.alternatives = mre.getAlternatives();
+			}
+		}
+		if (!useMagic) {
+			if (result.alternatives == null || !decideFirstAlternative(result)) {
+				result.decide(getEntity("application/octet-stream"), Stage.FALLBACK);
+			}
+		}
+	}
+
+	/**
+	 * The second stage of detection, which checks whether the file is a
+	 * directory, and reads its content if the name was not enough. A
+	 * directory is never typed by its name.
+	 */
+	private void classifyFile(Classification result, boolean useMagic) throws IOException {
+		Path file = result.getFile();
+		if (Files.isDirectory(file)) {
+			TreeMagicService tms = useMagic ? treeMagicService : null;
+			TreeMagicEntry tme = tms == null ? null : tms.match(file);
+			MIMEEntry entity = tme == null ? null : getEntity(tme.getInternalName());
+			if (entity != null) {
+				Log.debug("Tree magic found " + entity.getName());
+				result.decide(entity, Stage.MAGIC);
+			} else {
+				result.decide(getEntryForMimeType("inode/directory"), Stage.DIRECTORY);
+			}
+		} else if (!result.isDone()) {
+			// Read the file once, enough for every rule that might be evaluated
+			classifyByContent(result, MagicBuffer.read(file, getContentLength(), mapThreshold));
+		}
+	}
+
+	private void classifyByContent(Classification result, ByteBuffer data) {
+		if (result.alternatives != null) {
+			// Try and get exact match using magic
+			for (GlobEntry ge : result.alternatives) {
+				MagicEntry me = magicService.getEntity(ge.getInternalName());
 				if (me == null) {
 					Log.debug("NO Mime Entry for " + ge.getInternalName());
-				} else {
-					Log.debug("Will use " + me.getInternalName());
-					return me;
+				}
+				if (me != null && me.match(data)) {
+					MIMEEntry entity = getEntity(me.getInternalName());
+					if (entity != null) {
+						Log.debug("Will use " + entity.getName());
+						result.decide(entity, Stage.MAGIC);
+						return;
+					}
 				}
 			}
+			if (decideFirstAlternative(result)) {
+				return;
+			}
 		}
 		/*
 		 * If the glob matching fails or results in multiple conflicting
-		 * mimetypes, read the contents of the file and do magic sniffing on it.
+		 * mimetypes, do magic sniffing against the whole database. Only the
+		 * rules that could match the data are evaluated.
 		 */
-		//
-		// Log.warn("Slow magic search for " + file.getName());
-//		for (MagicEntry me : magicService.getAllEntities()) {
-//			if (me.match(file)) {
-//				return getEntity(me.getInternalName());
-//			}
-//		}
-		if (useMagic) {
-			return checkForTextOrBinary(file);
-		} else {
-			return getEntity("application/octet-stream");
+		MagicEntry me = magicService.match(data);
+		if (me != null) {
+			MIMEEntry entity = getEntity(me.getInternalName());
+			if (entity != null) {
+				Log.debug("Magic found " + entity.getName());
+				result.decide(entity, Stage.MAGIC);
+				return;
+			}
 		}
+		result.decide(checkForTextOrBinary(data), Stage.FALLBACK);
 	}
 
-	private MIMEEntry checkForTextOrBinary(Path file) throws FileSystemException, IOException {
+	/**
+	 * Get the number of bytes needed from the start of some content to
+	 * evaluate every magic rule and the text or binary check.
+	 */
+	private int getContentLength() {
+		return Math.max(TEXT_SNIFF_LENGTH, magicService.getExtent());
+	}
+
+	private boolean decideFirstAlternative(Classification result) {
+		// Return the first one we have a mime entry for
+		for (GlobEntry ge : result.alternatives) {
+			Log.debug("Trying " + ge.getInternalName());
+			MIMEEntry me = getEntity(ge.getInternalName());
+			if (me == null) {
+				Log.debug("NO Mime Entry for " + ge.getInternalName());
+			} else {
+				Log.debug("Will use " + me.getInternalName());
+				result.decide(me, Stage.GLOB);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private MIMEEntry checkForTextOrBinary(ByteBuffer data) {
 		/*
 		 * If no magic rule matches the data (or if the content is not
 		 * available), use the default type of application/octet-stream for
 		 * binary data, or text/plain for textual data. If there was no glob
 		 * match the magic match as the result.
 		 */
-		
-		try(InputStream in = Files.newInputStream(file)) {
-			byte[] buf = new byte[(int) Math.min(32l, Files.size(file))];
-			DataInputStream din = new DataInputStream(in);
-			din.readFully(buf);
-			for (byte b : buf) {
-				if (b < 32) {
-					return getEntity("application/octet-stream");
-				}
+		for (int i = 0, l = Math.min(TEXT_SNIFF_LENGTH, data.limit()); i < l; i++) {
+			if (data.get(i) < 32) {
+				return getEntity("application/octet-stream");
 			}
-		} 
+		}
 		return getEntity("text/plain");
 	}
 
 	public MIMEEntry getMimeTypeForPattern(String text) throws MagicRequiredException {
+		return getMimeTypeForGlob((CharSequence) text);
+	}
+
+	public MIMEEntry getMimeTypeForFileName(CharSequence name) throws MagicRequiredException {
+		return getMimeTypeForFileName(name, '/');
+	}
+
+	private MIMEEntry getMimeTypeForFileName(CharSequence name, char separator) throws MagicRequiredException {
+		return getMimeTypeForGlob(CharSequenceSlice.fileName(name, separator));
+	}
+
+	private MIMEEntry getMimeTypeForGlob(CharSequence text) throws MagicRequiredException {
 		GlobEntry globEntry = globService.match(text);
 		if (globEntry != null) {
 			MIMEEntry entry = getEntryForMimeType(globEntry.getInternalName());
@@ -179,19 +689,14 @@ public class DefaultMIMEService extends AbstractFreedesktopService<MIMEEntry> im
 	}
 
 	public MIMEEntry getEntryForMimeType(String mimeType) {
-		for (Path base : getBasesInReverse()) {
-			AliasEntry alias = aliasService == null ? null : aliasService.getAliasEntryForMimeType(mimeType);
-			MimeBase mimeBase = mimeBases.get(base);
-			MIMEEntry entry = mimeBase.byType.get(alias != null ? alias.getAlias() : mimeType);
-			if (alias != null && entry == null) {
-				// Just in case the alias was bad
-				entry = mimeBase.byType.get(mimeType);
-			}
-			if (entry != null) {
-				return entry;
-			}
+		AliasEntry alias = aliasService == null ? null : aliasService.getAliasEntryForMimeType(mimeType);
+		MimeBase index = getIndex();
+		MIMEEntry entry = index.byType.get(alias != null ? alias.getAlias() : mimeType);
+		if (alias != null && entry == null) {
+			// Just in case the alias was bad
+			entry = index.byType.get(mimeType);
 		}
-		return null;
+		return entry;
 	}
 
 	public String getDefaultExtension(MIMEEntry mimeEntry) {
@@ -206,5 +711,64 @@ public class DefaultMIMEService extends AbstractFreedesktopService<MIMEEntry> im
 
 	class MimeBase {
 		Map<String, MIMEEntry> byType = new HashMap<String, MIMEEntry>();
+		// Parents by type, or null if the entries know their own
+		Map<String, List<String>> parents;
+		// Each base, in order, when this is the merged index
+		List<MimeBase> bases = new ArrayList<MimeBase>();
+		volatile SubclassIndex subclasses;
+	}
+
+	@SuppressWarnings("serial")
+	class ClassifyTask extends RecursiveAction {
+		/* Number of files below which a task is not split any further */
+		private final static int THRESHOLD = 64;
+
+		private final Path[] paths;
+		private final Classification[] results;
+		private final int from;
+		private final int to;
+		private final boolean useMagic;
+		private final boolean content;
+
+		ClassifyTask(Path[] paths, Classification[] results, int from, int to, boolean useMagic, boolean content) {
+			this.paths = paths;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+			this.useMagic = useMagic;
+			this.content = content;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > THRESHOLD) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new ClassifyTask(paths, results, from, mid, useMagic, content),
+						new ClassifyTask(paths, results, mid, to, useMagic, content));
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				if (!content) {
+					results[i] = classifyByName(paths[i], useMagic);
+				} else {
+					classifyFileBounded(results[i]);
+				}
+			}
+		}
+
+		private void classifyFileBounded(final Classification result) {
+			try {
+				BoundedIO.run(magicPermits, new BoundedIO.Action() {
+					public void run() throws IOException {
+						classifyFile(result, useMagic);
+					}
+				});
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				result.fail(new InterruptedIOException("Interrupted waiting to read " + result.getFile()));
+			} catch (IOException ioe) {
+				result.fail(ioe);
+			}
+		}
 	}
 }
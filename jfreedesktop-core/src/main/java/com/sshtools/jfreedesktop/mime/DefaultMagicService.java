@@ -16,12 +16,20 @@
 package com.sshtools.jfreedesktop.mime;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -29,179 +37,311 @@ import com.sshtools.jfreedesktop.AbstractFreedesktopService;
 import com.sshtools.jfreedesktop.mime.MagicEntry.Pattern;
 
 public class DefaultMagicService extends AbstractFreedesktopService<MagicEntry> implements MagicService {
+	/* Every magic database starts with this line */
+	private final static byte[] HEADER = { 'M', 'I', 'M', 'E', '-', 'M', 'a', 'g', 'i', 'c', 0, '\n' };
+
 	private Map<Path, MagicBase> magicBases = new TreeMap<Path, MagicBase>(new PathComparator());
+	private volatile long mapThreshold = MagicBuffer.DEFAULT_MAP_THRESHOLD;
 
 	@Override
 	protected Collection<MagicEntry> scanBase(Path base) throws IOException {
-		Path f = base.resolve("magic");
-		MagicBase aliasBase = new MagicBase();
-		magicBases.put(base, aliasBase);
-		InputStream fin = Files.newInputStream(f);
-		try {
-			byte[] buf = new byte[65536];
-			StringBuilder bui = new StringBuilder();
-			int state = -1;
-			// -1 outside of format
-			// 0 file header
-			// 1 in header (priority)
-			// 2 in header (mime type)
-			// 3 out of header, waiting for newline
-			// 4 waiting for indent
-			// 5 waiting for offset
-			// 6 waiting for value length (hi)
-			// 7 waiting for value length (lo)
-			// 8 reading value
-			// 9 read value, waiting for optional mask
-			// 10 reading mask
-			// 11 word-size
-			// 12 range-length
-			// 13 done
-			MagicEntry entry = null;
-			Pattern pattern = null;
-			int valueLength = 0;
-			int bufIdx = 0;
-			while (true) {
-				int read = fin.read(buf);
-				if (read == -1) {
-					break;
+		MagicBase magicBase = new MagicBase();
+		magicBases.put(base, magicBase);
+		MimeSnapshot snapshot = MimeSnapshot.get(base);
+		MimeCache cache = snapshot == null ? MimeCache.open(base) : null;
+		if (snapshot != null) {
+			magicBase.entries.addAll(snapshot.getMagic());
+		} else if (cache != null) {
+			magicBase.entries.addAll(cache.getMagic());
+		} else {
+			Path f = base.resolve("magic");
+			parse(f, load(f), magicBase);
+		}
+		/*
+		 * Patterns are kept in file order, their indent makes them a tree that
+		 * is evaluated from the top down. A type may have several sections of
+		 * different priority, each is an entry of its own
+		 */
+		return magicBase.entries;
+	}
+
+	/**
+	 * Get the whole content of a file, memory mapped if possible.
+	 */
+	private static ByteBuffer load(Path f) throws IOException {
+		if (f.getFileSystem() == FileSystems.getDefault()) {
+			try (FileChannel channel = FileChannel.open(f, StandardOpenOption.READ)) {
+				return channel.map(MapMode.READ_ONLY, 0, channel.size());
+			}
+		}
+		return ByteBuffer.wrap(Files.readAllBytes(f));
+	}
+
+	/**
+	 * Parse a magic database. Numbers are decoded directly from the buffer,
+	 * and the values and masks of all patterns are copied into a single arena
+	 * once the size of it is known.
+	 */
+	private static void parse(Path f, ByteBuffer buf, MagicBase magicBase) throws IOException {
+		int limit = buf.limit();
+		for (int i = 0; i < HEADER.length; i++) {
+			if (i >= limit || buf.get(i) != HEADER[i]) {
+				throw new IOException("No MIME-Magic header");
+			}
+		}
+		List<Pattern> patterns = new ArrayList<Pattern>();
+		// Pairs of value and mask offsets in the buffer for each pattern
+		int[] sources = new int[256];
+		int arenaSize = 0;
+		MagicEntry entry = null;
+		int i = HEADER.length;
+		while (i < limit) {
+			if (buf.get(i) == '[') {
+				// [priority:mime/type]
+				int colon = indexOf(buf, i + 1, ':');
+				int end = colon == -1 ? -1 : indexOf(buf, colon + 1, ']');
+				if (end == -1) {
+					throw new IOException(f + " contains an invalid section header at " + i + ".");
 				}
-				for (int i = 0; i < read; i++) {
-					byte b = buf[i];
-					// System.out.println((int)b + "[" + (char)b + "] = " +
-					// state);
-					if (state == -1) {
-						if (b == '\n') {
-							state = 0;
-							if (!bui.toString().equals("MIME-Magic\0")) {
-								throw new IOException("No MIME-Magic header");
-							}
-							bui.setLength(0);
-						} else {
-							bui.append((char) b);
-						}
-					} else if (state == 0) {
-						if (b == '[') {
-							state = 1;
-						}
-					} else if (state == 1) {
-						if (b == ':') {
-							entry = new MagicEntry();
-							entry.setPriority(Integer.parseInt(bui.toString()));
-							bui.setLength(0);
-							state = 2;
-						} else {
-							bui.append((char) b);
-						}
-					} else if (state == 2) {
-						if (b == ']') {
-							entry.setMIMEType(bui.toString());
-							bui.setLength(0);
-							state = 3;
-							aliasBase.byType.put(entry.getInternalName(), entry);
-						} else {
-							bui.append((char) b);
-						}
-					} else if (state == 3) {
-						if (b == '\n') {
-							state = 4;
-							pattern = new MagicEntry.Pattern();
-						}
-					} else if (state == 4) {
-						if (b == '[') {
-							state = 1;
-						} else if (b == '>') {
-							state = 5;
-							if (bui.length() > 0) {
-								String str = bui.toString();
-								pattern.setIndent(Integer.parseInt(str));
-								bui.setLength(0);
-							}
-						} else {
-							bui.append((char) b);
-						}
-					} else if (state == 5) {
-						if (b == '=') {
-							state = 6;
-							pattern.setOffset(Long.parseLong(bui.toString()));
-							bui.setLength(0);
-						} else {
-							bui.append((char) b);
-						}
-					} else if (state == 6) {
-						valueLength = b << 8;
-						state = 7;
-					} else if (state == 7) {
-						valueLength = valueLength | b;
-						state = 8;
-						pattern.setValueLength(valueLength);
-						bufIdx = 0;
-					} else if (state == 8) {
-						pattern.getValue()[bufIdx++] = b;
-						if (bufIdx == valueLength) {
-							state = 9;
-						}
-					} else if (state == 9) {
-						if (b == '&') {
-							bufIdx = 0;
-							state = 10;
-						} else if (b == '~') {
-							state = 11;
-						} else if (b == '+') {
-							state = 12;
-						} else if (b == '\n') {
-							state = 13;
-						}
-					} else if (state == 10) {
-						pattern.getMask()[bufIdx++] = b;
-						if (bufIdx == valueLength) {
-							state = 9;
-						}
-					} else if (state == 11) {
-						pattern.setWordSize(Integer.parseInt(String.valueOf((char) b)));
-						state = 9;
-					} else if (state == 12) {
-						if (b == '\n') {
-							pattern.setRangeLength(Integer.parseInt(bui.toString()));
-							bui.setLength(0);
-							state = 13;
-						} else {
-							bui.append((char) b);
-						}
+				entry = new MagicEntry(ascii(buf, colon + 1, end), (int) number(f, buf, i + 1, colon));
+				magicBase.entries.add(entry);
+				i = nextLine(buf, end + 1);
+				continue;
+			}
+			if (entry == null) {
+				throw new IOException(f + " contains a rule outside of a section at " + i + ".");
+			}
+			// [indent]>offset=value[&mask][~word-size][+range-length]
+			Pattern pattern = new Pattern();
+			int gt = indexOf(buf, i, '>');
+			int eq = gt == -1 ? -1 : indexOf(buf, gt + 1, '=');
+			if (eq == -1 || eq + 3 > limit) {
+				throw new IOException(f + " contains an invalid rule at " + i + ".");
+			}
+			if (gt > i) {
+				pattern.setIndent((int) number(f, buf, i, gt));
+			}
+			pattern.setOffset(number(f, buf, gt + 1, eq));
+			int valueLength = (buf.get(eq + 1) & 0xff) << 8 | (buf.get(eq + 2) & 0xff);
+			int valueAt = eq + 3;
+			int maskAt = -1;
+			i = valueAt + valueLength;
+			while (i < limit && buf.get(i) != '\n') {
+				byte b = buf.get(i);
+				if (b == '&') {
+					maskAt = i + 1;
+					i = maskAt + valueLength;
+				} else if (b == '~' || b == '+') {
+					int end = i + 1;
+					while (end < limit && isDigit(buf.get(end))) {
+						end++;
+					}
+					int val = (int) number(f, buf, i + 1, end);
+					if (b == '~') {
+						pattern.setWordSize(val);
+					} else {
+						pattern.setRangeLength(val);
 					}
-					// Done
-					if (state == 13) {
-						entry.add(pattern);
-						pattern = new MagicEntry.Pattern();
-						state = 4;
+					i = end;
+				} else {
+					// Unknown extension, ignore the rest of the line
+					i = indexOf(buf, i, '\n');
+					if (i == -1) {
+						i = limit;
 					}
 				}
 			}
-		} finally {
-			fin.close();
+			if (i > limit) {
+				throw new IOException(f + " ends part way through a rule.");
+			}
+			i++;
+			if (sources.length < (patterns.size() + 1) * 2) {
+				sources = Arrays.copyOf(sources, sources.length * 2);
+			}
+			sources[patterns.size() * 2] = valueAt;
+			sources[patterns.size() * 2 + 1] = maskAt;
+			pattern.setArena(null, 0, valueLength, -1);
+			arenaSize += maskAt == -1 ? valueLength : valueLength * 2;
+			patterns.add(pattern);
+			entry.add(pattern);
 		}
-		// Sort the patterns in the base
-		for (MagicEntry e : aliasBase.byType.values()) {
-			Collections.sort(e);
+		// Now copy all the values and masks into one array
+		byte[] arena = new byte[arenaSize];
+		int at = 0;
+		for (int p = 0; p < patterns.size(); p++) {
+			Pattern pattern = patterns.get(p);
+			int length = pattern.getValueLength();
+			int valueOffset = at;
+			copy(buf, sources[p * 2], arena, at, length);
+			at += length;
+			int maskOffset = -1;
+			if (sources[p * 2 + 1] != -1) {
+				maskOffset = at;
+				copy(buf, sources[p * 2 + 1], arena, at, length);
+				at += length;
+			}
+			pattern.setArena(arena, valueOffset, length, maskOffset);
 		}
-		return aliasBase.byType.values();
 	}
 
-	public void removeBase(Path base) {
-		super.removeBase(base);
+	private static void copy(ByteBuffer buf, int from, byte[] to, int at, int length) {
+		for (int i = 0; i < length; i++) {
+			to[at + i] = buf.get(from + i);
+		}
+	}
+
+	private static int indexOf(ByteBuffer buf, int from, char ch) {
+		for (int i = from, l = buf.limit(); i < l; i++) {
+			if (buf.get(i) == ch) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int nextLine(ByteBuffer buf, int from) {
+		int i = indexOf(buf, from, '\n');
+		return i == -1 ? buf.limit() : i + 1;
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	private static long number(Path f, ByteBuffer buf, int from, int to) throws IOException {
+		if (from == to) {
+			throw new IOException(f + " is missing a number at " + from + ".");
+		}
+		long val = 0;
+		for (int i = from; i < to; i++) {
+			byte b = buf.get(i);
+			if (!isDigit(b)) {
+				throw new IOException(f + " contains an invalid number at " + i + ".");
+			}
+			val = val * 10 + (b - '0');
+		}
+		return val;
+	}
+
+	private static String ascii(ByteBuffer buf, int from, int to) {
+		char[] chars = new char[to - from];
+		for (int i = from; i < to; i++) {
+			chars[i - from] = (char) (buf.get(i) & 0xff);
+		}
+		return new String(chars);
+	}
+
+	public synchronized void removeBase(Path base) {
 		magicBases.remove(base);
+		super.removeBase(base);
+	}
+
+	@Override
+	protected Object createIndex(List<Path> bases) {
+		// Merge all bases, a type in a later base replaces all its sections in earlier ones
+		Map<String, Path> definedBy = new HashMap<String, Path>();
+		for (Path base : bases) {
+			for (MagicEntry entry : magicBases.get(base).entries) {
+				definedBy.put(entry.getInternalName(), base);
+			}
+		}
+		MagicBase index = new MagicBase();
+		Map<String, List<MagicEntry>> sections = new LinkedHashMap<String, List<MagicEntry>>();
+		for (Path base : bases) {
+			for (MagicEntry entry : magicBases.get(base).entries) {
+				if (definedBy.get(entry.getInternalName()).equals(base)) {
+					index.entries.add(entry);
+					index.extent = Math.max(index.extent, entry.getExtent());
+					List<MagicEntry> l = sections.get(entry.getInternalName());
+					if (l == null) {
+						l = new ArrayList<MagicEntry>();
+						sections.put(entry.getInternalName(), l);
+					}
+					l.add(entry);
+				}
+			}
+		}
+		for (Map.Entry<String, List<MagicEntry>> en : sections.entrySet()) {
+			index.byType.put(en.getKey(), merge(en.getValue()));
+		}
+		index.dispatch = new MagicDispatch(index.entries);
+		return index;
+	}
+
+	/**
+	 * Merge the sections of a type into one entry, that matches if any of
+	 * them do, with the highest of their priorities.
+	 */
+	private static MagicEntry merge(List<MagicEntry> sections) {
+		if (sections.size() == 1) {
+			return sections.get(0);
+		}
+		MagicEntry merged = new MagicEntry(sections.get(0).getInternalName(), 0);
+		for (MagicEntry section : sections) {
+			merged.setPriority(Math.max(merged.getPriority(), section.getPriority()));
+			merged.addAll(section);
+		}
+		return merged;
 	}
 
 	class MagicBase {
+		// Every section, in file order, which decides between entries of equal priority
+		List<MagicEntry> entries = new ArrayList<MagicEntry>();
+		// The sections of each type merged, only in the index
 		Map<String, MagicEntry> byType = new HashMap<String, MagicEntry>();
+		int extent;
+		MagicDispatch dispatch = new MagicDispatch(Collections.<MagicEntry>emptyList());
+	}
+
+	/**
+	 * Get the size at or above which {@link #match(Path)} memory maps a file
+	 * instead of reading it.
+	 * 
+	 * @return map threshold, or a negative number if files are never mapped
+	 */
+	public long getMapThreshold() {
+		return mapThreshold;
+	}
+
+	/**
+	 * Set the size at or above which {@link #match(Path)} memory maps a file
+	 * instead of reading it. Only the start of the file, up to the
+	 * {@link #getExtent() extent} of the rules, is mapped, and only the pages
+	 * the rules look at are read from disk. This suits very large files with
+	 * rules that look far into them, such as disk images. Defaults to 8 MB.
+	 * 
+	 * @param mapThreshold map threshold, or a negative number to never map
+	 */
+	public void setMapThreshold(long mapThreshold) {
+		this.mapThreshold = mapThreshold;
+	}
+
+	public int getExtent() {
+		return this.<MagicBase>getIndex().extent;
+	}
+
+	public MagicEntry match(Path file) throws IOException {
+		MagicBase index = getIndex();
+		return index.dispatch.match(MagicBuffer.read(file, index.extent, mapThreshold));
+	}
+
+	public MagicEntry match(ByteBuffer data) {
+		return this.<MagicBase>getIndex().dispatch.match(data);
+	}
+
+	/**
+	 * Get the magic of a type. If the type has several sections, they are
+	 * merged into one entry that matches if any of them do.
+	 * 
+	 * @param name type
+	 * @return entry or <code>null</code> if the type has no magic
+	 */
+	@Override
+	public MagicEntry getEntity(String name) {
+		return this.<MagicBase>getIndex().byType.get(name);
 	}
 
 	public MagicEntry getMagicEntryForMimeType(String mimeType) {
-		for (Path base : getBasesInReverse()) {
-			MagicEntry entry = magicBases.get(base).byType.get(mimeType);
-			if (entry != null) {
-				return entry;
-			}
-		}
-		return null;
+		return getEntity(mimeType);
 	}
 }
@@ -0,0 +1,331 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+
+import com.sshtools.jfreedesktop.AbstractFreedesktopService;
+import com.sshtools.jfreedesktop.mime.TreeMagicEntry.Match;
+import com.sshtools.jfreedesktop.mime.TreeMagicEntry.Type;
+import com.sshtools.jfreedesktop.util.Log;
+
+public class DefaultTreeMagicService extends AbstractFreedesktopService<TreeMagicEntry> implements TreeMagicService {
+
+	private final static String HEADER = "MIME-TreeMagic\0";
+
+	private Map<Path, TreeMagicBase> treeMagicBases = new TreeMap<Path, TreeMagicBase>(new PathComparator());
+	private volatile MagicService magicService;
+	private volatile ForkJoinPool probePool;
+	private volatile int probeConcurrency = Runtime.getRuntime().availableProcessors();
+	private volatile Semaphore probePermits = new Semaphore(probeConcurrency);
+
+	public DefaultTreeMagicService() {
+	}
+
+	public DefaultTreeMagicService(MagicService magicService) {
+		this.magicService = magicService;
+	}
+
+	@Override
+	protected Collection<TreeMagicEntry> scanBase(Path base) throws IOException {
+		TreeMagicBase treeMagicBase = new TreeMagicBase();
+		treeMagicBases.put(base, treeMagicBase);
+		Path f = base.resolve("treemagic");
+		MimeSnapshot snapshot = MimeSnapshot.get(base);
+		if (snapshot != null) {
+			String treeMagic = snapshot.getTreeMagic();
+			if (treeMagic != null) {
+				parse(f, new BufferedReader(new StringReader(treeMagic)), treeMagicBase);
+			}
+		} else if (Files.exists(f)) {
+			// Older databases do not have tree magic
+			parse(f, new BufferedReader(new InputStreamReader(Files.newInputStream(f), "UTF-8")), treeMagicBase);
+		}
+		return treeMagicBase.byType.values();
+	}
+
+	private static void parse(Path f, BufferedReader in, TreeMagicBase treeMagicBase) throws IOException {
+		try (BufferedReader reader = in) {
+			String line = reader.readLine();
+			if (line == null || !line.equals(HEADER)) {
+				throw new IOException("No MIME-TreeMagic header");
+			}
+			TreeMagicEntry entry = null;
+			int lineNo = 1;
+			while ((line = reader.readLine()) != null) {
+				lineNo++;
+				if (line.equals("")) {
+					continue;
+				}
+				if (line.startsWith("[")) {
+					// [priority:x-content/type]
+					int colon = line.indexOf(':');
+					int end = line.indexOf(']', colon + 1);
+					if (colon == -1 || end == -1) {
+						throw new IOException(f + " contains an invalid section header at line " + lineNo + ".");
+					}
+					entry = new TreeMagicEntry(line.substring(colon + 1, end), number(f, line.substring(1, colon), lineNo));
+					treeMagicBase.byType.put(entry.getInternalName(), entry);
+					continue;
+				}
+				if (entry == null) {
+					throw new IOException(f + " contains a rule outside of a section at line " + lineNo + ".");
+				}
+				entry.add(match(f, line, lineNo));
+			}
+		}
+	}
+
+	/*
+	 * [indent]>"path"=type[,option]*
+	 */
+	private static Match match(Path f, String line, int lineNo) throws IOException {
+		int gt = line.indexOf(">\"");
+		int close = gt == -1 ? -1 : line.indexOf("\"=", gt + 2);
+		if (close == -1) {
+			throw new IOException(f + " contains an invalid rule at line " + lineNo + ".");
+		}
+		Match match = new Match();
+		if (gt > 0) {
+			match.setIndent(number(f, line.substring(0, gt), lineNo));
+		}
+		match.setPath(line.substring(gt + 2, close));
+		String[] args = line.substring(close + 2).split(",");
+		if (args[0].equals("file")) {
+			match.setType(Type.FILE);
+		} else if (args[0].equals("directory")) {
+			match.setType(Type.DIRECTORY);
+		} else if (args[0].equals("link")) {
+			match.setType(Type.LINK);
+		} else if (args[0].equals("any")) {
+			match.setType(Type.ANY);
+		} else {
+			throw new IOException(f + " contains an invalid type '" + args[0] + "' at line " + lineNo + ".");
+		}
+		for (int i = 1; i < args.length; i++) {
+			String opt = args[i];
+			if (opt.equals("executable")) {
+				match.setExecutable(true);
+			} else if (opt.equals("match-case")) {
+				match.setMatchCase(true);
+			} else if (opt.equals("non-empty")) {
+				match.setNonEmpty(true);
+			} else if (opt.indexOf('/') != -1) {
+				match.setMIMEType(opt);
+			} else {
+				Log.debug("Ignoring unknown tree magic option " + opt + " in " + f);
+			}
+		}
+		return match;
+	}
+
+	private static int number(Path f, String str, int lineNo) throws IOException {
+		try {
+			return Integer.parseInt(str);
+		} catch (NumberFormatException nfe) {
+			throw new IOException(f + " contains an invalid number at line " + lineNo + ".");
+		}
+	}
+
+	public synchronized void removeBase(Path base) {
+		treeMagicBases.remove(base);
+		super.removeBase(base);
+	}
+
+	@Override
+	protected Object createIndex(List<Path> bases) {
+		// Merge all bases, later bases override earlier ones
+		TreeMagicBase index = new TreeMagicBase();
+		for (Path base : bases) {
+			index.byType.putAll(treeMagicBases.get(base).byType);
+		}
+		List<TreeMagicEntry> ordered = new ArrayList<TreeMagicEntry>(index.byType.values());
+		// Stable, so file order is kept within a priority
+		Collections.sort(ordered, new Comparator<TreeMagicEntry>() {
+			public int compare(TreeMagicEntry o1, TreeMagicEntry o2) {
+				return Integer.compare(o2.getPriority(), o1.getPriority());
+			}
+		});
+		index.ordered = ordered.toArray(new TreeMagicEntry[0]);
+		// Each distinct top level path is probed once, whichever entries use it
+		Map<String, Match> probes = new LinkedHashMap<String, Match>();
+		for (TreeMagicEntry entry : index.ordered) {
+			for (IndentTree.Rule<Match> rule : entry.rules()) {
+				Match m = rule.test;
+				String key = m.isMatchCase() ? m.getPath() : m.getPath().toLowerCase(Locale.ROOT);
+				if (!probes.containsKey(key)) {
+					probes.put(key, m);
+				}
+			}
+		}
+		index.probes = probes.values().toArray(new Match[0]);
+		return index;
+	}
+
+	/**
+	 * Set the service used to test matches that require a file to have a
+	 * particular MIME type. When not set, such matches never match.
+	 * 
+	 * @param magicService magic service
+	 */
+	public void setMagicService(MagicService magicService) {
+		this.magicService = magicService;
+	}
+
+	/**
+	 * Set the pool that probes run in. When not set, the common pool is used.
+	 * 
+	 * @param probePool pool
+	 */
+	public void setProbePool(ForkJoinPool probePool) {
+		this.probePool = probePool;
+	}
+
+	/**
+	 * Set the maximum number of paths that are probed at the same time, over
+	 * all the directories being matched. Probing a slow or remote volume is mostly waiting,
+	 * so several probes in flight hide the latency of each. Defaults to the
+	 * number of processors, 1 probes one path at a time in the calling
+	 * thread.
+	 * 
+	 * @param probeConcurrency maximum number of paths probed at once
+	 */
+	public void setProbeConcurrency(int probeConcurrency) {
+		if (probeConcurrency < 1) {
+			throw new IllegalArgumentException("Probe concurrency must be at least 1.");
+		}
+		this.probeConcurrency = probeConcurrency;
+		probePermits = new Semaphore(probeConcurrency);
+	}
+
+	public TreeMagicEntry getTreeMagicEntryForMimeType(String mimeType) {
+		return this.<TreeMagicBase>getIndex().byType.get(mimeType);
+	}
+
+	public TreeMagicEntry match(Path root) throws IOException {
+		List<TreeMagicEntry> l = match(root, true);
+		return l.isEmpty() ? null : l.get(0);
+	}
+
+	public List<TreeMagicEntry> matchAll(Path root) throws IOException {
+		return match(root, false);
+	}
+
+	private List<TreeMagicEntry> match(Path root, boolean first) throws IOException {
+		TreeMagicBase index = getIndex();
+		TreeProbe probe = new TreeProbe(root, magicService);
+		prefetch(probe, index.probes);
+		List<TreeMagicEntry> l = new ArrayList<TreeMagicEntry>();
+		for (TreeMagicEntry entry : index.ordered) {
+			if (entry.match(probe)) {
+				l.add(entry);
+				if (first) {
+					break;
+				}
+			}
+		}
+		return l;
+	}
+
+	/**
+	 * Probe the top level paths of every entry in parallel, so that the
+	 * entries can then be evaluated in order from what has been read.
+	 */
+	private void prefetch(final TreeProbe probe, final Match[] probes) {
+		int tasks = Math.min(probeConcurrency, probes.length);
+		if (tasks < 2) {
+			return;
+		}
+		final ProbeTask[] all = new ProbeTask[tasks];
+		for (int i = 0; i < tasks; i++) {
+			all[i] = new ProbeTask(probe, probes, i, tasks, probePermits);
+		}
+		ForkJoinPool pool = probePool == null ? ForkJoinPool.commonPool() : probePool;
+		pool.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				invokeAll(all);
+			}
+		});
+	}
+
+	class TreeMagicBase {
+		// Kept in file order, which decides between entries of equal priority
+		Map<String, TreeMagicEntry> byType = new LinkedHashMap<String, TreeMagicEntry>();
+		TreeMagicEntry[] ordered = new TreeMagicEntry[0];
+		Match[] probes = new Match[0];
+	}
+
+	/**
+	 * Probes every <code>stride</code>th path, starting at <code>from</code>.
+	 */
+	@SuppressWarnings("serial")
+	static class ProbeTask extends RecursiveAction {
+		private final TreeProbe probe;
+		private final Match[] probes;
+		private final int from;
+		private final int stride;
+		private final Semaphore permits;
+
+		ProbeTask(TreeProbe probe, Match[] probes, int from, int stride, Semaphore permits) {
+			this.probe = probe;
+			this.probes = probes;
+			this.from = from;
+			this.stride = stride;
+			this.permits = permits;
+		}
+
+		@Override
+		protected void compute() {
+			for (int i = from; i < probes.length; i += stride) {
+				final Match match = probes[i];
+				try {
+					BoundedIO.run(permits, new BoundedIO.Action() {
+						public void run() throws IOException {
+							probe.prefetch(match);
+						}
+					});
+				} catch (InterruptedException ie) {
+					// Whatever is left is probed when the entries are evaluated
+					Thread.currentThread().interrupt();
+					return;
+				} catch (IOException ioe) {
+					/*
+					 * Nothing is cached for a probe that fails, so it is tried
+					 * again when the entries are evaluated, which reports it
+					 */
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,352 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Matches text against a whole set of glob patterns in a single pass. Each
+ * pattern is compiled into a chain of positions, and the combined automaton is
+ * converted to a DFA lazily as text is matched. Transitions that have been
+ * seen before are remembered, so repeated lookups of similar names only cost
+ * an array access per character, and a lookup stops as soon as no pattern can
+ * match any more.
+ * <p>
+ * Once compiled, an automaton may be matched from many threads at once
+ * without locking. The transition cache only ever gains equivalent states, so
+ * if two threads race to add the same transition either result is correct.
+ * <p>
+ * Patterns may use <code>*</code>, <code>?</code>, <code>[...]</code> (with
+ * <code>!</code> or <code>^</code> negation and ranges) and <code>\</code>
+ * escapes. Patterns using <code>{...}</code> groups are matched using a
+ * precompiled regular expression instead, and their matches are sorted in
+ * amongst the others.
+ * <p>
+ * A case insensitive automaton folds the text to lower case as it is matched,
+ * so its patterns must be added in lower case.
+ *
+ * @param <T> type of value associated with each pattern
+ */
+final class GlobAutomaton<T> {
+	private final static int LITERAL = 0;
+	private final static int ANY = 1;
+	private final static int STAR = 2;
+	private final static int CLASS = 3;
+	private final static int ACCEPT = 4;
+
+	/*
+	 * Upper bound on the number of cached DFA states. Beyond it, new states
+	 * are worked out for each lookup and never linked to, so memory stays
+	 * bounded whatever names are matched
+	 */
+	private final static int MAX_STATES = 4096;
+
+	private final List<Integer> types = new ArrayList<Integer>();
+	private final List<Character> chars = new ArrayList<Character>();
+	private final List<char[]> classes = new ArrayList<char[]>();
+	private final List<Boolean> negated = new ArrayList<Boolean>();
+	private final List<T> accepts = new ArrayList<T>();
+	private final List<java.util.regex.Pattern> fallbackPatterns = new ArrayList<java.util.regex.Pattern>();
+	private final List<T> fallbackValues = new ArrayList<T>();
+	private final boolean fold;
+	private final Comparator<? super T> order;
+
+	private int[] tokenType;
+	private char[] tokenChar;
+	private char[][] tokenClass;
+	private boolean[] tokenNegated;
+	private Object[] tokenAccept;
+	private ConcurrentMap<BitSet, State> states;
+	private State start;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param caseSensitive whether the patterns are case sensitive
+	 * @param order order of the values, which patterns must be added in, or
+	 *            <code>null</code> for their natural order
+	 */
+	GlobAutomaton(boolean caseSensitive, Comparator<? super T> order) {
+		fold = !caseSensitive;
+		this.order = order;
+	}
+
+	/**
+	 * Add a pattern to the automaton. Must be called before {@link #compile()},
+	 * in the order of the values.
+	 *
+	 * @param pattern glob pattern
+	 * @param value value to return when the pattern matches
+	 */
+	void add(String pattern, T value) {
+		if (pattern.indexOf('{') != -1) {
+			fallbackPatterns.add(java.util.regex.Pattern.compile(DefaultGlobService.globToRE(pattern),
+					fold ? java.util.regex.Pattern.CASE_INSENSITIVE | java.util.regex.Pattern.UNICODE_CASE : 0));
+			fallbackValues.add(value);
+			return;
+		}
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == '\\' && i + 1 < pattern.length()) {
+				token(LITERAL, pattern.charAt(++i), null, false);
+			} else if (c == '*') {
+				/* Consecutive stars are the same as one */
+				if (types.isEmpty() || types.get(types.size() - 1) != STAR) {
+					token(STAR, c, null, false);
+				}
+			} else if (c == '?') {
+				token(ANY, c, null, false);
+			} else if (c == '[') {
+				int end = parseClass(pattern, i);
+				if (end == -1) {
+					token(LITERAL, c, null, false);
+				} else {
+					i = end;
+				}
+			} else {
+				token(LITERAL, c, null, false);
+			}
+		}
+		types.add(ACCEPT);
+		chars.add((char) 0);
+		classes.add(null);
+		negated.add(false);
+		accepts.add(value);
+	}
+
+	/**
+	 * Finish adding patterns and prepare the automaton for matching.
+	 */
+	void compile() {
+		int size = types.size();
+		tokenType = new int[size];
+		tokenChar = new char[size];
+		tokenClass = new char[size][];
+		tokenNegated = new boolean[size];
+		tokenAccept = new Object[size];
+		int acceptIdx = 0;
+		for (int i = 0; i < size; i++) {
+			tokenType[i] = types.get(i);
+			tokenChar[i] = chars.get(i);
+			tokenClass[i] = classes.get(i);
+			tokenNegated[i] = negated.get(i);
+			if (tokenType[i] == ACCEPT) {
+				tokenAccept[i] = accepts.get(acceptIdx++);
+			}
+		}
+		states = new ConcurrentHashMap<BitSet, State>();
+		BitSet initial = new BitSet(size);
+		for (int i = 0; i < size; i++) {
+			/* Every pattern starts after the previous ones accept position */
+			if (i == 0 || tokenType[i - 1] == ACCEPT) {
+				initial.set(i);
+			}
+		}
+		start = state(closure(initial));
+	}
+
+	/**
+	 * Get all the values whose pattern matches the complete text, in order.
+	 * Each value is returned at most once.
+	 *
+	 * @param text text to match
+	 * @return matching values
+	 */
+	@SuppressWarnings("unchecked")
+	List<T> match(CharSequence text) {
+		State s = start;
+		for (int i = 0, l = text.length(); i < l && !s.dead; i++) {
+			s = next(s, fold ? Character.toLowerCase(text.charAt(i)) : text.charAt(i));
+		}
+		if (fallbackPatterns.isEmpty()) {
+			return (List<T>) s.matches;
+		}
+		List<T> matches = null;
+		for (int i = 0; i < fallbackPatterns.size(); i++) {
+			T value = fallbackValues.get(i);
+			if (fallbackPatterns.get(i).matcher(text).matches()) {
+				if (matches == null) {
+					matches = new ArrayList<T>((List<T>) s.matches);
+				}
+				if (!matches.contains(value)) {
+					matches.add(value);
+				}
+			}
+		}
+		if (matches == null) {
+			return (List<T>) s.matches;
+		}
+		// Stable, so equal values keep the order they were added in
+		Collections.sort(matches, order);
+		return matches;
+	}
+
+	private void token(int type, char c, char[] clazz, boolean negate) {
+		types.add(type);
+		chars.add(c);
+		classes.add(clazz);
+		negated.add(negate);
+	}
+
+	private int parseClass(String pattern, int idx) {
+		int i = idx + 1;
+		boolean negate = false;
+		if (i < pattern.length() && (pattern.charAt(i) == '!' || pattern.charAt(i) == '^')) {
+			negate = true;
+			i++;
+		}
+		StringBuilder ranges = new StringBuilder();
+		boolean first = true;
+		for (; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == ']' && !first) {
+				token(CLASS, (char) 0, ranges.toString().toCharArray(), negate);
+				return i;
+			}
+			first = false;
+			if (c == '\\' && i + 1 < pattern.length()) {
+				c = pattern.charAt(++i);
+			}
+			char to = c;
+			if (i + 2 < pattern.length() && pattern.charAt(i + 1) == '-' && pattern.charAt(i + 2) != ']') {
+				to = pattern.charAt(i + 2);
+				i += 2;
+			}
+			ranges.append(c).append(to);
+		}
+		return -1;
+	}
+
+	private boolean accepts(int position, char c) {
+		switch (tokenType[position]) {
+		case LITERAL:
+			return tokenChar[position] == c;
+		case ANY:
+			return true;
+		case CLASS:
+			char[] ranges = tokenClass[position];
+			boolean in = false;
+			for (int i = 0; i < ranges.length && !in; i += 2) {
+				in = c >= ranges[i] && c <= ranges[i + 1];
+			}
+			return in != tokenNegated[position];
+		default:
+			return false;
+		}
+	}
+
+	private BitSet closure(BitSet set) {
+		/* A star may also match nothing, so the following position is live too */
+		for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+			if (tokenType[i] == STAR) {
+				set.set(i + 1);
+			}
+		}
+		return set;
+	}
+
+	private State state(BitSet set) {
+		State s = states.get(set);
+		if (s == null) {
+			s = new State(set, tokenType, tokenAccept);
+			if (states.size() < MAX_STATES) {
+				State existing = states.putIfAbsent(set, s);
+				if (existing != null) {
+					s = existing;
+				}
+			}
+		}
+		return s;
+	}
+
+	private State next(State from, char c) {
+		State s;
+		if (c < 128) {
+			s = from.ascii[c];
+			if (s == null) {
+				s = step(from, c);
+				if (isCached(s)) {
+					from.ascii[c] = s;
+				}
+			}
+		} else {
+			Map<Character, State> other = from.other;
+			if (other == null) {
+				/* Losing a race here only loses some cached transitions */
+				other = from.other = new ConcurrentHashMap<Character, State>();
+			}
+			s = other.get(c);
+			if (s == null) {
+				s = step(from, c);
+				if (isCached(s)) {
+					other.put(c, s);
+				}
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Get whether a state is in the cache, and so may be linked to.
+	 */
+	private boolean isCached(State s) {
+		return states.get(s.positions) == s;
+	}
+
+	private State step(State from, char c) {
+		BitSet next = new BitSet(tokenType.length);
+		for (int i = from.positions.nextSetBit(0); i >= 0; i = from.positions.nextSetBit(i + 1)) {
+			if (tokenType[i] == STAR) {
+				next.set(i);
+			} else if (accepts(i, c)) {
+				next.set(i + 1);
+			}
+		}
+		return state(closure(next));
+	}
+
+	private final static class State {
+		private final BitSet positions;
+		private final boolean dead;
+		private final List<Object> matches;
+		private final State[] ascii = new State[128];
+		private volatile Map<Character, State> other;
+
+		State(BitSet positions, int[] tokenType, Object[] tokenAccept) {
+			this.positions = positions;
+			dead = positions.isEmpty();
+			List<Object> m = null;
+			for (int i = positions.nextSetBit(0); i >= 0; i = positions.nextSetBit(i + 1)) {
+				if (tokenType[i] == ACCEPT) {
+					if (m == null) {
+						m = new ArrayList<Object>(1);
+					}
+					if (!m.contains(tokenAccept[i])) {
+						m.add(tokenAccept[i]);
+					}
+				}
+			}
+			matches = m == null ? Collections.emptyList() : Collections.unmodifiableList(m);
+		}
+	}
+}
@@ -27,22 +27,111 @@ import com.sshtools.jfreedesktop.FreedesktopEntity;
  * MIME-info Database Specification</a>
  */
 public class GlobEntry implements FreedesktopEntity {
+	/**
+	 * Weight given to patterns that do not specify one, such as those read
+	 * from the legacy <i>globs</i> file.
+	 */
+	public final static int DEFAULT_WEIGHT = 50;
+
+	/**
+	 * A single pattern of a {@link GlobEntry}, along with the weight and case
+	 * sensitivity given to it in <i>globs2</i>.
+	 */
+	public static class Glob implements Comparable<Glob> {
+		private final GlobEntry entry;
+		private final String pattern;
+		private final int weight;
+		private final boolean caseSensitive;
+
+		Glob(GlobEntry entry, String pattern, int weight, boolean caseSensitive) {
+			this.entry = entry;
+			this.pattern = pattern;
+			this.weight = weight;
+			this.caseSensitive = caseSensitive;
+		}
+
+		public GlobEntry getEntry() {
+			return entry;
+		}
+
+		public String getPattern() {
+			return pattern;
+		}
+
+		public int getWeight() {
+			return weight;
+		}
+
+		public boolean isCaseSensitive() {
+			return caseSensitive;
+		}
+
+		/**
+		 * Orders by descending weight, then by descending pattern length, so
+		 * the preferred glob comes first.
+		 */
+		public int compareTo(Glob o) {
+			int i = Integer.compare(o.weight, weight);
+			return i == 0 ? Integer.compare(o.pattern.length(), pattern.length()) : i;
+		}
+
+		@Override
+		public String toString() {
+			return "Glob [entry=" + entry.getInternalName() + ", pattern=" + pattern + ", weight=" + weight
+					+ ", caseSensitive=" + caseSensitive + "]";
+		}
+	}
+
 	private String name;
 	private List<String> patterns;
+	private List<Glob> globs;
 
 	public GlobEntry(String name) {
 		this.name = name;
 		patterns = new ArrayList<String>();
+		globs = new ArrayList<Glob>();
 	}
 
 	public void addPattern(String pattern) {
-		patterns.add(pattern);
+		addPattern(pattern, DEFAULT_WEIGHT, false);
+	}
+
+	/**
+	 * Add a pattern with a weight and case sensitivity. Adding a pattern that
+	 * already exists has no effect.
+	 * 
+	 * @param pattern pattern
+	 * @param weight weight, from 0 to 100
+	 * @param caseSensitive whether the pattern is case sensitive
+	 * @return glob for the pattern
+	 */
+	public Glob addPattern(String pattern, int weight, boolean caseSensitive) {
+		Glob glob = getGlob(pattern);
+		if (glob == null) {
+			glob = new Glob(this, pattern, weight, caseSensitive);
+			patterns.add(pattern);
+			globs.add(glob);
+		}
+		return glob;
 	}
 
 	public Collection<String> getPatterns() {
 		return patterns;
 	}
 
+	public Collection<Glob> getGlobs() {
+		return globs;
+	}
+
+	public Glob getGlob(String pattern) {
+		for (Glob glob : globs) {
+			if (glob.pattern.equals(pattern)) {
+				return glob;
+			}
+		}
+		return null;
+	}
+
 	public String getInternalName() {
 		return name;
 	}
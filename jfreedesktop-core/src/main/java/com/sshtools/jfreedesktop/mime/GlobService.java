@@ -19,6 +19,16 @@ import com.sshtools.jfreedesktop.FreedesktopService;
 
 public interface GlobService extends FreedesktopService<GlobEntry> {
     public GlobEntry match(String pattern) throws MagicRequiredException;
+
+    /**
+     * Match some text, such as a file name, against all globs. The text is
+     * read in place, so no copy of it is made.
+     * 
+     * @param text text to match
+     * @return matching entry or <code>null</code> if there is no match
+     * @throws MagicRequiredException if more than one entry matches equally
+     */
+    public GlobEntry match(CharSequence text) throws MagicRequiredException;
     public GlobEntry getByMimeType(String mimeType);
 
 }
@@ -0,0 +1,105 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The tests of a magic or tree magic entry arranged as a tree. Tests are
+ * listed in file order, and each test is a child of the last test with an
+ * indent one less.
+ *
+ * @param <T> type of test
+ */
+final class IndentTree<T> {
+
+	/**
+	 * Gets the indent of a test.
+	 *
+	 * @param <T> type of test
+	 */
+	interface Indent<T> {
+		int getIndent(T test);
+	}
+
+	/**
+	 * A test and the tests nested beneath it.
+	 *
+	 * @param <T> type of test
+	 */
+	final static class Rule<T> {
+		final T test;
+		Rule<T>[] children;
+		private List<Rule<T>> building = new ArrayList<Rule<T>>();
+
+		private Rule(T test) {
+			this.test = test;
+		}
+
+		private void seal() {
+			children = toArray(building);
+			building = null;
+			for (Rule<T> child : children) {
+				child.seal();
+			}
+		}
+	}
+
+	final int modCount;
+	final Rule<T>[] roots;
+
+	/**
+	 * Build the tree.
+	 *
+	 * @param tests tests in file order
+	 * @param modCount modification count of the list the tests came from, so
+	 *            a tree may be rebuilt when the list changes
+	 * @param indent gets the indent of each test
+	 */
+	IndentTree(List<T> tests, int modCount, Indent<T> indent) {
+		this.modCount = modCount;
+		List<Rule<T>> roots = new ArrayList<Rule<T>>();
+		// The most recent rule at each depth
+		List<Rule<T>> parents = new ArrayList<Rule<T>>();
+		for (T test : tests) {
+			/*
+			 * A rule that is indented too deeply is attached to the deepest
+			 * rule available
+			 */
+			int depth = Math.max(0, Math.min(indent.getIndent(test), parents.size()));
+			Rule<T> rule = new Rule<T>(test);
+			if (depth == 0) {
+				roots.add(rule);
+			} else {
+				parents.get(depth - 1).building.add(rule);
+			}
+			while (parents.size() > depth) {
+				parents.remove(parents.size() - 1);
+			}
+			parents.add(rule);
+		}
+		this.roots = toArray(roots);
+		for (Rule<T> rule : this.roots) {
+			rule.seal();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> Rule<T>[] toArray(List<Rule<T>> rules) {
+		return rules.toArray((Rule<T>[]) new Rule<?>[rules.size()]);
+	}
+}
@@ -44,6 +44,13 @@ import com.sshtools.jfreedesktop.util.Log;
  * MIME-info Database Specification</a>
  */
 public class MIMEEntry extends DefaultHandler implements FreedesktopResource {
+	/**
+	 * Fills in the details of an entry that are read when first needed.
+	 */
+	interface Loader {
+		void load(MIMEEntry entry) throws IOException;
+	}
+
 	private final static List<String> streamable = Arrays.asList(
 			new String[] { "application", "audio", "image", "message", "model", "multipart", "video", "x-content", "x-epoc" });
 	private String name;
@@ -52,28 +59,202 @@ public class MIMEEntry extends DefaultHandler implements FreedesktopResource {
 	private List<String> subclasses;
 	private List<String> acronyms;
 	private List<String> expandedAcronyms;
+	private List<String> globs;
 	private String icon;
 	private String genericIcon;
 	private String family;
 	private String type;
+	/* The XML that anything not yet known is read from, when first needed */
+	private final Path file;
+	/* Or what fills in anything not yet known, when there is no XML */
+	private final Loader loader;
+	/* Whether aliases and subclasses were given rather than read from the XML */
+	private final boolean structureKnown;
+	/* Whether icons were given rather than read from the XML */
+	private final boolean iconsKnown;
+	private volatile boolean loaded;
 
+	/**
+	 * Create an entry for a type that is described by an XML file. The file
+	 * is not parsed until the comments, aliases, acronyms, subclasses or
+	 * icons are first needed, and then only once. If it cannot be parsed, a
+	 * warning is logged and the entry is left with just what is implied by
+	 * its name.
+	 * 
+	 * @param family family, the part of the type before the <code>/</code>
+	 * @param type type, the part of the type after the <code>/</code>
+	 * @param file XML file
+	 * @throws IOException on error
+	 */
 	public MIMEEntry(String family, String type, Path file) throws IOException {
+		this(family, type, file, null, false, false);
+	}
+
+	/**
+	 * Create an entry whose icons are already known, such as from the
+	 * <i>icons</i> and <i>generic-icons</i> files of a database, so that they
+	 * may be used without parsing the XML for the type.
+	 */
+	MIMEEntry(String family, String type, Path file, String icon, String genericIcon) {
+		this(family, type, file, null, false, true);
+		setIcons(icon, genericIcon);
+	}
+
+	/**
+	 * Create an entry whose icons, aliases and subclasses are already known,
+	 * such as from a {@link MimeCache}. The XML for the type is only parsed
+	 * when its comments or acronyms are first needed.
+	 */
+	MIMEEntry(String family, String type, Path file, Collection<String> parents, Collection<String> aliasTypes,
+			String icon, String genericIcon) {
+		this(family, type, file, null, true, true);
+		setIcons(icon, genericIcon);
+		for (String alias : aliasTypes) {
+			aliases.add(new AliasEntry(alias, name));
+		}
+		for (String parent : parents) {
+			if (!subclasses.contains(parent)) {
+				subclasses.add(parent);
+			}
+		}
+		addImplicitSubclasses();
+	}
+
+	private MIMEEntry(String family, String type, Path file, Loader loader, boolean structureKnown,
+			boolean iconsKnown) {
 		this.family = family;
 		this.type = type;
 		this.name = family + "/" + type;
-		this.icon = icon == null ? this.name.replace('/', '-') : icon;
+		icon = name.replace('/', '-');
+		this.file = file;
+		this.loader = loader;
+		this.structureKnown = structureKnown;
+		this.iconsKnown = iconsKnown;
 		acronyms = new ArrayList<String>();
 		expandedAcronyms = new ArrayList<String>();
+		globs = new ArrayList<String>();
 		aliases = new ArrayList<AliasEntry>();
 		subclasses = new ArrayList<String>();
 		comments = new Properties();
 		genericIcon = family + "-x-generic";
-		load(file);
+	}
+
+	/**
+	 * Create an entry that its creator fills in completely before it is
+	 * used, such as when streaming a package file. Nothing is read lazily.
+	 */
+	MIMEEntry(String family, String type) {
+		this(family, type, null, null, true, true);
+		loaded = true;
+	}
+
+	/**
+	 * Create an entry whose creator fills in its icons, aliases and all of
+	 * its subclasses before it is used, including those that are implied.
+	 * Comments, acronyms and globs are filled in by the loader when first
+	 * needed.
+	 */
+	MIMEEntry(String family, String type, Loader loader) {
+		this(family, type, null, loader, true, true);
+	}
+
+	void addComment(String language, String comment) {
+		comments.put(language == null ? "" : language, comment);
+	}
+
+	void addAcronym(String acronym) {
+		acronyms.add(acronym);
+	}
+
+	void addExpandedAcronym(String expandedAcronym) {
+		expandedAcronyms.add(expandedAcronym);
+	}
+
+	void addAlias(String alias) {
+		aliases.add(new AliasEntry(alias, name));
+	}
+
+	void addSubclass(String subclass) {
+		if (!subclasses.contains(subclass)) {
+			subclasses.add(subclass);
+		}
+	}
+
+	void addGlob(String pattern) {
+		if (!globs.contains(pattern)) {
+			globs.add(pattern);
+		}
+	}
+
+	void clearGlobs() {
+		globs.clear();
+	}
+
+	/**
+	 * Finish an entry created with {@link #MIMEEntry(String, String)}.
+	 */
+	void complete() {
+		addImplicitSubclasses();
+	}
+
+	void setIcons(String icon, String genericIcon) {
+		if (icon != null) {
+			this.icon = icon;
+		}
+		if (genericIcon != null) {
+			this.genericIcon = genericIcon;
+		}
+	}
+
+	private void addImplicitSubclasses() {
+		String parent = getImplicitParent(name);
+		if (parent != null) {
+			addSubclass(parent);
+		}
+	}
+
+	/**
+	 * Get the parent a type has implicitly, because of its family.
+	 * 
+	 * @param mimeType type
+	 * @return implicit parent or <code>null</code> if there is none
+	 */
+	static String getImplicitParent(String mimeType) {
 		// Some types are implicity subclasses
+		int idx = mimeType.indexOf('/');
+		String family = idx == -1 ? mimeType : mimeType.substring(0, idx);
 		if (family.equals("text")) {
-			subclasses.add("text/plain");
+			return "text/plain";
 		} else if (streamable.contains(family)) {
-			subclasses.add("application/octet-stream");
+			return "application/octet-stream";
+		}
+		return null;
+	}
+
+	/**
+	 * Read whatever was not given when the entry was created from its XML, at
+	 * most once. Threads that need the entry while it is being read wait for
+	 * it to finish.
+	 */
+	private void load() {
+		if (!loaded) {
+			synchronized (this) {
+				if (!loaded) {
+					try {
+						if (loader == null) {
+							build(parse(file));
+						} else {
+							loader.load(this);
+						}
+					} catch (IOException ioe) {
+						Log.warn("Failed to load " + name + (file == null ? "." : " from " + file + "."), ioe);
+					}
+					if (!structureKnown) {
+						addImplicitSubclasses();
+					}
+					loaded = true;
+				}
+			}
 		}
 	}
 
@@ -109,14 +290,21 @@ public class MIMEEntry extends DefaultHandler implements FreedesktopResource {
 
 	public Collection<String> getAcronyms() {
 		// TODO support localisation
+		load();
 		return acronyms;
 	}
 
 	public Collection<String> getSubclasses() {
+		if (!structureKnown) {
+			load();
+		}
 		return subclasses;
 	}
 
 	public Collection<AliasEntry> getAliases() {
+		if (!structureKnown) {
+			load();
+		}
 		return aliases;
 	}
 
@@ -128,15 +316,37 @@ public class MIMEEntry extends DefaultHandler implements FreedesktopResource {
 		return getComment((String) null);
 	}
 
+	/**
+	 * Get the glob patterns given for this type. These are hints only, file
+	 * names are matched using a {@link GlobService}.
+	 * 
+	 * @return glob patterns
+	 */
+	public Collection<String> getGlobs() {
+		load();
+		return globs;
+	}
+
 	public Collection<String> getExpandedAcronyms() {
 		// TODO support localisation
+		load();
 		return expandedAcronyms;
 	}
 
 	public String getComment(String language) {
+		load();
 		return comments == null ? null : comments.getProperty(language == null ? "" : language);
 	}
 
+	/**
+	 * Get the languages this type has a comment in. The comment that is not
+	 * localised is under the empty string.
+	 */
+	Collection<String> getCommentLanguages() {
+		load();
+		return comments.stringPropertyNames();
+	}
+
 	public String getComment(Locale locale) {
 		return getComment(locale == null ? (String) null : locale.getLanguage());
 	}
@@ -154,14 +364,20 @@ public class MIMEEntry extends DefaultHandler implements FreedesktopResource {
 	}
 
 	public String getIcon() {
+		if (!iconsKnown) {
+			load();
+		}
 		return icon;
 	}
 
 	public String getGenericIcon() {
+		if (!iconsKnown) {
+			load();
+		}
 		return genericIcon;
 	}
 
-	void load(Path file) throws IOException {
+	private static Document parse(Path file) throws IOException {
 		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
 		factory.setValidating(false);
 		factory.setNamespaceAware(true);
@@ -169,8 +385,7 @@ public class MIMEEntry extends DefaultHandler implements FreedesktopResource {
 			DocumentBuilder builder = factory.newDocumentBuilder();
 			InputStream in = Files.newInputStream(file);
 			try {
-				Document document = builder.parse(in);
-				build(document);
+				return builder.parse(in);
 			} finally {
 				in.close();
 			}
@@ -184,6 +399,26 @@ public class MIMEEntry extends DefaultHandler implements FreedesktopResource {
 	}
 
 	void build(Document document) throws IOException {
+		checkRoot(document);
+		if (!iconsKnown) {
+			buildIcon(document.getElementsByTagName("icon"));
+			buildGenericIcon(document.getElementsByTagName("generic-icon"));
+		}
+		if (!structureKnown) {
+			buildAlias(document.getElementsByTagName("alias"));
+			buildSubclass(document.getElementsByTagName("sub-class-of"));
+		}
+		NodeList children = document.getElementsByTagName("comment");
+		buildComments(children);
+		children = document.getElementsByTagName("acronym");
+		buildAcronym(children);
+		children = document.getElementsByTagName("expanded-acronym");
+		buildExpandedAcronym(children);
+		children = document.getElementsByTagName("glob");
+		buildGlobs(children);
+	}
+
+	private void checkRoot(Document document) throws IOException {
 		/*
 		 * Make sure the type attribute of the rool element is the same as the
 		 * mime type determined by the filename
@@ -198,20 +433,6 @@ public class MIMEEntry extends DefaultHandler implements FreedesktopResource {
 						+ "') does not match MIME type determined by filename ('" + name + "').");
 			}
 		}
-		NodeList children = document.getElementsByTagName("icon");
-		buildIcon(children);
-		children = document.getElementsByTagName("generic-icon");
-		buildGenericIcon(children);
-		children = document.getElementsByTagName("comment");
-		buildComments(children);
-		children = document.getElementsByTagName("alias");
-		buildAlias(children);
-		children = document.getElementsByTagName("sub-class-of");
-		buildSubclass(children);
-		children = document.getElementsByTagName("acronym");
-		buildAcronym(children);
-		children = document.getElementsByTagName("expanded-acronym");
-		buildExpandedAcronym(children);
 	}
 
 	void buildAcronym(NodeList children) {
@@ -240,6 +461,15 @@ public class MIMEEntry extends DefaultHandler implements FreedesktopResource {
 		}
 	}
 
+	void buildGlobs(NodeList children) {
+		for (int i = 0; i < children.getLength(); i++) {
+			Node patternAttr = children.item(i).getAttributes().getNamedItem("pattern");
+			if (patternAttr != null) {
+				addGlob(patternAttr.getTextContent());
+			}
+		}
+	}
+
 	void buildSubclass(NodeList children) {
 		for (int i = 0; i < children.getLength(); i++) {
 			Node child = children.item(i);
@@ -278,7 +508,7 @@ public class MIMEEntry extends DefaultHandler implements FreedesktopResource {
 				String lang = langAttr.getTextContent();
 				Log.warn("Localised icons not yet supported [" + lang + "].");
 			} else {
-				icon = child.getTextContent();
+				icon = iconName(child);
 			}
 		}
 	}
@@ -286,12 +516,19 @@ public class MIMEEntry extends DefaultHandler implements FreedesktopResource {
 	void buildGenericIcon(NodeList children) {
 		if (children.getLength() > 0) {
 			Node child = children.item(0);
-			genericIcon = child.getTextContent();
+			genericIcon = iconName(child);
 		}
 	}
 
+	private static String iconName(Node child) {
+		// The specification names icons with an attribute
+		Node nameAttr = child.getAttributes().getNamedItem("name");
+		return nameAttr != null ? nameAttr.getTextContent() : child.getTextContent();
+	}
+
 	@Override
 	public String toString() {
+		load();
 		return "MIMEEntry [name=" + name + ", aliases=" + aliases + ", comments=" + comments + ", subclasses=" + subclasses
 				+ ", acronyms=" + acronyms + ", expandedAcronyms=" + expandedAcronyms + ", icon=" + icon + ", genericIcon="
 				+ genericIcon + ", family=" + family + ", type=" + type + "]";
@@ -16,8 +16,13 @@
 package com.sshtools.jfreedesktop.mime;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import com.sshtools.jfreedesktop.FreedesktopService;
 
@@ -26,13 +31,158 @@ public interface MIMEService extends FreedesktopService<MIMEEntry> {
 
 	MIMEEntry getMimeTypeForFile(Path file, boolean useMagic) throws IOException;
 
+	/**
+	 * Classify a single file, in the same way as
+	 * {@link #getMimeTypeForFile(Path, boolean)}, also reporting which stage
+	 * of detection decided the type.
+	 * <p>
+	 * By default, the type is that of {@link #getMimeTypeForFile(Path, boolean)}
+	 * and the stage is inferred from it.
+	 * 
+	 * @param file file
+	 * @param useMagic whether to read the file content when the name alone is
+	 *            not enough
+	 * @return classification
+	 * @throws IOException on error reading the file
+	 */
+	default Classification classify(Path file, boolean useMagic) throws IOException {
+		return Classification.classify(this, file, useMagic);
+	}
+
+	/**
+	 * Classify many files in parallel. All files are first classified as far
+	 * as possible by name alone, then each file is checked, and only those
+	 * that are left have their content read, with a bounded number of files
+	 * touched at once. Errors are
+	 * reported in each {@link Classification} rather than thrown.
+	 * <p>
+	 * By default, each file is {@link #classify(Path, boolean) classified} in
+	 * turn.
+	 * 
+	 * @param files files
+	 * @param useMagic whether to read the file content when the name alone is
+	 *            not enough
+	 * @return classifications, in the same order as the files
+	 */
+	default List<Classification> classifyAll(Collection<Path> files, boolean useMagic) {
+		List<Classification> results = new ArrayList<Classification>(files.size());
+		for (Path file : files) {
+			try {
+				results.add(classify(file, useMagic));
+			} catch (IOException ioe) {
+				Classification result = new Classification(file);
+				result.fail(ioe);
+				results.add(result);
+			}
+		}
+		return results;
+	}
+
 	MIMEEntry getMimeTypeForPattern(String pattern)
 			throws MagicRequiredException;
 
+	/**
+	 * Get the MIME type for a file name using glob patterns only, for callers
+	 * that do not have access to the file itself. Only the last element of the
+	 * name is used, so keys such as <code>a/b/c.txt</code> may be passed as
+	 * is. The name is matched in place without being copied.
+	 * <p>
+	 * By default, the last element of the name is passed to
+	 * {@link #getMimeTypeForPattern(String)}.
+	 * 
+	 * @param name file name
+	 * @return entry or <code>null</code> if no glob matches
+	 * @throws MagicRequiredException if more than one type matches equally
+	 */
+	default MIMEEntry getMimeTypeForFileName(CharSequence name) throws MagicRequiredException {
+		return getMimeTypeForPattern(CharSequenceSlice.fileName(name, '/').toString());
+	}
+
+	/**
+	 * Get the MIME type of some content that is already in memory, such as an
+	 * upload, without writing it to a file. The name, if known, is tried
+	 * first, then the content is sniffed in the same way as
+	 * {@link #getMimeTypeForFile(Path, boolean)}.
+	 * <p>
+	 * By default, the content is written to a temporary file of the same name
+	 * that is passed to {@link #getMimeTypeForFile(Path, boolean)}.
+	 * 
+	 * @param name file name hint or <code>null</code> if not known
+	 * @param data the content, from the buffers position to its limit. The
+	 *            buffer is not changed.
+	 * @return entry
+	 * @throws UncheckedIOException if the default could not write the content
+	 */
+	default MIMEEntry getMimeTypeForContent(CharSequence name, ByteBuffer data) {
+		return ContentFile.getMimeType(this, name, data);
+	}
+
+	/**
+	 * Get the MIME type of some content that is already in memory. See
+	 * {@link #getMimeTypeForContent(CharSequence, ByteBuffer)}.
+	 * 
+	 * @param name file name hint or <code>null</code> if not known
+	 * @param data the content
+	 * @return entry
+	 */
+	default MIMEEntry getMimeTypeForContent(CharSequence name, byte[] data) {
+		return getMimeTypeForContent(name, ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Get the MIME type of the content of a stream. Only as many bytes as the
+	 * magic rules need are read, and only if the name is not enough. If the
+	 * stream supports {@link InputStream#mark(int)}, it is reset afterwards
+	 * so the caller may read the content from the start, otherwise those
+	 * bytes are consumed. The stream is not closed.
+	 * <p>
+	 * By default, the whole stream is consumed, to a temporary file of the same
+	 * name that is passed to {@link #getMimeTypeForFile(Path, boolean)}.
+	 * 
+	 * @param name file name hint or <code>null</code> if not known
+	 * @param in stream
+	 * @return entry
+	 * @throws IOException on error reading the stream
+	 */
+	default MIMEEntry getMimeTypeForContent(CharSequence name, InputStream in) throws IOException {
+		return ContentFile.getMimeType(this, name, in);
+	}
+
 	String getDefaultExtension(MIMEEntry mimeEntry);
 
 	Collection<String> getExtensionsForMimeType(MIMEEntry mimeEntry);
 
 	AliasEntry getAliasEntryForAlias(String alias);
 
+	/**
+	 * Get whether a type is the same as, or a subclass of, another type, such
+	 * as whether <i>text/x-csrc</i> is a kind of <i>text/plain</i>. All
+	 * ancestors are considered, including those every text or streamable type
+	 * has implicitly. Types are compared without case, and aliases are
+	 * resolved if an alias service is configured.
+	 * <p>
+	 * The default services compute the ancestors of every type once, when
+	 * first needed after the bases change, after which this takes constant
+	 * time. By default, they are computed from {@link #getAllEntities()} on
+	 * every call.
+	 * 
+	 * @param mimeType type
+	 * @param superType possible ancestor
+	 * @return whether the type is the same as or a subclass of the ancestor
+	 */
+	default boolean isSubclassOf(String mimeType, String superType) {
+		return SubclassIndex.of(this).isSubclassOf(mimeType, superType);
+	}
+
+	/**
+	 * Get all of the ancestors of a type, nearest first, including those it
+	 * has implicitly. See {@link #isSubclassOf(String, String)}.
+	 * 
+	 * @param mimeType type
+	 * @return ancestors, empty if there are none
+	 */
+	default List<String> getAncestors(String mimeType) {
+		return SubclassIndex.of(this).getAncestors(mimeType);
+	}
+
 }
@@ -0,0 +1,135 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the start of a file or stream into a buffer that is reused by each
+ * thread, so that all the magic rules that might apply to a file can be
+ * evaluated against a single read.
+ * <p>
+ * Large files may instead be memory mapped, in which case only the pages that
+ * the rules actually look at are read from disk, and no heap buffer is filled.
+ */
+final class MagicBuffer {
+	/*
+	 * Upper bound on the number of bytes read from any one file, whatever the
+	 * magic rules ask for. Rules that look beyond this just do not match.
+	 */
+	final static int MAX_EXTENT = 16 * 1024 * 1024;
+
+	/**
+	 * Default size at or above which a file is memory mapped rather than read.
+	 */
+	final static long DEFAULT_MAP_THRESHOLD = 8 * 1024 * 1024;
+
+	private final static ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>();
+
+	private MagicBuffer() {
+	}
+
+	/**
+	 * Read up to <code>length</code> bytes from the start of a file. Fewer
+	 * bytes are returned if the file is shorter. The returned buffer has its
+	 * position at zero and its limit at the number of bytes read. It belongs
+	 * to the calling thread, and is only valid until that thread reads
+	 * another file.
+	 *
+	 * @param file file
+	 * @param length maximum number of bytes to read
+	 * @return buffer
+	 * @throws IOException on error
+	 */
+	static ByteBuffer read(Path file, int length) throws IOException {
+		return read(file, length, -1);
+	}
+
+	/**
+	 * Read up to <code>length</code> bytes from the start of a file, as
+	 * {@link #read(Path, int)}, unless the file is at least
+	 * <code>mapThreshold</code> bytes long, in which case the same region is
+	 * memory mapped instead. A mapped buffer is not shared with the thread, and
+	 * stays valid until it is garbage collected.
+	 *
+	 * @param file file
+	 * @param length maximum number of bytes to read
+	 * @param mapThreshold size at or above which files are mapped, or a
+	 *            negative number to never map
+	 * @return buffer
+	 * @throws IOException on error
+	 */
+	static ByteBuffer read(Path file, int length, long mapThreshold) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (mapThreshold >= 0 && file.getFileSystem() == FileSystems.getDefault()) {
+				long size = channel.size();
+				if (size >= mapThreshold) {
+					// Pages are only read when a rule looks at them
+					return channel.map(MapMode.READ_ONLY, 0,
+							Math.min(size, Math.min(Math.max(length, 0), MAX_EXTENT)));
+				}
+			}
+			ByteBuffer buf = buffer(length);
+			while (buf.hasRemaining() && channel.read(buf) != -1) {
+			}
+			buf.flip();
+			return buf;
+		}
+	}
+
+	/**
+	 * Read up to <code>length</code> bytes from a stream. Fewer bytes are
+	 * returned if the stream ends first. The stream is not closed. The
+	 * returned buffer has the same lifetime as those returned by
+	 * {@link #read(Path, int)}.
+	 *
+	 * @param in stream
+	 * @param length maximum number of bytes to read
+	 * @return buffer
+	 * @throws IOException on error
+	 */
+	static ByteBuffer read(InputStream in, int length) throws IOException {
+		ByteBuffer buf = buffer(length);
+		byte[] arr = buf.array();
+		int total = 0;
+		int limit = buf.limit();
+		int read;
+		while (total < limit && (read = in.read(arr, total, limit - total)) != -1) {
+			total += read;
+		}
+		buf.limit(total);
+		return buf;
+	}
+
+	private static ByteBuffer buffer(int length) {
+		length = Math.min(Math.max(length, 0), MAX_EXTENT);
+		ByteBuffer buf = BUFFERS.get();
+		if (buf == null || buf.capacity() < length) {
+			buf = ByteBuffer.allocate(length);
+			BUFFERS.set(buf);
+		}
+		buf.clear();
+		buf.limit(length);
+		return buf;
+	}
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.sshtools.jfreedesktop.mime.IndentTree.Rule;
+import com.sshtools.jfreedesktop.mime.MagicEntry.Pattern;
+
+/**
+ * Finds the highest priority {@link MagicEntry} that matches some data,
+ * without evaluating every entry.
+ * <p>
+ * Entries are numbered in priority order. Each top level rule is then indexed
+ * by one byte that it requires at a fixed position (the first byte of its
+ * value that is not masked), so a lookup reads a single byte at each indexed
+ * position and collects the entries that could possibly match.
+ * <p>
+ * Patterns that search a wide range are found by a single
+ * {@link MagicRangeSearch} over the data, which both selects the entries whose
+ * top level rule was found, and answers for those patterns wherever they occur
+ * in the rule trees. Only the selected entries, plus any entries with a rule
+ * that could not be indexed either way, are evaluated, in priority order,
+ * until one matches.
+ */
+final class MagicDispatch {
+	/*
+	 * Rules that may match at up to this many offsets are indexed at each of
+	 * them, rules with larger ranges are always evaluated
+	 */
+	private final static int MAX_INDEXED_RANGE = 16;
+
+	/*
+	 * Ranged patterns whose window ends within this many bytes share one
+	 * search. The few that reach further are cheaper to scan on their own
+	 * than to make every search read that far
+	 */
+	private final static int MAX_SHARED_WINDOW = 1024;
+
+	private final MagicEntry[] entries;
+	private final int[] offsets;
+	private final BitSet[][] byByte;
+	private final BitSet unindexed;
+	private final MagicRangeSearch ranged = new MagicRangeSearch();
+	private final List<BitSet> byRanged = new ArrayList<BitSet>();
+	private final BitSet rangedEntries;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param entries entries, with those defined first preferred when they
+	 *            have the same priority
+	 */
+	MagicDispatch(List<MagicEntry> entries) {
+		List<MagicEntry> ordered = new ArrayList<MagicEntry>(entries);
+		// Stable, so file order is kept within a priority
+		Collections.sort(ordered, new Comparator<MagicEntry>() {
+			public int compare(MagicEntry o1, MagicEntry o2) {
+				return Integer.compare(o2.getPriority(), o1.getPriority());
+			}
+		});
+		this.entries = ordered.toArray(new MagicEntry[0]);
+		unindexed = new BitSet(this.entries.length);
+		Map<Long, BitSet[]> positions = new TreeMap<Long, BitSet[]>();
+		for (int i = 0; i < this.entries.length; i++) {
+			for (Rule<Pattern> rule : this.entries[i].rules()) {
+				if (!index(i, rule.test, positions) && !indexRanged(i, rule.test)) {
+					unindexed.set(i);
+				}
+				addRanged(rule.children);
+			}
+		}
+		ranged.compile();
+		rangedEntries = new BitSet(this.entries.length);
+		for (BitSet bucket : byRanged) {
+			if (bucket != null) {
+				rangedEntries.or(bucket);
+			}
+		}
+		offsets = new int[positions.size()];
+		byByte = new BitSet[positions.size()][];
+		int idx = 0;
+		for (Map.Entry<Long, BitSet[]> en : positions.entrySet()) {
+			offsets[idx] = en.getKey().intValue();
+			byByte[idx++] = en.getValue();
+		}
+	}
+
+	/**
+	 * Get the highest priority entry that matches data read from the start of
+	 * a file.
+	 *
+	 * @param data data, starting at index zero
+	 * @return entry or <code>null</code> if none match
+	 */
+	MagicEntry match(ByteBuffer data) {
+		if (data.order() != ByteOrder.BIG_ENDIAN) {
+			data = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+		}
+		BitSet candidates = (BitSet) unindexed.clone();
+		int limit = data.limit();
+		for (int i = 0; i < offsets.length && offsets[i] < limit; i++) {
+			BitSet bucket = byByte[i][data.get(offsets[i]) & 0xff];
+			if (bucket != null) {
+				candidates.or(bucket);
+			}
+		}
+		/*
+		 * Entries that can only be selected by the ranged search are visited
+		 * too, but the search is only made once one of them is reached, so it
+		 * is skipped when a higher priority entry matches first
+		 */
+		BitSet visit = (BitSet) candidates.clone();
+		visit.or(rangedEntries);
+		MagicRangeSearch.Hits hits = null;
+		for (int i = visit.nextSetBit(0); i >= 0; i = visit.nextSetBit(i + 1)) {
+			if (!candidates.get(i)) {
+				if (hits != null) {
+					continue;
+				}
+				hits = ranged.search(data);
+				BitSet found = hits.getBits();
+				for (int id = found.nextSetBit(0); id >= 0 && id < byRanged.size(); id = found.nextSetBit(id + 1)) {
+					BitSet bucket = byRanged.get(id);
+					if (bucket != null) {
+						candidates.or(bucket);
+					}
+				}
+				if (!candidates.get(i)) {
+					continue;
+				}
+			}
+			if (entries[i].match(data, hits)) {
+				return entries[i];
+			}
+		}
+		return null;
+	}
+
+	private boolean indexRanged(int entry, Pattern pattern) {
+		if (!isShared(pattern)) {
+			return false;
+		}
+		int id = ranged.add(pattern);
+		while (byRanged.size() <= id) {
+			byRanged.add(null);
+		}
+		if (byRanged.get(id) == null) {
+			byRanged.set(id, new BitSet(entries.length));
+		}
+		byRanged.get(id).set(entry);
+		return true;
+	}
+
+	/**
+	 * Add the ranged patterns of nested rules to the search, so their result
+	 * is known without scanning for each of them separately.
+	 */
+	private void addRanged(Rule<Pattern>[] rules) {
+		for (Rule<Pattern> rule : rules) {
+			if (isShared(rule.test)) {
+				ranged.add(rule.test);
+			}
+			addRanged(rule.children);
+		}
+	}
+
+	private static boolean isShared(Pattern pattern) {
+		return pattern.getRangeLength() > MAX_INDEXED_RANGE && pattern.getExtent() <= MAX_SHARED_WINDOW
+				&& MagicRangeSearch.isSearchable(pattern);
+	}
+
+	private boolean index(int entry, Pattern pattern, Map<Long, BitSet[]> positions) {
+		int length = pattern.getValueLength();
+		int range = Math.max(pattern.getRangeLength(), 1);
+		if (range > MAX_INDEXED_RANGE) {
+			return false;
+		}
+		// Find a byte that must match exactly
+		int at = 0;
+		while (at < length && pattern.maskAt(at) != (byte) 0xff) {
+			at++;
+		}
+		if (at == length) {
+			return false;
+		}
+		long first = pattern.getOffset() + at;
+		if (first + range - 1 >= MagicBuffer.MAX_EXTENT) {
+			return false;
+		}
+		for (long offset = first; offset < first + range; offset++) {
+			BitSet[] buckets = positions.get(offset);
+			if (buckets == null) {
+				buckets = new BitSet[256];
+				positions.put(offset, buckets);
+			}
+			int b = pattern.valueAt(at) & 0xff;
+			if (buckets[b] == null) {
+				buckets[b] = new BitSet(entries.length);
+			}
+			buckets[b].set(entry);
+		}
+		return true;
+	}
+}
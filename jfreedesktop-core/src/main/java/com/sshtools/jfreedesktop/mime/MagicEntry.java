@@ -17,24 +17,34 @@ package com.sshtools.jfreedesktop.mime;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.ByteOrder;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import com.sshtools.jfreedesktop.FreedesktopEntity;
 import com.sshtools.jfreedesktop.mime.MagicEntry.Pattern;
 
 @SuppressWarnings("serial")
 public class MagicEntry extends ArrayList<Pattern> implements FreedesktopEntity, Comparable<MagicEntry> {
+	/**
+	 * A single magic test. Values and masks loaded by a magic service are
+	 * stored in one array shared by all the patterns of a database, so
+	 * {@link #getValue()} and {@link #getMask()} return copies.
+	 */
 	public static class Pattern implements Comparable<Pattern> {
 		private int indent = 0;
 		private long offset;
-		private byte[] value;
-		private byte[] mask;
+		private byte[] values = new byte[0];
+		private int valueOffset;
+		/* null when every bit of the value is significant */
+		private byte[] masks;
+		private int maskOffset;
 		private int wordSize = 1;
 		private int rangeLength = 1;
 		private int valueLength;
+		/* The value and mask as compared, built when first needed */
+		private volatile long[] words;
 
 		public int getIndent() {
 			return indent;
@@ -52,20 +62,41 @@ public class MagicEntry extends ArrayList<Pattern> implements FreedesktopEntity,
 			this.offset = offset;
 		}
 
+		/**
+		 * Get a copy of the value.
+		 *
+		 * @return value
+		 */
 		public byte[] getValue() {
-			return value;
+			return Arrays.copyOfRange(values, valueOffset, valueOffset + valueLength);
 		}
 
 		public void setValue(byte[] value) {
-			this.value = value;
+			words = null;
+			values = value;
+			valueOffset = 0;
+			valueLength = value.length;
 		}
 
+		/**
+		 * Get a copy of the mask. If the pattern has no mask, every bit is
+		 * set.
+		 *
+		 * @return mask
+		 */
 		public byte[] getMask() {
-			return mask;
+			if (masks == null) {
+				byte[] mask = new byte[valueLength];
+				Arrays.fill(mask, (byte) 0xff);
+				return mask;
+			}
+			return Arrays.copyOfRange(masks, maskOffset, maskOffset + valueLength);
 		}
 
 		public void setMask(byte[] mask) {
-			this.mask = mask;
+			words = null;
+			masks = mask;
+			maskOffset = 0;
 		}
 
 		public int getWordSize() {
@@ -73,6 +104,7 @@ public class MagicEntry extends ArrayList<Pattern> implements FreedesktopEntity,
 		}
 
 		public void setWordSize(int wordSize) {
+			words = null;
 			this.wordSize = wordSize;
 		}
 
@@ -88,6 +120,138 @@ public class MagicEntry extends ArrayList<Pattern> implements FreedesktopEntity,
 			return Integer.valueOf(indent).compareTo(o.indent);
 		}
 
+		/**
+		 * Get the number of bytes from the start of a file that are needed to
+		 * evaluate this pattern, i.e. the end of the last possible match.
+		 *
+		 * @return extent
+		 */
+		public long getExtent() {
+			return offset + Math.max(rangeLength, 1) - 1 + valueLength;
+		}
+
+		/**
+		 * Test if this pattern matches data read from the start of a file.
+		 * Matches that would extend past the limit of the buffer fail.
+		 *
+		 * @param data data, starting at index zero
+		 * @return matches
+		 */
+		public boolean match(ByteBuffer data) {
+			if (data.order() != ByteOrder.BIG_ENDIAN) {
+				data = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+			}
+			long[] words = words();
+			int limit = data.limit();
+			long last = Math.min(offset + Math.max(rangeLength, 1) - 1, (long) limit - valueLength);
+			if (offset > last) {
+				return false;
+			}
+			int start = (int) offset;
+			int end = (int) last;
+			if (end - start >= 8 && (words[1] >>> 56) == 0xff) {
+				return scan(data, start, end, words);
+			}
+			for (int at = start; at <= end; at++) {
+				if (matchAt(data, at, words)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Search a range for a pattern whose first byte must match exactly.
+		 * Eight candidate positions are tested at once for that byte, and only
+		 * positions where it occurs are compared in full.
+		 */
+		private static boolean scan(ByteBuffer data, int start, int end, long[] words) {
+			long first = (words[0] >>> 56) * 0x0101010101010101L;
+			int limit = data.limit();
+			int at = start;
+			while (at <= end) {
+				if (at + 7 <= end && at + 8 <= limit) {
+					long x = data.getLong(at) ^ first;
+					// High bit set in every byte of x that is zero
+					long found = (x - 0x0101010101010101L) & ~x & 0x8080808080808080L;
+					while (found != 0) {
+						int idx = (63 - Long.numberOfTrailingZeros(found)) >>> 3;
+						if (matchAt(data, at + idx, words)) {
+							return true;
+						}
+						found &= found - 1;
+					}
+					at += 8;
+				} else {
+					if (matchAt(data, at, words)) {
+						return true;
+					}
+					at++;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Compare the whole pattern at one position, eight bytes at a time.
+		 * The position must leave room for the whole value before the limit.
+		 */
+		private static boolean matchAt(ByteBuffer data, int at, long[] words) {
+			int limit = data.limit();
+			for (int w = 0, i = at; w < words.length; w += 2, i += 8) {
+				long d;
+				if (i + 8 <= limit) {
+					d = data.getLong(i);
+				} else {
+					// Bytes past the limit are beyond the value, so are masked
+					d = 0;
+					for (int b = 0; b < 8 && i + b < limit; b++) {
+						d |= (data.get(i + b) & 0xffL) << ((7 - b) * 8);
+					}
+				}
+				if ((d & words[w + 1]) != words[w]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Get the value and mask as they are compared, packed big endian into
+		 * pairs of longs (value then mask, with the value already masked).
+		 * Patterns with a word size of 2 or 4 are in host byte order, so on a
+		 * little endian host their value and mask are swapped first.
+		 */
+		private long[] words() {
+			long[] w = words;
+			if (w == null) {
+				byte[] value = getValue();
+				byte[] mask = getMask();
+				if ((wordSize == 2 || wordSize == 4) && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+					swap(value, wordSize);
+					swap(mask, wordSize);
+				}
+				w = new long[Math.max(1, (valueLength + 7) / 8) * 2];
+				for (int i = 0; i < valueLength; i++) {
+					int shift = (7 - (i & 7)) * 8;
+					w[(i >>> 3) * 2] |= (value[i] & mask[i] & 0xffL) << shift;
+					w[(i >>> 3) * 2 + 1] |= (mask[i] & 0xffL) << shift;
+				}
+				words = w;
+			}
+			return w;
+		}
+
+		private static void swap(byte[] b, int wordSize) {
+			for (int i = 0; i + wordSize <= b.length; i += wordSize) {
+				for (int l = i, h = i + wordSize - 1; l < h; l++, h--) {
+					byte t = b[l];
+					b[l] = b[h];
+					b[h] = t;
+				}
+			}
+		}
+
 		@Override
 		public String toString() {
 			return "Pattern [valueLength=" + valueLength + ", value=" + debugValue(getValue()) + ", mask=" + debugValue(getMask())
@@ -99,15 +263,61 @@ public class MagicEntry extends ArrayList<Pattern> implements FreedesktopEntity,
 		}
 
 		public void setValueLength(int valueLength) {
+			words = null;
 			this.valueLength = valueLength;
-			value = new byte[valueLength];
-			mask = new byte[valueLength];
-			for (int in = 0; in < mask.length; in++) {
-				mask[in] = (byte) 0xff;
-			}
+			values = new byte[valueLength];
+			valueOffset = 0;
+			masks = null;
+		}
+
+		/**
+		 * Get a byte of the value as it is compared, i.e. after any swapping
+		 * for the word size and with the mask applied.
+		 */
+		byte valueAt(int index) {
+			return (byte) (words()[(index >>> 3) * 2] >>> ((7 - (index & 7)) * 8));
+		}
+
+		/**
+		 * Get a byte of the mask as it is compared, i.e. after any swapping
+		 * for the word size.
+		 */
+		byte maskAt(int index) {
+			return (byte) (words()[(index >>> 3) * 2 + 1] >>> ((7 - (index & 7)) * 8));
+		}
+
+		/**
+		 * Get whether the pattern has a mask, rather than comparing every bit.
+		 */
+		boolean hasMask() {
+			return masks != null;
+		}
+
+		/**
+		 * Point the value, and optionally the mask, at a shared arena.
+		 *
+		 * @param arena arena
+		 * @param valueOffset offset of the value in the arena
+		 * @param valueLength length of the value (and mask)
+		 * @param maskOffset offset of the mask in the arena or -1 for no mask
+		 */
+		void setArena(byte[] arena, int valueOffset, int valueLength, int maskOffset) {
+			words = null;
+			this.values = arena;
+			this.valueOffset = valueOffset;
+			this.valueLength = valueLength;
+			this.masks = maskOffset == -1 ? null : arena;
+			this.maskOffset = maskOffset;
 		}
 	}
 
+	private final static IndentTree.Indent<Pattern> INDENT = new IndentTree.Indent<Pattern>() {
+		@Override
+		public int getIndent(Pattern test) {
+			return test.getIndent();
+		}
+	};
+
 	static String debugValue(byte[] b) {
 		StringBuilder bui = new StringBuilder("[");
 		for (byte a : b) {
@@ -122,6 +332,7 @@ public class MagicEntry extends ArrayList<Pattern> implements FreedesktopEntity,
 
 	private String mimeType;
 	private int priority;
+	private transient volatile IndentTree<Pattern> rules;
 
 	public MagicEntry(String mimeType, int priority) {
 		this.mimeType = mimeType;
@@ -147,33 +358,71 @@ public class MagicEntry extends ArrayList<Pattern> implements FreedesktopEntity,
 		return mimeType;
 	}
 
+	/**
+	 * Get the number of bytes from the start of a file that are needed to
+	 * evaluate every pattern of this entry.
+	 *
+	 * @return extent
+	 */
+	public int getExtent() {
+		long extent = 0;
+		for (Pattern p : this) {
+			extent = Math.max(extent, p.getExtent());
+		}
+		return (int) Math.min(extent, MagicBuffer.MAX_EXTENT);
+	}
+
 	public boolean match(Path file) throws IOException {
-		FileChannel s = FileChannel.open(file, StandardOpenOption.READ);
-		try {
-			for (Pattern p : this) {
-				byte[] val = p.getValue();
-				byte[] mask = p.getMask();
-				// Read in portion of file
-				ByteBuffer buf = ByteBuffer.allocate(p.getRangeLength() + val.length);
-				s.position(p.getOffset());
-				do {
-					s.read(buf);
-				} while (buf.hasRemaining());
-				byte[] bufArr = buf.array();
-				int valIdx = 0;
-				for (int i = 0; i < bufArr.length; i++) {
-					if ((bufArr[i] & mask[valIdx]) == (val[valIdx] & mask[valIdx])) {
-						valIdx++;
-						if (valIdx == val.length) {
-							return true;
-						}
-					} else {
-						valIdx = 0;
-					}
-				}
+		return match(MagicBuffer.read(file, getExtent()));
+	}
+
+	/**
+	 * Test if this entry matches data read from the start of a file. The data
+	 * is not consumed, so the same buffer may be tested against many entries.
+	 * <p>
+	 * Patterns form a tree according to their indent. The entry matches if any
+	 * top level pattern matches, and a pattern with children only matches if
+	 * one of its children also matches. Children are only evaluated when their
+	 * parent matches, and siblings are tried in file order until one matches.
+	 *
+	 * @param data data, starting at index zero
+	 * @return matches
+	 */
+	public boolean match(ByteBuffer data) {
+		return match(data, rules(), null);
+	}
+
+	/**
+	 * Test if this entry matches, taking the result for any ranged patterns
+	 * from a search that has already been made over the same data.
+	 *
+	 * @param data data, starting at index zero
+	 * @param hits result of searching for ranged patterns
+	 * @return matches
+	 */
+	boolean match(ByteBuffer data, MagicRangeSearch.Hits hits) {
+		return match(data, rules(), hits);
+	}
+
+	/**
+	 * Get the top level rules of this entry, compiled from the flat list of
+	 * patterns. They are compiled again if the list has changed.
+	 */
+	IndentTree.Rule<Pattern>[] rules() {
+		IndentTree<Pattern> tree = rules;
+		if (tree == null || tree.modCount != modCount) {
+			tree = new IndentTree<Pattern>(this, modCount, INDENT);
+			rules = tree;
+		}
+		return tree.roots;
+	}
+
+	private static boolean match(ByteBuffer data, IndentTree.Rule<Pattern>[] rules, MagicRangeSearch.Hits hits) {
+		for (IndentTree.Rule<Pattern> rule : rules) {
+			boolean matches = hits == null ? rule.test.match(data) : hits.match(rule.test, data);
+			if (matches && (rule.children.length == 0 || match(data, rule.children, hits))) {
+				return true;
 			}
-		} finally {
-			s.close();
 		}
 		return false;
 	}
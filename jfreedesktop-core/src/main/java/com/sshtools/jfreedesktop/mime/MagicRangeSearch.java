@@ -0,0 +1,259 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sshtools.jfreedesktop.mime.MagicEntry.Pattern;
+
+/**
+ * Searches for many ranged magic patterns at once. Patterns that may match
+ * anywhere in a window of a file are compiled into a single Aho-Corasick
+ * automaton, so one pass over the data finds every pattern that occurs inside
+ * its own window, instead of scanning the window again for each pattern.
+ * <p>
+ * Only patterns whose every byte must match exactly can be added. The root
+ * state has a transition for every byte, other states keep their transitions
+ * sorted and fall back along failure links.
+ */
+final class MagicRangeSearch {
+	private final Map<Pattern, Integer> ids = new IdentityHashMap<Pattern, Integer>();
+	private final List<Pattern> patterns = new ArrayList<Pattern>();
+
+	private int[] rootNext;
+	private byte[][] keys;
+	private int[][] next;
+	private int[] fail;
+	private int[][] output;
+	private int[] lengths;
+	private long[] firstStart;
+	private long[] lastStart;
+	private int from;
+	private long to;
+
+	/**
+	 * Test if a pattern can be searched for by this automaton.
+	 *
+	 * @param pattern pattern
+	 * @return can be added
+	 */
+	static boolean isSearchable(Pattern pattern) {
+		int length = pattern.getValueLength();
+		if (length == 0 || pattern.getOffset() > Integer.MAX_VALUE) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (pattern.maskAt(i) != (byte) 0xff) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Add a pattern. Must be called before {@link #compile()}. Adding the
+	 * same pattern twice has no effect.
+	 *
+	 * @param pattern pattern
+	 * @return identifier of the pattern, as reported by {@link Hits#getBits()}
+	 */
+	int add(Pattern pattern) {
+		Integer id = ids.get(pattern);
+		if (id == null) {
+			id = patterns.size();
+			ids.put(pattern, id);
+			patterns.add(pattern);
+		}
+		return id;
+	}
+
+	boolean isEmpty() {
+		return patterns.isEmpty();
+	}
+
+	/**
+	 * Finish adding patterns and build the automaton.
+	 *
+	 * @return this
+	 */
+	MagicRangeSearch compile() {
+		int count = patterns.size();
+		lengths = new int[count];
+		firstStart = new long[count];
+		lastStart = new long[count];
+		from = Integer.MAX_VALUE;
+		to = 0;
+		// Build the trie
+		List<byte[]> trieKeys = new ArrayList<byte[]>();
+		List<int[]> trieNext = new ArrayList<int[]>();
+		List<int[]> trieOutput = new ArrayList<int[]>();
+		trieKeys.add(new byte[0]);
+		trieNext.add(new int[0]);
+		trieOutput.add(new int[0]);
+		for (int id = 0; id < count; id++) {
+			Pattern p = patterns.get(id);
+			lengths[id] = p.getValueLength();
+			firstStart[id] = p.getOffset();
+			lastStart[id] = p.getOffset() + Math.max(p.getRangeLength(), 1) - 1;
+			from = (int) Math.min(from, firstStart[id]);
+			to = Math.max(to, lastStart[id] + lengths[id]);
+			int state = 0;
+			for (int i = 0; i < lengths[id]; i++) {
+				byte b = p.valueAt(i);
+				byte[] k = trieKeys.get(state);
+				int idx = Arrays.binarySearch(k, b);
+				if (idx >= 0) {
+					state = trieNext.get(state)[idx];
+				} else {
+					idx = -idx - 1;
+					int created = trieKeys.size();
+					trieKeys.add(new byte[0]);
+					trieNext.add(new int[0]);
+					trieOutput.add(new int[0]);
+					trieKeys.set(state, insert(k, idx, b));
+					trieNext.set(state, insert(trieNext.get(state), idx, created));
+					state = created;
+				}
+			}
+			trieOutput.set(state, append(trieOutput.get(state), id));
+		}
+		int states = trieKeys.size();
+		keys = trieKeys.toArray(new byte[0][]);
+		next = trieNext.toArray(new int[0][]);
+		output = trieOutput.toArray(new int[0][]);
+		fail = new int[states];
+		rootNext = new int[256];
+		for (int i = 0; i < keys[0].length; i++) {
+			rootNext[keys[0][i] & 0xff] = next[0][i];
+		}
+		// Failure links, breadth first so shorter suffixes are done first
+		int[] queue = new int[states];
+		int head = 0;
+		int tail = 0;
+		for (int child : next[0]) {
+			queue[tail++] = child;
+		}
+		while (head < tail) {
+			int state = queue[head++];
+			for (int i = 0; i < keys[state].length; i++) {
+				byte b = keys[state][i];
+				int child = next[state][i];
+				fail[child] = step(fail[state], b);
+				// A match of a suffix is also a match here
+				for (int id : output[fail[child]]) {
+					output[child] = append(output[child], id);
+				}
+				queue[tail++] = child;
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Search data read from the start of a file.
+	 *
+	 * @param data data, starting at index zero
+	 * @return patterns that occur inside their window
+	 */
+	Hits search(ByteBuffer data) {
+		BitSet hits = new BitSet(lengths.length);
+		int end = (int) Math.min(data.limit(), to);
+		int state = 0;
+		for (int i = from; i < end; i++) {
+			state = step(state, data.get(i));
+			for (int id : output[state]) {
+				long start = i - lengths[id] + 1;
+				if (start >= firstStart[id] && start <= lastStart[id]) {
+					hits.set(id);
+				}
+			}
+		}
+		return new Hits(hits);
+	}
+
+	private int step(int state, byte b) {
+		while (state != 0) {
+			int idx = Arrays.binarySearch(keys[state], b);
+			if (idx >= 0) {
+				return next[state][idx];
+			}
+			state = fail[state];
+		}
+		return rootNext[b & 0xff];
+	}
+
+	private static byte[] insert(byte[] arr, int idx, byte b) {
+		byte[] n = new byte[arr.length + 1];
+		System.arraycopy(arr, 0, n, 0, idx);
+		n[idx] = b;
+		System.arraycopy(arr, idx, n, idx + 1, arr.length - idx);
+		return n;
+	}
+
+	private static int[] insert(int[] arr, int idx, int v) {
+		int[] n = new int[arr.length + 1];
+		System.arraycopy(arr, 0, n, 0, idx);
+		n[idx] = v;
+		System.arraycopy(arr, idx, n, idx + 1, arr.length - idx);
+		return n;
+	}
+
+	private static int[] append(int[] arr, int v) {
+		int[] n = Arrays.copyOf(arr, arr.length + 1);
+		n[arr.length] = v;
+		return n;
+	}
+
+	/**
+	 * The result of one search, which answers for the searched patterns
+	 * without scanning the data again.
+	 */
+	final class Hits {
+		private final BitSet bits;
+
+		private Hits(BitSet bits) {
+			this.bits = bits;
+		}
+
+		/**
+		 * Get the identifiers of the patterns that matched.
+		 *
+		 * @return identifiers
+		 */
+		BitSet getBits() {
+			return bits;
+		}
+
+		/**
+		 * Test a pattern, using the result of the search if the pattern was
+		 * part of it.
+		 *
+		 * @param pattern pattern
+		 * @param data data
+		 * @return matches
+		 */
+		boolean match(Pattern pattern, ByteBuffer data) {
+			Integer id = ids.get(pattern);
+			return id == null ? pattern.match(data) : bits.get(id);
+		}
+	}
+}
@@ -15,8 +15,42 @@
  */
 package com.sshtools.jfreedesktop.mime;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
 import com.sshtools.jfreedesktop.FreedesktopService;
 
 public interface MagicService extends FreedesktopService<MagicEntry> {
 
+	/**
+	 * Get the number of bytes from the start of a file that are needed to
+	 * evaluate every loaded magic rule. Reading this much of a file once is
+	 * enough to test it against any entry using
+	 * {@link MagicEntry#match(java.nio.ByteBuffer)}.
+	 * 
+	 * @return extent
+	 */
+	int getExtent();
+
+	/**
+	 * Find the highest priority entry whose rules match the content of a file.
+	 * The file is read once, up to the {@link #getExtent() extent} of the
+	 * rules.
+	 * 
+	 * @param file file
+	 * @return entry or <code>null</code> if no entry matches
+	 * @throws IOException on error reading the file
+	 */
+	MagicEntry match(Path file) throws IOException;
+
+	/**
+	 * Find the highest priority entry whose rules match data read from the
+	 * start of a file. The data is not consumed.
+	 * 
+	 * @param data data, starting at index zero
+	 * @return entry or <code>null</code> if no entry matches
+	 */
+	MagicEntry match(ByteBuffer data);
+
 }
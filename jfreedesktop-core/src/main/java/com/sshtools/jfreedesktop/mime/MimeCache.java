@@ -0,0 +1,433 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.sshtools.jfreedesktop.mime.MagicEntry.Pattern;
+import com.sshtools.jfreedesktop.util.Log;
+
+/**
+ * Reads the binary <i>mime.cache</i> that <i>update-mime-database</i> writes
+ * alongside the text sources of a shared MIME-info database. The cache holds
+ * the aliases, parents, globs, magic and icons of every type in one indexed
+ * file, so it can be mapped and decoded far faster than the text files and
+ * per type XML can be parsed.
+ * <p>
+ * The cache is decoded when a base is added, not used to answer lookups. Its
+ * aliases, parents, globs, magic and icons become the entities that each
+ * service keeps, and its own indexes, such as the reverse suffix tree, are
+ * only walked to list them. The services must list every entity, and build
+ * indexes of their own across all of their bases, where a type in one base
+ * overrides the same type in another, which a single cache cannot answer.
+ * So memory, and the time to add a base, still grow with the size of the
+ * database, the cache only saves parsing. It is not kept once the base has
+ * been added.
+ * <p>
+ * A cache is only used if it has a supported version and is not older than
+ * any of the sources it was built from, otherwise services fall back to the
+ * text sources.
+ */
+final class MimeCache {
+	private final static int MAJOR_VERSION = 1;
+	private final static int MINOR_VERSION = 2;
+
+	/* Header offsets */
+	private final static int ALIAS_LIST = 4;
+	private final static int PARENT_LIST = 8;
+	private final static int LITERAL_LIST = 12;
+	private final static int REVERSE_SUFFIX_TREE = 16;
+	private final static int GLOB_LIST = 20;
+	private final static int MAGIC_LIST = 24;
+	private final static int ICONS_LIST = 32;
+	private final static int GENERIC_ICONS_LIST = 36;
+
+	private final static int CASE_SENSITIVE = 0x100;
+
+	/* Text sources that are compiled into the cache */
+	private final static String[] SOURCES = { "globs2", "globs", "aliases", "subclasses", "magic", "icons",
+			"generic-icons", "types" };
+
+	/**
+	 * Receives the globs held in a cache.
+	 */
+	interface GlobVisitor {
+		void glob(String mimeType, String pattern, int weight, boolean caseSensitive);
+	}
+
+	private final Path file;
+	private final ByteBuffer buf;
+	private volatile Map<String, List<String>> aliasesByType;
+
+	private MimeCache(Path file, ByteBuffer buf) {
+		this.file = file;
+		this.buf = buf;
+	}
+
+	/**
+	 * Open the cache in a database directory, if there is one that can be
+	 * used.
+	 *
+	 * @param base database directory
+	 * @return cache or <code>null</code> if there is no cache, or it is stale
+	 *         or an unsupported version
+	 * @throws IOException on error
+	 */
+	static MimeCache open(Path base) throws IOException {
+		Path f = base.resolve("mime.cache");
+		if (!Files.isRegularFile(f) || isStale(base, Files.getLastModifiedTime(f))) {
+			return null;
+		}
+		ByteBuffer buf;
+		if (f.getFileSystem() == FileSystems.getDefault()) {
+			try (FileChannel channel = FileChannel.open(f, StandardOpenOption.READ)) {
+				buf = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			}
+		} else {
+			buf = ByteBuffer.wrap(Files.readAllBytes(f));
+		}
+		if (buf.limit() < GENERIC_ICONS_LIST + 4) {
+			throw new IOException(f + " is too short.");
+		}
+		int major = buf.getShort(0) & 0xffff;
+		int minor = buf.getShort(2) & 0xffff;
+		if (major != MAJOR_VERSION || minor != MINOR_VERSION) {
+			Log.debug("Ignoring " + f + ", unsupported version " + major + "." + minor);
+			return null;
+		}
+		return new MimeCache(f, buf);
+	}
+
+	/**
+	 * A cache, or any other file compiled from a database, is stale if any of
+	 * the text sources, or the packages they are generated from, have been
+	 * changed since it was written.
+	 */
+	static boolean isStale(Path base, FileTime cached) throws IOException {
+		for (String source : SOURCES) {
+			if (isNewer(base.resolve(source), cached)) {
+				Log.debug("Cache in " + base + " is older than " + source);
+				return true;
+			}
+		}
+		Path packages = base.resolve("packages");
+		if (Files.isDirectory(packages)) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(packages)) {
+				for (Path pkg : stream) {
+					if (isNewer(pkg, cached)) {
+						Log.debug("Cache in " + base + " is older than " + pkg);
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean isNewer(Path f, FileTime than) {
+		try {
+			return Files.readAttributes(f, BasicFileAttributes.class).lastModifiedTime().compareTo(than) > 0;
+		} catch (IOException ioe) {
+			// Missing sources do not make the cache stale
+			return false;
+		}
+	}
+
+	/**
+	 * Get every alias, as pairs of the alias and the type it is an alias of.
+	 *
+	 * @return aliases
+	 * @throws IOException if the cache is corrupt
+	 */
+	List<String[]> getAliases() throws IOException {
+		int list = offset(ALIAS_LIST);
+		int count = card32(list);
+		List<String[]> aliases = new ArrayList<String[]>(count);
+		for (int i = 0; i < count; i++) {
+			int at = list + 4 + i * 8;
+			aliases.add(new String[] { string(card32(at)), string(card32(at + 4)) });
+		}
+		return aliases;
+	}
+
+	/**
+	 * Get the aliases of a type. The type is matched without case, as the
+	 * names of the XML files that types are loaded from are lower case.
+	 *
+	 * @param mimeType type
+	 * @return aliases
+	 * @throws IOException if the cache is corrupt
+	 */
+	List<String> getAliases(String mimeType) throws IOException {
+		Map<String, List<String>> byType = aliasesByType;
+		if (byType == null) {
+			byType = new HashMap<String, List<String>>();
+			for (String[] alias : getAliases()) {
+				String key = alias[1].toLowerCase(Locale.ROOT);
+				List<String> l = byType.get(key);
+				if (l == null) {
+					l = new ArrayList<String>();
+					byType.put(key, l);
+				}
+				l.add(alias[0]);
+			}
+			aliasesByType = byType;
+		}
+		List<String> l = byType.get(mimeType.toLowerCase(Locale.ROOT));
+		return l == null ? Collections.<String>emptyList() : l;
+	}
+
+	/**
+	 * Get the types each type is a direct subclass of.
+	 *
+	 * @param lowerCase whether to key the types in lower case
+	 * @return parents by type
+	 * @throws IOException if the cache is corrupt
+	 */
+	Map<String, List<String>> getParents(boolean lowerCase) throws IOException {
+		int list = offset(PARENT_LIST);
+		int count = card32(list);
+		Map<String, List<String>> parents = new HashMap<String, List<String>>();
+		for (int i = 0; i < count; i++) {
+			int at = list + 4 + i * 8;
+			int parentList = card32(at + 4);
+			int n = card32(parentList);
+			List<String> l = new ArrayList<String>(n);
+			for (int j = 0; j < n; j++) {
+				l.add(string(card32(parentList + 4 + j * 4)));
+			}
+			parents.put(key(string(card32(at)), lowerCase), l);
+		}
+		return parents;
+	}
+
+	/**
+	 * Get the icon names given to types, either the specific or the generic
+	 * icons.
+	 *
+	 * @param generic generic icons
+	 * @param lowerCase whether to key the types in lower case
+	 * @return icon names by type
+	 * @throws IOException if the cache is corrupt
+	 */
+	Map<String, String> getIcons(boolean generic, boolean lowerCase) throws IOException {
+		int list = offset(generic ? GENERIC_ICONS_LIST : ICONS_LIST);
+		int count = card32(list);
+		Map<String, String> icons = new HashMap<String, String>();
+		for (int i = 0; i < count; i++) {
+			int at = list + 4 + i * 8;
+			icons.put(key(string(card32(at)), lowerCase), string(card32(at + 4)));
+		}
+		return icons;
+	}
+
+	/**
+	 * Visit every glob, whether stored as a literal name, as a suffix in the
+	 * reverse suffix tree, or as a general glob.
+	 *
+	 * @param visitor visitor
+	 * @throws IOException if the cache is corrupt
+	 */
+	void visitGlobs(GlobVisitor visitor) throws IOException {
+		for (int header : new int[] { LITERAL_LIST, GLOB_LIST }) {
+			int list = offset(header);
+			int count = card32(list);
+			for (int i = 0; i < count; i++) {
+				int at = list + 4 + i * 12;
+				int flags = card32(at + 8);
+				visitor.glob(string(card32(at + 4)), string(card32(at)), flags & 0xff, (flags & CASE_SENSITIVE) != 0);
+			}
+		}
+		int tree = offset(REVERSE_SUFFIX_TREE);
+		visitSuffixes(card32(tree), card32(tree + 4), new StringBuilder(), visitor, 0);
+	}
+
+	/*
+	 * Nodes are CHARACTER, N_CHILDREN, FIRST_CHILD_OFFSET. A node with a
+	 * character of zero is a leaf, holding MIME_TYPE_OFFSET and
+	 * WEIGHT_AND_FLAGS instead. The path from the root spells the suffix
+	 * backwards.
+	 */
+	private void visitSuffixes(int count, int first, StringBuilder reversed, GlobVisitor visitor, int depth)
+			throws IOException {
+		if (depth > 255) {
+			throw new IOException(file + " has a reverse suffix tree that is too deep.");
+		}
+		for (int i = 0; i < count; i++) {
+			int node = first + i * 12;
+			int ch = card32(node);
+			if (ch == 0) {
+				int flags = card32(node + 8);
+				String suffix = new StringBuilder(reversed).reverse().toString();
+				visitor.glob(string(card32(node + 4)), "*" + suffix, flags & 0xff, (flags & CASE_SENSITIVE) != 0);
+			} else {
+				reversed.appendCodePoint(ch);
+				visitSuffixes(card32(node + 4), card32(node + 8), reversed, visitor, depth + 1);
+				reversed.setLength(reversed.length() - Character.charCount(ch));
+			}
+		}
+	}
+
+	/**
+	 * Get the magic entries, with their patterns flattened into file order
+	 * with indents, as {@link DefaultMagicService} would parse them. Values
+	 * and masks are copied into a single arena. A type with several sections
+	 * has an entry for each.
+	 *
+	 * @return entries in the order they appear
+	 * @throws IOException if the cache is corrupt
+	 */
+	List<MagicEntry> getMagic() throws IOException {
+		int list = offset(MAGIC_LIST);
+		int count = card32(list);
+		int first = card32(list + 8);
+		List<MagicEntry> entries = new ArrayList<MagicEntry>(count);
+		List<Pattern> patterns = new ArrayList<Pattern>();
+		// Pairs of value and mask offsets in the cache for each pattern
+		List<int[]> sources = new ArrayList<int[]>();
+		for (int i = 0; i < count; i++) {
+			int match = first + i * 16;
+			MagicEntry entry = new MagicEntry(string(card32(match + 4)), card32(match));
+			entries.add(entry);
+			addMatchlets(entry, card32(match + 8), card32(match + 12), 0, patterns, sources);
+		}
+		int arenaSize = 0;
+		for (int p = 0; p < patterns.size(); p++) {
+			int length = patterns.get(p).getValueLength();
+			arenaSize += sources.get(p)[1] == 0 ? length : length * 2;
+		}
+		// Now copy all the values and masks into one array
+		byte[] arena = new byte[arenaSize];
+		int at = 0;
+		for (int p = 0; p < patterns.size(); p++) {
+			Pattern pattern = patterns.get(p);
+			int length = pattern.getValueLength();
+			int valueOffset = at;
+			copy(sources.get(p)[0], arena, at, length);
+			at += length;
+			int maskOffset = -1;
+			if (sources.get(p)[1] != 0) {
+				maskOffset = at;
+				copy(sources.get(p)[1], arena, at, length);
+				at += length;
+			}
+			pattern.setArena(arena, valueOffset, length, maskOffset);
+		}
+		return entries;
+	}
+
+	/*
+	 * Matchlets are RANGE_START, RANGE_LENGTH, WORD_SIZE, VALUE_LENGTH,
+	 * VALUE_OFFSET, MASK_OFFSET, N_CHILDREN, FIRST_CHILD_OFFSET. They are
+	 * flattened depth first, so the indent of each pattern rebuilds the tree.
+	 */
+	private void addMatchlets(MagicEntry entry, int count, int first, int indent, List<Pattern> patterns,
+			List<int[]> sources) throws IOException {
+		if (indent > 255) {
+			throw new IOException(file + " has magic that is nested too deeply.");
+		}
+		for (int i = 0; i < count; i++) {
+			int at = first + i * 32;
+			Pattern pattern = new Pattern();
+			pattern.setIndent(indent);
+			pattern.setOffset(card32(at) & 0xffffffffL);
+			pattern.setRangeLength(card32(at + 4));
+			pattern.setWordSize(card32(at + 8));
+			int length = card32(at + 12);
+			int value = card32(at + 16);
+			int mask = card32(at + 20);
+			check(value, length);
+			if (mask != 0) {
+				check(mask, length);
+			}
+			pattern.setArena(null, 0, length, -1);
+			patterns.add(pattern);
+			sources.add(new int[] { value, mask });
+			entry.add(pattern);
+			addMatchlets(entry, card32(at + 24), card32(at + 28), indent + 1, patterns, sources);
+		}
+	}
+
+	private static String key(String mimeType, boolean lowerCase) {
+		return lowerCase ? mimeType.toLowerCase(Locale.ROOT) : mimeType;
+	}
+
+	private void copy(int from, byte[] to, int at, int length) {
+		for (int i = 0; i < length; i++) {
+			to[at + i] = buf.get(from + i);
+		}
+	}
+
+	private int offset(int header) throws IOException {
+		return card32(header);
+	}
+
+	/*
+	 * Read an unsigned 32 bit number that is used as an offset or count, so
+	 * must be within the file
+	 */
+	private int card32(int at) throws IOException {
+		check(at, 4);
+		int val = buf.getInt(at);
+		if (val < 0) {
+			throw new IOException(file + " contains an invalid number at " + at + ".");
+		}
+		return val;
+	}
+
+	private void check(int at, int length) throws IOException {
+		if (at < 0 || length < 0 || at > buf.limit() - length) {
+			throw new IOException(file + " is corrupt, " + at + " is out of range.");
+		}
+	}
+
+	/*
+	 * Strings are nul terminated UTF-8
+	 */
+	private String string(int at) throws IOException {
+		int end = at;
+		int limit = buf.limit();
+		while (end < limit && buf.get(end) != 0) {
+			end++;
+		}
+		if (at < 0 || end == limit) {
+			throw new IOException(file + " contains an unterminated string at " + at + ".");
+		}
+		byte[] b = new byte[end - at];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = buf.get(at + i);
+		}
+		return new String(b, StandardCharsets.UTF_8);
+	}
+}
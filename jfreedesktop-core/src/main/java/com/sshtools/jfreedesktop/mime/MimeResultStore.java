@@ -0,0 +1,441 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import com.sshtools.jfreedesktop.mime.Classification.Stage;
+import com.sshtools.jfreedesktop.util.Log;
+
+/**
+ * An append only file of the types detected for files, so they do not have
+ * to be sniffed again after a restart. Used by {@link CachingMIMEService}.
+ * <p>
+ * The file starts with a hash of the MIME database the types were detected
+ * with, and is emptied when the database changes. Each record that follows
+ * identifies a file by its device, inode and a hash of its name, along with
+ * the size and modification time it had. A record for a file supersedes any
+ * earlier one for the same device, inode and name, and the file is compacted
+ * once most of it is superseded records.
+ * <p>
+ * The file is memory mapped and indexed when opened. It is read up to the
+ * first incomplete or damaged record, which is where a crash would leave it,
+ * and new records are written from there. The mapping doubles in size when
+ * full, and the file is replaced when it is compacted or emptied. Each time,
+ * the old mapping is only released once it is garbage collected, so doubling
+ * keeps the number of mappings small.
+ * <p>
+ * Only one process may use a file at a time. A lock is held on a file of the
+ * same name with <i>.lock</i> appended for as long as the store is open,
+ * including while the file is being replaced. If the file cannot be replaced
+ * or mapped again, a warning is logged and the store is closed.
+ */
+final class MimeResultStore implements Closeable {
+	private final static int SIGNATURE = 0x4a464d52;
+	private final static int VERSION = 1;
+	final static int HASH_LENGTH = 32;
+
+	/* Header offsets */
+	private final static int HASH = 8;
+	final static int HEADER_SIZE = HASH + HASH_LENGTH;
+
+	/* Record offsets */
+	private final static int LENGTH = 0;
+	private final static int CRC = 4;
+	private final static int DEVICE = 8;
+	private final static int INODE = 16;
+	private final static int NAME = 24;
+	private final static int SIZE = 32;
+	private final static int MODIFIED = 40;
+	private final static int STAGE = 48;
+	private final static int TYPE_LENGTH = 49;
+	final static int TYPE = 51;
+
+	private final static int MINIMUM_CAPACITY = 64 * 1024;
+	/* Superseded records must take at least this much before compacting */
+	private final static int COMPACT_THRESHOLD = 256 * 1024;
+
+	private final static Stage[] STAGES = Stage.values();
+
+	private final Path file;
+	private FileChannel lockChannel;
+	private FileLock lock;
+	private FileChannel channel;
+	private MappedByteBuffer buf;
+	private byte[] hash;
+	private int end;
+	/* Open addressed, record offsets keyed by file, zero when empty */
+	private int[] slots;
+	private int live;
+	private int dead;
+	private int deadBytes;
+
+	private MimeResultStore(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Open a store, creating it if it does not exist.
+	 */
+	static MimeResultStore open(Path file) throws IOException {
+		MimeResultStore store = new MimeResultStore(file);
+		store.lock();
+		try {
+			store.map();
+		} catch (IOException ioe) {
+			store.unlock();
+			throw ioe;
+		}
+		return store;
+	}
+
+	/**
+	 * A detected type read back from the store.
+	 */
+	final static class Result {
+		final String mimeType;
+		final Stage stage;
+
+		Result(String mimeType, Stage stage) {
+			this.mimeType = mimeType;
+			this.stage = stage;
+		}
+	}
+
+	/**
+	 * Get the number of files that have a type stored.
+	 */
+	synchronized int size() {
+		return live;
+	}
+
+	/**
+	 * Set the hash of the database that types are detected with. If it is not
+	 * the one the stored types were detected with, they are all dropped.
+	 */
+	synchronized void setDatabaseHash(byte[] hash) throws IOException {
+		if (channel != null && !Arrays.equals(hash, this.hash)) {
+			Log.debug("MIME database has changed, emptying " + file);
+			rewrite(hash, false);
+		}
+	}
+
+	synchronized Result get(long device, long inode, long name, long size, long modified) {
+		if (channel == null) {
+			return null;
+		}
+		int at = slots[find(device, inode, name)];
+		if (at == 0 || buf.getLong(at + SIZE) != size || buf.getLong(at + MODIFIED) != modified) {
+			return null;
+		}
+		byte[] type = new byte[buf.getShort(at + TYPE_LENGTH) & 0xffff];
+		for (int i = 0; i < type.length; i++) {
+			type[i] = buf.get(at + TYPE + i);
+		}
+		return new Result(new String(type, StandardCharsets.UTF_8), STAGES[buf.get(at + STAGE)]);
+	}
+
+	synchronized void put(long device, long inode, long name, long size, long modified, String mimeType,
+			Stage stage) throws IOException {
+		if (channel == null) {
+			return;
+		}
+		Result existing = get(device, inode, name, size, modified);
+		if (existing != null && existing.stage == stage && existing.mimeType.equals(mimeType)) {
+			return;
+		}
+		byte[] type = mimeType.getBytes(StandardCharsets.UTF_8);
+		int length = TYPE + type.length;
+		ByteBuffer record = ByteBuffer.allocate(length);
+		record.putInt(LENGTH, length);
+		record.putLong(DEVICE, device);
+		record.putLong(INODE, inode);
+		record.putLong(NAME, name);
+		record.putLong(SIZE, size);
+		record.putLong(MODIFIED, modified);
+		record.put(STAGE, (byte) stage.ordinal());
+		record.putShort(TYPE_LENGTH, (short) type.length);
+		record.position(TYPE);
+		record.put(type);
+		record.putInt(CRC, crc(record, 0, length));
+		if ((long) end + length > buf.capacity()) {
+			if ((long) buf.capacity() * 2 > Integer.MAX_VALUE) {
+				// Full of live records, start again rather than grow any more
+				rewrite(hash, false);
+			} else {
+				buf = channel.map(MapMode.READ_WRITE, 0, buf.capacity() * 2);
+			}
+		}
+		record.rewind();
+		ByteBuffer to = buf.duplicate();
+		to.position(end);
+		to.put(record);
+		index(end);
+		end += length;
+		if (dead > live && deadBytes >= COMPACT_THRESHOLD) {
+			compact();
+		}
+	}
+
+	/**
+	 * Rewrite the file without the records that have been superseded.
+	 */
+	synchronized void compact() throws IOException {
+		if (channel != null) {
+			Log.debug("Compacting " + file + ", " + dead + " of " + (live + dead) + " records are superseded");
+			rewrite(hash, true);
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		try {
+			if (channel != null) {
+				buf.force();
+				channel.close();
+			}
+		} finally {
+			buf = null;
+			slots = null;
+			channel = null;
+			unlock();
+		}
+	}
+
+	private void lock() throws IOException {
+		Path f = file.resolveSibling(file.getFileName() + ".lock");
+		lockChannel = FileChannel.open(f, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			lock = lockChannel.tryLock();
+		} catch (OverlappingFileLockException ofle) {
+			lock = null;
+		}
+		if (lock == null) {
+			unlock();
+			throw new IOException(file + " is in use.");
+		}
+	}
+
+	private void unlock() throws IOException {
+		if (lockChannel != null) {
+			try {
+				// Also releases the lock
+				lockChannel.close();
+			} finally {
+				lockChannel = null;
+				lock = null;
+			}
+		}
+	}
+
+	private void map() throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			long size = channel.size();
+			if (size >= HEADER_SIZE && size <= Integer.MAX_VALUE) {
+				buf = channel.map(MapMode.READ_WRITE, 0, Math.max(MINIMUM_CAPACITY, size));
+				if (buf.getInt(0) == SIGNATURE && buf.getInt(4) == VERSION) {
+					hash = new byte[HASH_LENGTH];
+					for (int i = 0; i < HASH_LENGTH; i++) {
+						hash[i] = buf.get(HASH + i);
+					}
+					scan();
+					return;
+				}
+			}
+		} catch (IOException ioe) {
+			channel.close();
+			channel = null;
+			throw ioe;
+		}
+		// New, or not a store at all
+		rewrite(new byte[HASH_LENGTH], false);
+	}
+
+	/**
+	 * Index the records, stopping at the first that is incomplete or damaged.
+	 */
+	private void scan() {
+		slots = new int[1024];
+		live = dead = deadBytes = 0;
+		int at = HEADER_SIZE;
+		int limit = buf.capacity();
+		while (at <= limit - TYPE) {
+			int length = buf.getInt(at + LENGTH);
+			if (length < TYPE || length > limit - at
+					|| length != TYPE + (buf.getShort(at + TYPE_LENGTH) & 0xffff)
+					|| (buf.get(at + STAGE) & 0xff) >= STAGES.length
+					|| buf.getInt(at + CRC) != crc(buf, at, length)) {
+				break;
+			}
+			index(at);
+			at += length;
+		}
+		end = at;
+	}
+
+	/**
+	 * Write a new file with the live records, if they are kept, and replace
+	 * this one with it.
+	 */
+	private void rewrite(byte[] hash, boolean keep) throws IOException {
+		int[] records = new int[keep ? live : 0];
+		if (keep) {
+			int i = 0;
+			for (int at : slots) {
+				if (at != 0) {
+					records[i++] = at;
+				}
+			}
+			// Keep them in the order they were written
+			Arrays.sort(records);
+		}
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(SIGNATURE);
+			header.putInt(VERSION);
+			header.put(hash);
+			header.flip();
+			write(out, header);
+			for (int at : records) {
+				ByteBuffer record = buf.duplicate();
+				record.limit(at + buf.getInt(at + LENGTH));
+				record.position(at);
+				write(out, record);
+			}
+			out.force(true);
+		} catch (IOException ioe) {
+			// This file is untouched, so is still used
+			Files.deleteIfExists(tmp);
+			throw ioe;
+		}
+		buf = null;
+		slots = null;
+		try {
+			channel.close();
+			channel = null;
+			// Still locked, so no other process can use the file meanwhile
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			map();
+		} catch (IOException ioe) {
+			Log.warn("Closing MIME type store " + file + ", it could not be replaced. " + ioe.getMessage());
+			channel = null;
+			unlock();
+			throw ioe;
+		}
+	}
+
+	private static void write(FileChannel out, ByteBuffer data) throws IOException {
+		while (data.hasRemaining()) {
+			out.write(data);
+		}
+	}
+
+	private void index(int at) {
+		int slot = find(buf.getLong(at + DEVICE), buf.getLong(at + INODE), buf.getLong(at + NAME));
+		int previous = slots[slot];
+		slots[slot] = at;
+		if (previous == 0) {
+			if (++live * 2 > slots.length) {
+				grow();
+			}
+		} else {
+			dead++;
+			deadBytes += buf.getInt(previous + LENGTH);
+		}
+	}
+
+	private void grow() {
+		int[] old = slots;
+		slots = new int[old.length * 2];
+		for (int at : old) {
+			if (at != 0) {
+				slots[find(buf.getLong(at + DEVICE), buf.getLong(at + INODE), buf.getLong(at + NAME))] = at;
+			}
+		}
+	}
+
+	/**
+	 * Get the slot that holds the record for a file, or the empty slot it
+	 * would go in.
+	 */
+	private int find(long device, long inode, long name) {
+		long h = (device * 0x9e3779b97f4a7c15L + inode) * 0x9e3779b97f4a7c15L + name;
+		h ^= h >>> 29;
+		int mask = slots.length - 1;
+		for (int i = (int) (h ^ (h >>> 32)) & mask;; i = (i + 1) & mask) {
+			int at = slots[i];
+			if (at == 0 || (buf.getLong(at + DEVICE) == device && buf.getLong(at + INODE) == inode
+					&& buf.getLong(at + NAME) == name)) {
+				return i;
+			}
+		}
+	}
+
+	/**
+	 * Checksum everything in a record but its length and the checksum itself.
+	 */
+	private static int crc(ByteBuffer data, int at, int length) {
+		ByteBuffer record = data.duplicate();
+		record.limit(at + length);
+		record.position(at + DEVICE);
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Get a 64 bit hash of a file name or path.
+	 */
+	static long hash(CharSequence name) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < name.length(); i++) {
+			h = (h ^ name.charAt(i)) * 0x100000001b3L;
+		}
+		return h;
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException("No SHA-256.", nsae);
+		}
+	}
+
+	static void update(MessageDigest digest, String text) {
+		digest.update(text.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) '\n');
+	}
+}
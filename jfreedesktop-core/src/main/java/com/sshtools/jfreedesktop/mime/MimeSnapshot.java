@@ -0,0 +1,664 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sshtools.jfreedesktop.mime.GlobEntry.Glob;
+import com.sshtools.jfreedesktop.mime.MagicEntry.Pattern;
+import com.sshtools.jfreedesktop.util.Log;
+
+/**
+ * A compact binary snapshot of a shared MIME-info database, holding the
+ * types, icons, aliases, subclasses, weighted globs, magic and tree magic
+ * exactly as the default services read them from the database directory.
+ * <p>
+ * The build writes a snapshot of the built-in <i>default-mime</i> database
+ * by running this class, so that the built-in services can load it with a
+ * single resource read (or map it, when the classes are not in a jar)
+ * instead of walking the database in the jar and parsing it in every JVM.
+ * Comments and acronyms are kept in a section of their own that each entry
+ * decodes when it is first needed.
+ * <p>
+ * When there is no snapshot, or it is stale or an unsupported version, the
+ * built-in services fall back to reading the database itself.
+ */
+public final class MimeSnapshot {
+	/* Name of the snapshot in the database directory */
+	final static String FILE_NAME = "mime.snapshot";
+
+	private final static int SIGNATURE = 0x4a464d53;
+	/* 2 keeps every magic section of a type, 1 only the last */
+	private final static int VERSION = 2;
+
+	/* Header offsets */
+	private final static int STRINGS = 8;
+	private final static int TYPES = 12;
+	private final static int GLOBS = 16;
+	private final static int ALIASES = 20;
+	private final static int MAGIC = 24;
+	private final static int TREE_MAGIC = 28;
+	private final static int DETAILS = 32;
+	private final static int HEADER_SIZE = 36;
+
+	private final static int CASE_SENSITIVE = 1;
+
+	/* Snapshots loaded from the class path, by the base they stand for */
+	private final static Map<Path, MimeSnapshot> builtIn = new HashMap<Path, MimeSnapshot>();
+
+	private final ByteBuffer buf;
+	private final String[] strings;
+
+	private MimeSnapshot(ByteBuffer buf) throws IOException {
+		this.buf = buf;
+		Cursor cursor = new Cursor(offset(STRINGS));
+		strings = new String[cursor.card32()];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = cursor.utf8();
+		}
+	}
+
+	/**
+	 * Write a snapshot of a database directory. It is built by the default
+	 * services, so it holds just what they would read from the directory.
+	 * 
+	 * @param args database directory and snapshot file
+	 * @throws IOException on error
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: MimeSnapshot <database> <snapshot>");
+			System.exit(1);
+		}
+		Path file = Paths.get(args[1]);
+		Path parent = file.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		try (OutputStream out = Files.newOutputStream(file)) {
+			write(Paths.get(args[0]), out);
+		}
+	}
+
+	/**
+	 * Load the snapshot of a database on the class path, unless it has
+	 * already been loaded. Every built-in service shares the one snapshot.
+	 * 
+	 * @param loader class loader
+	 * @param set name of the database on the class path
+	 * @return the base the snapshot stands for, to be added to a service, or
+	 *         <code>null</code> if there is no snapshot that can be used
+	 * @throws IOException on error
+	 */
+	static synchronized Path loadBuiltIn(ClassLoader loader, String set) throws IOException {
+		URL url = loader.getResource(set + "/" + FILE_NAME);
+		if (url == null) {
+			return null;
+		}
+		Path base = baseOf(url, set);
+		if (!builtIn.containsKey(base)) {
+			// Remember unusable snapshots too, so they are only read once
+			builtIn.put(base, read(url, base));
+		}
+		return builtIn.get(base) == null ? null : base;
+	}
+
+	/**
+	 * Get the snapshot loaded from the class path for a base.
+	 * 
+	 * @param base base
+	 * @return snapshot or <code>null</code> if the base is not a snapshot
+	 */
+	static synchronized MimeSnapshot get(Path base) {
+		return builtIn.get(base);
+	}
+
+	/**
+	 * A snapshot in a directory stands for that directory. One in a jar
+	 * stands for a directory of the same name beneath the jar, which does not
+	 * exist but is unique to it.
+	 */
+	private static Path baseOf(URL url, String set) throws IOException {
+		try {
+			if (url.getProtocol().equals("file")) {
+				return Paths.get(url.toURI()).getParent();
+			}
+			String s = url.toString();
+			int separator = s.indexOf("!/");
+			if (url.getProtocol().equals("jar") && separator != -1) {
+				return Paths.get(new URI(s.substring(4, separator))).resolve(set);
+			}
+		} catch (URISyntaxException use) {
+			throw new IOException("Invalid snapshot location " + url + ".", use);
+		} catch (IllegalArgumentException | FileSystemNotFoundException e) {
+			// Not a local jar
+		}
+		return Paths.get(set);
+	}
+
+	private static MimeSnapshot read(URL url, Path base) throws IOException {
+		ByteBuffer buf;
+		if (url.getProtocol().equals("file")) {
+			Path f = base.resolve(FILE_NAME);
+			if (MimeCache.isStale(base, Files.getLastModifiedTime(f))) {
+				return null;
+			}
+			try (FileChannel channel = FileChannel.open(f, StandardOpenOption.READ)) {
+				buf = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			}
+		} else {
+			try (InputStream in = url.openStream()) {
+				buf = ByteBuffer.wrap(readFully(in));
+			}
+		}
+		if (buf.limit() < HEADER_SIZE || buf.getInt(0) != SIGNATURE) {
+			throw new IOException(url + " is not a MIME snapshot.");
+		}
+		if (buf.getInt(4) != VERSION) {
+			Log.debug("Ignoring " + url + ", unsupported version " + buf.getInt(4));
+			return null;
+		}
+		Log.debug("Loaded MIME snapshot " + url);
+		return new MimeSnapshot(buf);
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256 * 1024);
+		byte[] b = new byte[65536];
+		int r;
+		while ((r = in.read(b)) != -1) {
+			out.write(b, 0, r);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Get every type. Their icons, aliases and subclasses are known, their
+	 * comments, acronyms and globs are decoded when first needed.
+	 * 
+	 * @return types
+	 * @throws IOException if the snapshot is corrupt
+	 */
+	List<MIMEEntry> getTypes() throws IOException {
+		Cursor cursor = new Cursor(offset(TYPES));
+		int count = cursor.card32();
+		int details = offset(DETAILS);
+		List<MIMEEntry> types = new ArrayList<MIMEEntry>(count);
+		for (int i = 0; i < count; i++) {
+			String name = cursor.string();
+			int idx = name.indexOf('/');
+			if (idx == -1) {
+				throw new IOException("Snapshot contains an invalid type '" + name + "'.");
+			}
+			String icon = cursor.string();
+			String genericIcon = cursor.string();
+			List<String> parents = cursor.strings();
+			List<String> aliases = cursor.strings();
+			MIMEEntry entry = new MIMEEntry(name.substring(0, idx), name.substring(idx + 1),
+					new Details(details + cursor.card32()));
+			entry.setIcons(icon, genericIcon);
+			for (String parent : parents) {
+				entry.addSubclass(parent);
+			}
+			for (String alias : aliases) {
+				entry.addAlias(alias);
+			}
+			types.add(entry);
+		}
+		return types;
+	}
+
+	/**
+	 * Visit every glob, in the order they were defined.
+	 * 
+	 * @param visitor visitor
+	 * @throws IOException if the snapshot is corrupt
+	 */
+	void visitGlobs(MimeCache.GlobVisitor visitor) throws IOException {
+		Cursor cursor = new Cursor(offset(GLOBS));
+		int count = cursor.card32();
+		for (int i = 0; i < count; i++) {
+			String mimeType = cursor.string();
+			String pattern = cursor.string();
+			int weight = cursor.card16();
+			boolean caseSensitive = (cursor.card8() & CASE_SENSITIVE) != 0;
+			visitor.glob(mimeType, pattern, weight, caseSensitive);
+		}
+	}
+
+	/**
+	 * Get every alias, as pairs of the alias and the type it is an alias of,
+	 * in the order they were defined.
+	 * 
+	 * @return aliases
+	 * @throws IOException if the snapshot is corrupt
+	 */
+	List<String[]> getAliases() throws IOException {
+		Cursor cursor = new Cursor(offset(ALIASES));
+		int count = cursor.card32();
+		List<String[]> aliases = new ArrayList<String[]>(count);
+		for (int i = 0; i < count; i++) {
+			aliases.add(new String[] { cursor.string(), cursor.string() });
+		}
+		return aliases;
+	}
+
+	/**
+	 * Get every magic section in the order it was defined, a type may have
+	 * several. The values and masks of all patterns share a single arena.
+	 * 
+	 * @return magic entries
+	 * @throws IOException if the snapshot is corrupt
+	 */
+	List<MagicEntry> getMagic() throws IOException {
+		Cursor cursor = new Cursor(offset(MAGIC));
+		byte[] arena = cursor.bytes();
+		int count = cursor.card32();
+		List<MagicEntry> entries = new ArrayList<MagicEntry>();
+		for (int i = 0; i < count; i++) {
+			MagicEntry entry = new MagicEntry(cursor.string(), cursor.card32());
+			int patterns = cursor.card32();
+			for (int j = 0; j < patterns; j++) {
+				Pattern pattern = new Pattern();
+				pattern.setIndent(cursor.card32());
+				pattern.setOffset(cursor.card64());
+				pattern.setRangeLength(cursor.card32());
+				pattern.setWordSize(cursor.card32());
+				int valueLength = cursor.card32();
+				int valueOffset = cursor.card32();
+				int maskOffset = cursor.card32();
+				if (valueLength < 0 || valueOffset < 0 || valueOffset + valueLength > arena.length || maskOffset < -1
+						|| maskOffset + valueLength > arena.length) {
+					throw new IOException("Snapshot contains an invalid pattern for " + entry.getInternalName() + ".");
+				}
+				pattern.setArena(arena, valueOffset, valueLength, maskOffset);
+				entry.add(pattern);
+			}
+			entries.add(entry);
+		}
+		return entries;
+	}
+
+	/**
+	 * Get the tree magic, as the text of the <i>treemagic</i> file.
+	 * 
+	 * @return tree magic or <code>null</code> if the database has none
+	 * @throws IOException if the snapshot is corrupt
+	 */
+	String getTreeMagic() throws IOException {
+		Cursor cursor = new Cursor(offset(TREE_MAGIC));
+		if (cursor.card32() == 0) {
+			return null;
+		}
+		return new String(cursor.bytes(), StandardCharsets.UTF_8);
+	}
+
+	private int offset(int header) throws IOException {
+		int offset = buf.getInt(header);
+		if (offset < HEADER_SIZE || offset >= buf.limit()) {
+			throw new IOException("Snapshot has an invalid offset at " + header + ".");
+		}
+		return offset;
+	}
+
+	/**
+	 * Reads the comments, acronyms and globs of an entry.
+	 */
+	private final class Details implements MIMEEntry.Loader {
+		private final int offset;
+
+		Details(int offset) {
+			this.offset = offset;
+		}
+
+		public void load(MIMEEntry entry) throws IOException {
+			Cursor cursor = new Cursor(offset);
+			for (int i = cursor.card16(); i > 0; i--) {
+				entry.addComment(cursor.string(), cursor.utf8());
+			}
+			for (int i = cursor.card16(); i > 0; i--) {
+				entry.addAcronym(cursor.utf8());
+			}
+			for (int i = cursor.card16(); i > 0; i--) {
+				entry.addExpandedAcronym(cursor.utf8());
+			}
+			for (String glob : cursor.strings()) {
+				entry.addGlob(glob);
+			}
+		}
+	}
+
+	/**
+	 * Reads big endian values from the snapshot in order. Reads are absolute,
+	 * so any number of cursors may be used at once.
+	 */
+	private final class Cursor {
+		private int at;
+
+		Cursor(int at) {
+			this.at = at;
+		}
+
+		private void check(int length) throws IOException {
+			if (at < 0 || length < 0 || at + length > buf.limit()) {
+				throw new IOException("Snapshot is truncated at " + at + ".");
+			}
+		}
+
+		int card8() throws IOException {
+			check(1);
+			return buf.get(at++) & 0xff;
+		}
+
+		int card16() throws IOException {
+			check(2);
+			int v = buf.getShort(at) & 0xffff;
+			at += 2;
+			return v;
+		}
+
+		int card32() throws IOException {
+			check(4);
+			int v = buf.getInt(at);
+			at += 4;
+			return v;
+		}
+
+		long card64() throws IOException {
+			check(8);
+			long v = buf.getLong(at);
+			at += 8;
+			return v;
+		}
+
+		byte[] bytes() throws IOException {
+			int length = card32();
+			check(length);
+			byte[] b = new byte[length];
+			for (int i = 0; i < length; i++) {
+				b[i] = buf.get(at + i);
+			}
+			at += length;
+			return b;
+		}
+
+		String utf8() throws IOException {
+			int length = card16();
+			check(length);
+			String s;
+			if (buf.hasArray()) {
+				s = new String(buf.array(), buf.arrayOffset() + at, length, StandardCharsets.UTF_8);
+			} else {
+				byte[] b = new byte[length];
+				for (int i = 0; i < length; i++) {
+					b[i] = buf.get(at + i);
+				}
+				s = new String(b, StandardCharsets.UTF_8);
+			}
+			at += length;
+			return s;
+		}
+
+		/* A string from the table, or null */
+		String string() throws IOException {
+			int idx = card32();
+			if (idx == -1) {
+				return null;
+			}
+			if (idx < 0 || idx >= strings.length) {
+				throw new IOException("Snapshot has an invalid string at " + (at - 4) + ".");
+			}
+			return strings[idx];
+		}
+
+		List<String> strings() throws IOException {
+			int count = card16();
+			List<String> l = new ArrayList<String>(count);
+			for (int i = 0; i < count; i++) {
+				l.add(string());
+			}
+			return l;
+		}
+	}
+
+	/**
+	 * Write a snapshot of a database directory.
+	 */
+	static void write(Path base, OutputStream out) throws IOException {
+		DefaultMIMEService mimeService = new DefaultMIMEService();
+		DefaultGlobService globService = new DefaultGlobService();
+		DefaultAliasService aliasService = new DefaultAliasService();
+		DefaultMagicService magicService = new DefaultMagicService();
+		mimeService.addBase(base);
+		globService.addBase(base);
+		aliasService.addBase(base);
+		magicService.addBase(base);
+
+		Map<String, Integer> table = new LinkedHashMap<String, Integer>();
+		Writer strings = new Writer(table);
+		Writer types = new Writer(table);
+		Writer details = new Writer(table);
+		List<MIMEEntry> entries = new ArrayList<MIMEEntry>(mimeService.getEntities(base));
+		// Sorted so the same database always gives the same snapshot
+		Collections.sort(entries, new Comparator<MIMEEntry>() {
+			public int compare(MIMEEntry o1, MIMEEntry o2) {
+				return o1.getInternalName().compareTo(o2.getInternalName());
+			}
+		});
+		types.card32(entries.size());
+		for (MIMEEntry entry : entries) {
+			types.string(entry.getInternalName());
+			types.string(entry.getIcon());
+			types.string(entry.getGenericIcon());
+			types.strings(entry.getSubclasses());
+			List<String> aliases = new ArrayList<String>();
+			for (AliasEntry alias : entry.getAliases()) {
+				aliases.add(alias.getInternalName());
+			}
+			types.strings(aliases);
+			types.card32(details.size());
+			List<String> languages = new ArrayList<String>(entry.getCommentLanguages());
+			Collections.sort(languages);
+			details.card16(languages.size());
+			for (String language : languages) {
+				details.string(language);
+				details.utf8(entry.getComment(language));
+			}
+			details.utf8s(entry.getAcronyms());
+			details.utf8s(entry.getExpandedAcronyms());
+			details.strings(entry.getGlobs());
+		}
+
+		Writer globs = new Writer(table);
+		List<Glob> globList = globService.getGlobs(base);
+		globs.card32(globList.size());
+		for (Glob glob : globList) {
+			globs.string(glob.getEntry().getInternalName());
+			globs.string(glob.getPattern());
+			globs.card16(glob.getWeight());
+			globs.card8(glob.isCaseSensitive() ? CASE_SENSITIVE : 0);
+		}
+
+		Writer aliases = new Writer(table);
+		Collection<AliasEntry> aliasList = aliasService.getAliases(base);
+		aliases.card32(aliasList.size());
+		for (AliasEntry alias : aliasList) {
+			aliases.string(alias.getInternalName());
+			aliases.string(alias.getAlias());
+		}
+
+		Writer magic = new Writer(table);
+		ByteArrayOutputStream arena = new ByteArrayOutputStream();
+		Writer rules = new Writer(table);
+		// Every section, the service keeps each as an entry of its own
+		Collection<MagicEntry> magicList = magicService.getEntities(base);
+		rules.card32(magicList.size());
+		for (MagicEntry entry : magicList) {
+			rules.string(entry.getInternalName());
+			rules.card32(entry.getPriority());
+			rules.card32(entry.size());
+			for (Pattern pattern : entry) {
+				rules.card32(pattern.getIndent());
+				rules.card64(pattern.getOffset());
+				rules.card32(pattern.getRangeLength());
+				rules.card32(pattern.getWordSize());
+				rules.card32(pattern.getValueLength());
+				rules.card32(arena.size());
+				arena.write(pattern.getValue());
+				if (pattern.hasMask()) {
+					rules.card32(arena.size());
+					arena.write(pattern.getMask());
+				} else {
+					rules.card32(-1);
+				}
+			}
+		}
+		magic.bytes(arena.toByteArray());
+		magic.append(rules);
+
+		Writer treeMagic = new Writer(table);
+		Path f = base.resolve("treemagic");
+		if (Files.exists(f)) {
+			treeMagic.card32(1);
+			treeMagic.bytes(Files.readAllBytes(f));
+		} else {
+			treeMagic.card32(0);
+		}
+
+		// The string table is only complete once everything else is written
+		strings.card32(table.size());
+		for (String s : table.keySet()) {
+			strings.utf8(s);
+		}
+
+		Writer[] sections = { strings, types, globs, aliases, magic, treeMagic, details };
+		DataOutputStream dout = new DataOutputStream(out);
+		dout.writeInt(SIGNATURE);
+		dout.writeInt(VERSION);
+		int at = HEADER_SIZE;
+		for (Writer section : sections) {
+			dout.writeInt(at);
+			at += section.size();
+		}
+		for (Writer section : sections) {
+			section.writeTo(dout);
+		}
+		dout.flush();
+	}
+
+	/**
+	 * Writes a section of a snapshot. Strings are shared by all sections.
+	 */
+	private final static class Writer extends DataOutputStream {
+		private final Map<String, Integer> table;
+
+		Writer(Map<String, Integer> table) {
+			super(new ByteArrayOutputStream());
+			this.table = table;
+		}
+
+		void card8(int v) throws IOException {
+			writeByte(v);
+		}
+
+		void card16(int v) throws IOException {
+			if (v < 0 || v > 0xffff) {
+				throw new IOException("Value " + v + " is too large for a snapshot.");
+			}
+			writeShort(v);
+		}
+
+		void card32(int v) throws IOException {
+			writeInt(v);
+		}
+
+		void card64(long v) throws IOException {
+			writeLong(v);
+		}
+
+		void bytes(byte[] b) throws IOException {
+			writeInt(b.length);
+			write(b);
+		}
+
+		void utf8(String s) throws IOException {
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			card16(b.length);
+			write(b);
+		}
+
+		void utf8s(Collection<String> l) throws IOException {
+			card16(l.size());
+			for (String s : l) {
+				utf8(s);
+			}
+		}
+
+		void string(String s) throws IOException {
+			if (s == null) {
+				writeInt(-1);
+				return;
+			}
+			Integer idx = table.get(s);
+			if (idx == null) {
+				idx = table.size();
+				table.put(s, idx);
+			}
+			writeInt(idx);
+		}
+
+		void strings(Collection<String> l) throws IOException {
+			card16(l.size());
+			for (String s : l) {
+				string(s);
+			}
+		}
+
+		void append(Writer other) throws IOException {
+			other.flush();
+			((ByteArrayOutputStream) other.out).writeTo(this);
+		}
+
+		void writeTo(OutputStream out) throws IOException {
+			flush();
+			((ByteArrayOutputStream) this.out).writeTo(out);
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.sshtools.jfreedesktop.util.Log;
+
+/**
+ * Loads {@link MIMEEntry}s from the package files in the <i>packages</i>
+ * directory of a shared MIME-info database, which describe many types each,
+ * rather than from one XML file per type. Each package is streamed in a
+ * single pass, and the entries it creates are complete, so nothing is parsed
+ * later.
+ * <p>
+ * Packages are read in name order, with <i>Override.xml</i> last. When more
+ * than one package describes a type, their descriptions are merged, later
+ * comments replacing earlier ones in the same language.
+ */
+final class PackageLoader {
+	private final static String OVERRIDE = "Override.xml";
+
+	private final XMLInputFactory factory;
+	private final Map<String, MIMEEntry> byType = new LinkedHashMap<String, MIMEEntry>();
+
+	PackageLoader() {
+		factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	/**
+	 * List the package files of a database, in the order they should be
+	 * loaded.
+	 *
+	 * @param base database directory
+	 * @return package files, empty if there are none
+	 * @throws IOException on error
+	 */
+	static List<Path> listPackages(Path base) throws IOException {
+		Path dir = base.resolve("packages");
+		List<Path> packages = new ArrayList<Path>();
+		if (Files.isDirectory(dir)) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path p : stream) {
+					if (p.getFileName().toString().toLowerCase().endsWith(".xml")) {
+						packages.add(p);
+					}
+				}
+			}
+		}
+		Collections.sort(packages, new Comparator<Path>() {
+			public int compare(Path o1, Path o2) {
+				String name1 = o1.getFileName().toString();
+				String name2 = o2.getFileName().toString();
+				boolean override1 = name1.equals(OVERRIDE);
+				boolean override2 = name2.equals(OVERRIDE);
+				return override1 == override2 ? name1.compareTo(name2) : (override1 ? 1 : -1);
+			}
+		});
+		return packages;
+	}
+
+	/**
+	 * Stream a package file, adding to or creating the entries for each type
+	 * it describes.
+	 *
+	 * @param file package file
+	 * @throws IOException on error
+	 */
+	void load(Path file) throws IOException {
+		try (InputStream in = Files.newInputStream(file)) {
+			XMLStreamReader reader = factory.createXMLStreamReader(in);
+			try {
+				load(file, reader);
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Failed to parse " + file + ".", e);
+		}
+	}
+
+	/**
+	 * Get the loaded entries. No more packages may be loaded afterwards.
+	 *
+	 * @return entries by type, in the order they were first described
+	 */
+	Map<String, MIMEEntry> complete() {
+		for (MIMEEntry entry : byType.values()) {
+			entry.complete();
+		}
+		return byType;
+	}
+
+	private void load(Path file, XMLStreamReader reader) throws XMLStreamException {
+		MIMEEntry current = null;
+		int depth = 0;
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.END_ELEMENT) {
+				if (--depth == 1) {
+					current = null;
+				}
+				continue;
+			}
+			if (event != XMLStreamConstants.START_ELEMENT) {
+				continue;
+			}
+			depth++;
+			String element = reader.getLocalName();
+			if (depth == 2 && element.equals("mime-type")) {
+				current = entry(file, reader.getAttributeValue(null, "type"));
+			} else if (depth == 3 && current != null) {
+				// Only the direct children of a type describe it
+				if (element.equals("comment")) {
+					String lang = reader.getAttributeValue(XMLConstants.XML_NS_URI, "lang");
+					current.addComment(lang, reader.getElementText());
+					depth--;
+				} else if (element.equals("acronym") || element.equals("expanded-acronym")) {
+					String lang = reader.getAttributeValue(XMLConstants.XML_NS_URI, "lang");
+					String text = reader.getElementText();
+					depth--;
+					// Localised acronyms are not yet supported
+					if (lang == null || lang.equals("")) {
+						if (element.equals("acronym")) {
+							current.addAcronym(text);
+						} else {
+							current.addExpandedAcronym(text);
+						}
+					}
+				} else if (element.equals("alias")) {
+					String type = reader.getAttributeValue(null, "type");
+					if (type != null) {
+						current.addAlias(type);
+					}
+				} else if (element.equals("sub-class-of")) {
+					String type = reader.getAttributeValue(null, "type");
+					if (type != null) {
+						current.addSubclass(type);
+					}
+				} else if (element.equals("glob")) {
+					String pattern = reader.getAttributeValue(null, "pattern");
+					if (pattern != null) {
+						current.addGlob(pattern);
+					}
+				} else if (element.equals("glob-deleteall")) {
+					current.clearGlobs();
+				} else if (element.equals("icon")) {
+					current.setIcons(reader.getAttributeValue(null, "name"), null);
+				} else if (element.equals("generic-icon")) {
+					current.setIcons(null, reader.getAttributeValue(null, "name"));
+				}
+			}
+		}
+	}
+
+	private MIMEEntry entry(Path file, String name) {
+		int idx = name == null ? -1 : name.indexOf('/');
+		if (idx < 1 || idx == name.length() - 1) {
+			Log.warn(file + " contains an invalid type '" + name + "'.");
+			return null;
+		}
+		MIMEEntry entry = byType.get(name);
+		if (entry == null) {
+			entry = new MIMEEntry(name.substring(0, idx), name.substring(idx + 1));
+			byType.put(name, entry);
+		}
+		return entry;
+	}
+}
@@ -0,0 +1,277 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The transitive closure of the subclass relation between types. Every type
+ * is given a dense ID, and the IDs of all of its ancestors are held in a
+ * bitset, so testing whether one type is a kind of another is a lookup of
+ * each name and a single bit test, however deep the hierarchy is.
+ * <p>
+ * Names are matched without case and aliases are resolved to the types they
+ * stand for. The implicit parents of a type, <i>text/plain</i> for text and
+ * <i>application/octet-stream</i> for streamable types, are included, also
+ * for types that are not otherwise known.
+ * <p>
+ * Parents and aliases are added, then {@link #compile()} is called once,
+ * after which the index may be shared by any number of threads.
+ */
+final class SubclassIndex {
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	// The same IDs by the spellings that were added, so most lookups need not fold case
+	private final Map<String, Integer> exact = new HashMap<String, Integer>();
+	private final List<String> names = new ArrayList<String>();
+	private final Map<String, String> aliases = new HashMap<String, String>();
+	private final Map<String, Collection<String>> parents = new LinkedHashMap<String, Collection<String>>();
+	private final Map<String, String> spellings = new HashMap<String, String>();
+	private BitSet[] ancestors;
+	private List<List<String>> ancestorNames;
+
+	/**
+	 * Build an index from the entries of any service, for those that do not
+	 * keep one of their own.
+	 *
+	 * @param service service
+	 * @return compiled index
+	 */
+	static SubclassIndex of(MIMEService service) {
+		SubclassIndex index = new SubclassIndex();
+		List<MIMEEntry> entries = new ArrayList<MIMEEntry>(service.getAllEntities());
+		// Overriding entries come first, so set their parents last
+		Collections.reverse(entries);
+		for (MIMEEntry entry : entries) {
+			index.addType(entry.getInternalName());
+			for (AliasEntry alias : entry.getAliases()) {
+				index.addAlias(alias.getInternalName(), entry.getInternalName());
+			}
+		}
+		for (MIMEEntry entry : entries) {
+			index.setParents(entry.getInternalName(), entry.getSubclasses());
+		}
+		return index.compile();
+	}
+
+	/**
+	 * Add a type. The first spelling of a name that is added is the one
+	 * returned by {@link #getAncestors(String)}.
+	 *
+	 * @param type type
+	 */
+	void addType(String type) {
+		String key = key(type);
+		Integer id = ids.get(key);
+		if (id == null) {
+			id = names.size();
+			ids.put(key, id);
+			names.add(type);
+		}
+		exact.put(type, id);
+	}
+
+	/**
+	 * Add an alias for a type.
+	 *
+	 * @param alias alias
+	 * @param type type it is an alias of
+	 */
+	void addAlias(String alias, String type) {
+		aliases.put(key(alias), key(type));
+	}
+
+	/**
+	 * Set the direct parents of a type, replacing any that were set before.
+	 *
+	 * @param type type
+	 * @param parents parents
+	 */
+	void setParents(String type, Collection<String> parents) {
+		String key = key(type);
+		this.parents.put(key, parents);
+		if (!spellings.containsKey(key)) {
+			spellings.put(key, type);
+		}
+	}
+
+	/**
+	 * Compute the ancestors of every type.
+	 *
+	 * @return this
+	 */
+	SubclassIndex compile() {
+		/*
+		 * Types that are only known from their parents are added now that
+		 * all aliases are known, so an alias is never given an ID of its own.
+		 * Implied parents may also name types that have not been seen yet
+		 */
+		for (Map.Entry<String, Collection<String>> en : parents.entrySet()) {
+			if (id(en.getKey()) == -1) {
+				addType(spellings.get(en.getKey()));
+			}
+			for (String parent : en.getValue()) {
+				if (id(parent) == -1) {
+					addType(parent);
+				}
+			}
+		}
+		for (int i = 0; i < names.size(); i++) {
+			String implicit = MIMEEntry.getImplicitParent(names.get(i));
+			if (implicit != null) {
+				addType(implicit);
+			}
+		}
+		int count = names.size();
+		List<List<Integer>> declared = new ArrayList<List<Integer>>(count);
+		for (int i = 0; i < count; i++) {
+			declared.add(null);
+		}
+		for (Map.Entry<String, Collection<String>> en : parents.entrySet()) {
+			List<Integer> l = new ArrayList<Integer>();
+			for (String parent : en.getValue()) {
+				l.add(id(parent));
+			}
+			declared.set(id(en.getKey()), l);
+		}
+		int[][] direct = new int[count][];
+		for (int i = 0; i < count; i++) {
+			BitSet seen = new BitSet(count);
+			List<Integer> l = new ArrayList<Integer>();
+			if (declared.get(i) != null) {
+				for (int parent : declared.get(i)) {
+					addParent(i, parent, seen, l);
+				}
+			}
+			addParent(i, id(MIMEEntry.getImplicitParent(names.get(i))), seen, l);
+			direct[i] = new int[l.size()];
+			for (int j = 0; j < direct[i].length; j++) {
+				direct[i][j] = l.get(j);
+			}
+		}
+		/*
+		 * Walk up from each type breadth first, so the ancestors are listed
+		 * nearest first. Cycles in broken databases are harmless, as each
+		 * type is only visited once
+		 */
+		ancestors = new BitSet[count];
+		ancestorNames = new ArrayList<List<String>>(count);
+		int[] queue = new int[count];
+		for (int i = 0; i < count; i++) {
+			BitSet bits = new BitSet(count);
+			List<String> l = new ArrayList<String>();
+			int head = 0;
+			int tail = 0;
+			queue[tail++] = i;
+			while (head < tail) {
+				for (int parent : direct[queue[head++]]) {
+					if (parent != i && !bits.get(parent)) {
+						bits.set(parent);
+						l.add(names.get(parent));
+						queue[tail++] = parent;
+					}
+				}
+			}
+			ancestors[i] = bits;
+			ancestorNames.add(Collections.unmodifiableList(l));
+		}
+		return this;
+	}
+
+	private static void addParent(int type, int parent, BitSet seen, List<Integer> l) {
+		if (parent != -1 && parent != type && !seen.get(parent)) {
+			seen.set(parent);
+			l.add(parent);
+		}
+	}
+
+	/**
+	 * Get whether a type is the same as, or a descendant of, another type.
+	 *
+	 * @param type type
+	 * @param superType possible ancestor
+	 * @return subclass of
+	 */
+	boolean isSubclassOf(String type, String superType) {
+		int superId = id(superType);
+		if (superId == -1) {
+			// An unknown type can only be the type itself, or the parent it implies
+			String implicit = MIMEEntry.getImplicitParent(type);
+			return key(type).equals(key(superType)) || (implicit != null && key(implicit).equals(key(superType)));
+		}
+		int id = id(type);
+		if (id == -1) {
+			// Unknown types still have the parent their family implies
+			id = id(MIMEEntry.getImplicitParent(type));
+			if (id == -1) {
+				return false;
+			}
+		}
+		return id == superId || ancestors[id].get(superId);
+	}
+
+	/**
+	 * Get all of the ancestors of a type, nearest first.
+	 *
+	 * @param type type
+	 * @return ancestors
+	 */
+	List<String> getAncestors(String type) {
+		int id = id(type);
+		if (id != -1) {
+			return ancestorNames.get(id);
+		}
+		String parent = MIMEEntry.getImplicitParent(type);
+		int implicit = id(parent);
+		if (implicit == -1) {
+			return parent == null ? Collections.<String>emptyList() : Collections.singletonList(parent);
+		}
+		List<String> l = new ArrayList<String>();
+		l.add(names.get(implicit));
+		l.addAll(ancestorNames.get(implicit));
+		return Collections.unmodifiableList(l);
+	}
+
+	private int id(String type) {
+		if (type == null) {
+			return -1;
+		}
+		Integer id = exact.get(type);
+		if (id != null) {
+			return id;
+		}
+		String key = key(type);
+		id = ids.get(key);
+		if (id == null) {
+			String alias = aliases.get(key);
+			if (alias != null) {
+				id = ids.get(alias);
+			}
+		}
+		return id == null ? -1 : id;
+	}
+
+	private static String key(String type) {
+		return type.toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A trie of suffixes, stored with their characters reversed so that the
+ * longest suffix of some text can be found by walking the text backwards once,
+ * without creating any substrings. The same walk can also find keys that match
+ * the whole text.
+ * <p>
+ * Lookups may fold the case of the text as it is walked, in which case the
+ * keys must have been added in lower case.
+ *
+ * @param <T> type of value associated with each suffix
+ */
+final class SuffixTrie<T> {
+	private final Node<T> root = new Node<T>();
+
+	/**
+	 * Add a value for a suffix. A suffix may have more than one value.
+	 *
+	 * @param suffix suffix
+	 * @param value value
+	 */
+	void add(CharSequence suffix, T value) {
+		Node<T> node = root;
+		for (int i = suffix.length() - 1; i >= 0; i--) {
+			node = node.child(suffix.charAt(i), true);
+		}
+		if (node.values == null) {
+			node.values = new ArrayList<T>(1);
+		}
+		if (!node.values.contains(value)) {
+			node.values.add(value);
+		}
+	}
+
+	/**
+	 * Sort the values of every suffix.
+	 *
+	 * @param comparator comparator
+	 */
+	void sort(Comparator<? super T> comparator) {
+		sort(root, comparator);
+	}
+
+	/**
+	 * Get the values for the longest suffix of the text that is in the trie.
+	 *
+	 * @param text text
+	 * @param fold whether to fold the text to lower case
+	 * @return values or <code>null</code> if no suffix matches
+	 */
+	List<T> match(CharSequence text, boolean fold) {
+		Node<T> node = root;
+		List<T> match = null;
+		for (int i = text.length() - 1; i >= 0; i--) {
+			node = node.child(fold ? Character.toLowerCase(text.charAt(i)) : text.charAt(i), false);
+			if (node == null) {
+				break;
+			}
+			if (node.values != null) {
+				match = node.values;
+			}
+		}
+		return match;
+	}
+
+	/**
+	 * Get the values for a key that is the same as the whole text.
+	 *
+	 * @param text text
+	 * @param fold whether to fold the text to lower case
+	 * @return values or <code>null</code> if the text is not a key
+	 */
+	List<T> matchExact(CharSequence text, boolean fold) {
+		Node<T> node = root;
+		for (int i = text.length() - 1; i >= 0 && node != null; i--) {
+			node = node.child(fold ? Character.toLowerCase(text.charAt(i)) : text.charAt(i), false);
+		}
+		return node == null ? null : node.values;
+	}
+
+	private static <T> void sort(Node<T> node, Comparator<? super T> comparator) {
+		if (node.values != null) {
+			Collections.sort(node.values, comparator);
+		}
+		for (Node<T> child : node.children) {
+			sort(child, comparator);
+		}
+	}
+
+	private final static class Node<T> {
+		private char[] keys = new char[0];
+		private Node<T>[] children = newArray(0);
+		private List<T> values;
+
+		Node<T> child(char c, boolean create) {
+			int idx = Arrays.binarySearch(keys, c);
+			if (idx >= 0) {
+				return children[idx];
+			}
+			if (!create) {
+				return null;
+			}
+			/* Keep the keys sorted so they can be binary searched */
+			idx = -idx - 1;
+			char[] newKeys = new char[keys.length + 1];
+			Node<T>[] newChildren = newArray(keys.length + 1);
+			System.arraycopy(keys, 0, newKeys, 0, idx);
+			System.arraycopy(children, 0, newChildren, 0, idx);
+			System.arraycopy(keys, idx, newKeys, idx + 1, keys.length - idx);
+			System.arraycopy(children, idx, newChildren, idx + 1, keys.length - idx);
+			Node<T> node = new Node<T>();
+			newKeys[idx] = c;
+			newChildren[idx] = node;
+			keys = newKeys;
+			children = newChildren;
+			return node;
+		}
+
+		@SuppressWarnings("unchecked")
+		private static <T> Node<T>[] newArray(int size) {
+			return (Node<T>[]) new Node<?>[size];
+		}
+	}
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+import com.sshtools.jfreedesktop.FreedesktopEntity;
+import com.sshtools.jfreedesktop.mime.TreeMagicEntry.Match;
+
+/**
+ * Represents a single <strong>treemagic</strong> entry as described in the
+ * <a href=
+ * "http://standards.freedesktop.org/shared-mime-info-spec/shared-mime-info-spec-latest.html">Shared
+ * MIME-info Database Specification</a>. Tree magic identifies the type of a
+ * directory, usually the root of a mounted volume, by the files it contains,
+ * and decides the <i>x-content/*</i> types.
+ */
+@SuppressWarnings("serial")
+public class TreeMagicEntry extends ArrayList<Match> implements FreedesktopEntity, Comparable<TreeMagicEntry> {
+
+	/**
+	 * The type of object a {@link Match} requires at its path.
+	 */
+	public enum Type {
+		FILE, DIRECTORY, LINK, ANY
+	}
+
+	/**
+	 * A single test for a path relative to the root being identified.
+	 */
+	public static class Match {
+		private int indent;
+		private String path;
+		private Type type = Type.ANY;
+		private boolean executable;
+		private boolean matchCase;
+		private boolean nonEmpty;
+		private String mimeType;
+
+		public int getIndent() {
+			return indent;
+		}
+
+		public void setIndent(int indent) {
+			this.indent = indent;
+		}
+
+		/**
+		 * Get the path to test, relative to the root and separated by
+		 * <code>/</code>.
+		 *
+		 * @return path
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		public void setPath(String path) {
+			this.path = path;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		public void setType(Type type) {
+			this.type = type;
+		}
+
+		public boolean isExecutable() {
+			return executable;
+		}
+
+		public void setExecutable(boolean executable) {
+			this.executable = executable;
+		}
+
+		/**
+		 * Get whether the path must match with the same case. Otherwise any
+		 * case matches, whatever the file system.
+		 *
+		 * @return match case
+		 */
+		public boolean isMatchCase() {
+			return matchCase;
+		}
+
+		public void setMatchCase(boolean matchCase) {
+			this.matchCase = matchCase;
+		}
+
+		/**
+		 * Get whether a directory must contain at least one entry, or a file
+		 * must not be empty.
+		 *
+		 * @return non empty
+		 */
+		public boolean isNonEmpty() {
+			return nonEmpty;
+		}
+
+		public void setNonEmpty(boolean nonEmpty) {
+			this.nonEmpty = nonEmpty;
+		}
+
+		/**
+		 * Get the MIME type the content of the file must have, if any.
+		 *
+		 * @return MIME type or <code>null</code>
+		 */
+		public String getMIMEType() {
+			return mimeType;
+		}
+
+		public void setMIMEType(String mimeType) {
+			this.mimeType = mimeType;
+		}
+
+		@Override
+		public String toString() {
+			return "Match [indent=" + indent + ", path=" + path + ", type=" + type + ", executable=" + executable
+					+ ", matchCase=" + matchCase + ", nonEmpty=" + nonEmpty + ", mimeType=" + mimeType + "]";
+		}
+	}
+
+	private final static IndentTree.Indent<Match> INDENT = new IndentTree.Indent<Match>() {
+		@Override
+		public int getIndent(Match test) {
+			return test.getIndent();
+		}
+	};
+
+	private String mimeType;
+	private int priority;
+	private transient volatile IndentTree<Match> rules;
+
+	public TreeMagicEntry(String mimeType, int priority) {
+		this.mimeType = mimeType;
+		this.priority = priority;
+	}
+
+	public TreeMagicEntry() {
+	}
+
+	public void setMIMEType(String mimeType) {
+		this.mimeType = mimeType;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	public void setPriority(int priority) {
+		this.priority = priority;
+	}
+
+	public String getInternalName() {
+		return mimeType;
+	}
+
+	/**
+	 * Test if this entry matches a directory. Matches form a tree according
+	 * to their indent, in the same way as the patterns of a
+	 * {@link MagicEntry}. Matches that require the content of a file to have a
+	 * particular MIME type never match, use
+	 * {@link TreeMagicService#match(Path)} to test those.
+	 *
+	 * @param root directory, usually the root of a volume
+	 * @return matches
+	 * @throws IOException on error
+	 */
+	public boolean match(Path root) throws IOException {
+		return match(new TreeProbe(root, null));
+	}
+
+	boolean match(TreeProbe probe) throws IOException {
+		return match(probe, rules());
+	}
+
+	/**
+	 * Get the top level rules of this entry, compiled from the flat list of
+	 * matches. They are compiled again if the list has changed.
+	 */
+	IndentTree.Rule<Match>[] rules() {
+		IndentTree<Match> tree = rules;
+		if (tree == null || tree.modCount != modCount) {
+			tree = new IndentTree<Match>(this, modCount, INDENT);
+			rules = tree;
+		}
+		return tree.roots;
+	}
+
+	private static boolean match(TreeProbe probe, IndentTree.Rule<Match>[] rules) throws IOException {
+		for (IndentTree.Rule<Match> rule : rules) {
+			if (probe.test(rule.test) && (rule.children.length == 0 || match(probe, rule.children))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "TreeMagicEntry [mimeType=" + mimeType + ", priority=" + priority + ", toString()=" + super.toString()
+				+ "]";
+	}
+
+	public int compareTo(TreeMagicEntry o) {
+		int i = mimeType.compareTo(o.mimeType);
+		return i == 0 ? Integer.valueOf(priority).compareTo(o.priority) : i;
+	}
+}
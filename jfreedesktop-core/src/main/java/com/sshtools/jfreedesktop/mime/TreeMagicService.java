@@ -0,0 +1,46 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import com.sshtools.jfreedesktop.FreedesktopService;
+
+public interface TreeMagicService extends FreedesktopService<TreeMagicEntry> {
+
+	/**
+	 * Find the highest priority entry whose matches are satisfied by a
+	 * directory, usually the root of a mounted volume.
+	 * 
+	 * @param root directory
+	 * @return entry or <code>null</code> if no entry matches
+	 * @throws IOException on error reading the directory
+	 */
+	TreeMagicEntry match(Path root) throws IOException;
+
+	/**
+	 * Find every entry whose matches are satisfied by a directory, as a volume
+	 * may have several kinds of content, for example both photos and
+	 * software.
+	 * 
+	 * @param root directory
+	 * @return entries, highest priority first
+	 * @throws IOException on error reading the directory
+	 */
+	List<TreeMagicEntry> matchAll(Path root) throws IOException;
+}
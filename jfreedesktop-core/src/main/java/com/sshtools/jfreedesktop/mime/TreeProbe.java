@@ -0,0 +1,245 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.sshtools.jfreedesktop.mime.TreeMagicEntry.Match;
+
+/**
+ * Evaluates tree magic matches against one directory. The attributes of each
+ * path, and the listing of each directory searched when matching without
+ * case, are read at most once however many entries test them, and may be
+ * read from several threads at once.
+ */
+final class TreeProbe {
+	private final static Node MISSING = new Node(null, null, null);
+
+	private final Path root;
+	private final MagicService magicService;
+	private final ConcurrentMap<String, Node> exact = new ConcurrentHashMap<String, Node>();
+	private final ConcurrentMap<String, Node> anyCase = new ConcurrentHashMap<String, Node>();
+	private final ConcurrentMap<Path, String[]> listings = new ConcurrentHashMap<Path, String[]>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param root directory being identified
+	 * @param magicService service used for matches that require a MIME type,
+	 *            or <code>null</code> if they never match
+	 */
+	TreeProbe(Path root, MagicService magicService) {
+		this.root = root;
+		this.magicService = magicService;
+	}
+
+	/**
+	 * Read what is needed to evaluate a match, without evaluating it.
+	 *
+	 * @param match match
+	 * @throws IOException on error
+	 */
+	void prefetch(Match match) throws IOException {
+		node(match.getPath(), match.isMatchCase());
+	}
+
+	/**
+	 * Test a single match, ignoring any nested matches.
+	 *
+	 * @param match match
+	 * @return matches
+	 * @throws IOException on error
+	 */
+	boolean test(Match match) throws IOException {
+		Node node = node(match.getPath(), match.isMatchCase());
+		if (node == MISSING) {
+			return false;
+		}
+		BasicFileAttributes attrs = node.target;
+		switch (match.getType()) {
+		case LINK:
+			if (!node.link.isSymbolicLink()) {
+				return false;
+			}
+			break;
+		case FILE:
+			if (attrs == null || !attrs.isRegularFile()) {
+				return false;
+			}
+			break;
+		case DIRECTORY:
+			if (attrs == null || !attrs.isDirectory()) {
+				return false;
+			}
+			break;
+		default:
+			break;
+		}
+		if (match.isNonEmpty() && !isNonEmpty(node)) {
+			return false;
+		}
+		if (match.isExecutable() && !Files.isExecutable(node.path)) {
+			return false;
+		}
+		if (match.getMIMEType() != null) {
+			if (magicService == null || attrs == null || !attrs.isRegularFile()) {
+				return false;
+			}
+			MagicEntry me = magicService.match(node.path);
+			return me != null && match.getMIMEType().equals(me.getInternalName());
+		}
+		return true;
+	}
+
+	private Node node(String path, boolean matchCase) throws IOException {
+		ConcurrentMap<String, Node> cache = matchCase ? exact : anyCase;
+		String key = matchCase ? path : path.toLowerCase(Locale.ROOT);
+		Node node = cache.get(key);
+		if (node == null) {
+			node = matchCase ? lookup(resolve(path)) : lookupAnyCase(path);
+			Node was = cache.putIfAbsent(key, node);
+			if (was != null) {
+				node = was;
+			}
+		}
+		return node;
+	}
+
+	private Node lookupAnyCase(String path) throws IOException {
+		// Most media use the expected case, so try that first
+		Node node = node(path, true);
+		if (node != MISSING) {
+			return node;
+		}
+		Path dir = root;
+		for (String name : split(path)) {
+			String found = null;
+			for (String candidate : list(dir)) {
+				if (candidate.equalsIgnoreCase(name)) {
+					found = candidate;
+					break;
+				}
+			}
+			if (found == null) {
+				return MISSING;
+			}
+			dir = dir.resolve(found);
+		}
+		return lookup(dir);
+	}
+
+	private String[] list(Path dir) throws IOException {
+		String[] names = listings.get(dir);
+		if (names == null) {
+			List<String> l = new ArrayList<String>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path p : stream) {
+					l.add(p.getFileName().toString());
+				}
+			} catch (FileSystemException fse) {
+				// Not a directory, gone, or not readable
+			}
+			names = l.toArray(new String[0]);
+			String[] was = listings.putIfAbsent(dir, names);
+			if (was != null) {
+				names = was;
+			}
+		}
+		return names;
+	}
+
+	private boolean isNonEmpty(Node node) throws IOException {
+		Boolean nonEmpty = node.nonEmpty;
+		if (nonEmpty == null) {
+			if (node.target == null) {
+				nonEmpty = false;
+			} else if (node.target.isDirectory()) {
+				try (DirectoryStream<Path> stream = Files.newDirectoryStream(node.path)) {
+					nonEmpty = stream.iterator().hasNext();
+				} catch (FileSystemException fse) {
+					nonEmpty = false;
+				}
+			} else {
+				nonEmpty = node.target.size() > 0;
+			}
+			node.nonEmpty = nonEmpty;
+		}
+		return nonEmpty;
+	}
+
+	private Path resolve(String path) {
+		Path p = root;
+		for (String name : split(path)) {
+			p = p.resolve(name);
+		}
+		return p;
+	}
+
+	private static List<String> split(String path) {
+		List<String> names = new ArrayList<String>();
+		for (String name : path.split("/")) {
+			if (!name.equals("")) {
+				names.add(name);
+			}
+		}
+		return names;
+	}
+
+	private static Node lookup(Path path) throws IOException {
+		BasicFileAttributes link;
+		try {
+			link = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (FileSystemException fse) {
+			// Missing, a parent is not a directory, or not readable
+			return MISSING;
+		}
+		BasicFileAttributes target = link;
+		if (link.isSymbolicLink()) {
+			try {
+				target = Files.readAttributes(path, BasicFileAttributes.class);
+			} catch (FileSystemException fse) {
+				// Dangling
+				target = null;
+			}
+		}
+		return new Node(path, link, target);
+	}
+
+	private final static class Node {
+		private final Path path;
+		private final BasicFileAttributes link;
+		/* Attributes of what a link points to, null if it is dangling */
+		private final BasicFileAttributes target;
+		private volatile Boolean nonEmpty;
+
+		Node(Path path, BasicFileAttributes link, BasicFileAttributes target) {
+			this.path = path;
+			this.link = link;
+			this.target = target;
+		}
+	}
+}
@@ -25,7 +25,7 @@ public abstract class AbstractThemeService<T extends Theme> extends AbstractFree
 
 
     // Private instance variables
-    private T theme;
+    private volatile T theme;
 
     public T getSelectedTheme() {
         return theme;
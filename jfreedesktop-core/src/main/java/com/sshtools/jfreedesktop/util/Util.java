@@ -20,6 +20,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -43,7 +44,12 @@ public class Util {
 		int separator = s.indexOf("!/");
 		String entryName = s.substring(separator + 2);
 		URI fileURI = URI.create(s.substring(0, separator));
-		FileSystem fs = FileSystems.newFileSystem(fileURI, Collections.<String, Object> emptyMap());
+		FileSystem fs;
+		try {
+			fs = FileSystems.newFileSystem(fileURI, Collections.<String, Object> emptyMap());
+		} catch (FileSystemAlreadyExistsException fsaee) {
+			fs = FileSystems.getFileSystem(fileURI);
+		}
 		return fs.getPath(entryName);
 	}
 
@@ -0,0 +1,139 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class AbstractFreedesktopServiceTest {
+
+	@Test
+	public void testOverridingBases() throws Exception {
+		TestService service = new TestService();
+		Path a = Paths.get("a");
+		Path b = Paths.get("b");
+		service.addBase(a);
+		service.addBase(b);
+		assertEquals(Arrays.asList(a, b), service.getBases());
+		assertEquals(Arrays.asList(b, a), service.getBasesInReverse());
+		// Later bases override earlier ones
+		assertEquals("b", service.getEntity("shared").base);
+		assertEquals("a", service.getEntity("a-only").base);
+		assertEquals(4, service.getAllEntities().size());
+		service.removeBase(b);
+		assertEquals("a", service.getEntity("shared").base);
+		assertNull(service.getEntity("b-only"));
+	}
+
+	@Test
+	public void testGeneration() throws Exception {
+		TestService service = new TestService();
+		long generation = service.getGeneration();
+		service.addBase(Paths.get("a"));
+		assertTrue(service.getGeneration() > generation);
+		generation = service.getGeneration();
+		service.addBase(Paths.get("a"));
+		service.removeBase(Paths.get("b"));
+		assertEquals(generation, service.getGeneration());
+		service.rebuild();
+		assertTrue(service.getGeneration() > generation);
+	}
+
+	@Test
+	public void testIndexFollowsBases() throws Exception {
+		TestService service = new TestService();
+		Path a = Paths.get("a");
+		Path b = Paths.get("b");
+		assertEquals(Arrays.<Path>asList(), service.<List<Path>>getIndex());
+		service.addBase(a);
+		service.addBase(b);
+		assertEquals(Arrays.asList(a, b), service.<List<Path>>getIndex());
+		service.removeBase(a);
+		List<Path> index = service.getIndex();
+		assertEquals(Arrays.asList(b), index);
+		service.rebuild();
+		assertEquals(Arrays.asList(b), service.<List<Path>>getIndex());
+		assertNotSame(index, service.<List<Path>>getIndex());
+	}
+
+	@Test
+	public void testDeprecatedFields() throws Exception {
+		TestService service = new TestService();
+		Path a = Paths.get("a");
+		Path b = Paths.get("b");
+		assertTrue(service.basesField().isEmpty());
+		service.addBase(a);
+		service.addBase(b);
+		assertEquals(Arrays.asList(a, b), service.basesListField());
+		assertEquals(2, service.basesField().get(b).size());
+		service.removeBase(a);
+		assertEquals(Arrays.asList(b), service.basesListField());
+		assertNull(service.basesField().get(a));
+	}
+
+	private final static class TestEntity implements FreedesktopEntity {
+		private final String name;
+		private final String base;
+
+		TestEntity(String name, String base) {
+			this.name = name;
+			this.base = base;
+		}
+
+		public String getInternalName() {
+			return name;
+		}
+	}
+
+	private final static class TestService extends AbstractFreedesktopService<TestEntity> {
+		@Override
+		protected Collection<TestEntity> scanBase(Path base) {
+			return Arrays.asList(new TestEntity("shared", base.toString()),
+					new TestEntity(base + "-only", base.toString()));
+		}
+
+		@Override
+		protected Object createIndex(List<Path> bases) {
+			return new ArrayList<Path>(bases);
+		}
+
+		void rebuild() {
+			indexChanged();
+		}
+
+		@SuppressWarnings("deprecation")
+		Map<Path, Collection<TestEntity>> basesField() {
+			return bases;
+		}
+
+		@SuppressWarnings("deprecation")
+		List<Path> basesListField() {
+			return basesList;
+		}
+	}
+}
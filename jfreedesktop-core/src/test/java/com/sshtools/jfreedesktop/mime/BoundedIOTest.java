@@ -0,0 +1,91 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class BoundedIOTest {
+
+	@Test
+	public void testThreadsBounded() throws Exception {
+		final ForkJoinPool pool = new ForkJoinPool(2);
+		final Semaphore permits = new Semaphore(1);
+		final AtomicInteger poolSize = new AtomicInteger();
+		final AtomicInteger ran = new AtomicInteger();
+		try {
+			pool.invoke(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+					for (int i = 0; i < 32; i++) {
+						tasks.add(new RecursiveAction() {
+							@Override
+							protected void compute() {
+								try {
+									BoundedIO.run(permits, new BoundedIO.Action() {
+										public void run() throws IOException {
+											poolSize.set(Math.max(poolSize.get(), pool.getPoolSize()));
+											ran.incrementAndGet();
+											try {
+												Thread.sleep(5);
+											} catch (InterruptedException ie) {
+												throw new IOException(ie);
+											}
+										}
+									});
+								} catch (Exception e) {
+									throw new IllegalStateException(e);
+								}
+							}
+						});
+					}
+					invokeAll(tasks);
+				}
+			});
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals(32, ran.get());
+		// Only the permit holder may be compensated for
+		assertTrue("Pool grew to " + poolSize.get(), poolSize.get() <= 3);
+		assertEquals(1, permits.availablePermits());
+	}
+
+	@Test(expected = IOException.class)
+	public void testFailure() throws Exception {
+		Semaphore permits = new Semaphore(1);
+		try {
+			BoundedIO.run(permits, new BoundedIO.Action() {
+				public void run() throws IOException {
+					throw new IOException("Failed");
+				}
+			});
+		} finally {
+			assertEquals(1, permits.availablePermits());
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import static com.sshtools.jfreedesktop.mime.TestServices.type;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CachingMIMEServiceTest {
+
+	@Test
+	public void testHits() throws Exception {
+		CachingMIMEService service = new CachingMIMEService(TestServices.mimeService(TestServices.DEFAULT_MIME), 10);
+		Path dir = Files.createTempDirectory("cache");
+		Path pdf = Files.write(dir.resolve("document"), "%PDF-1.4\n".getBytes(StandardCharsets.US_ASCII));
+		assertEquals("application/pdf", type(service.classify(pdf, true)));
+		assertEquals("application/pdf", type(service.classify(pdf, true)));
+		assertEquals(1, service.getHitCount());
+		assertEquals(1, service.getMissCount());
+		// Looked up separately without magic
+		assertEquals("application/octet-stream", type(service.classify(pdf, false)));
+		assertEquals(2, service.getSize());
+		// Changed, so classified again
+		Files.write(pdf, "Some text".getBytes(StandardCharsets.US_ASCII));
+		Files.setLastModifiedTime(pdf, FileTime.fromMillis(System.currentTimeMillis() + 60000));
+		assertEquals("text/plain", type(service.classify(pdf, true)));
+		assertEquals(1, service.getHitCount());
+	}
+
+	@Test
+	public void testDirectoriesNotCached() throws Exception {
+		CachingMIMEService service = new CachingMIMEService(TestServices.mimeService(TestServices.DEFAULT_MIME), 10);
+		Path dir = Files.createTempDirectory("cache");
+		List<Path> files = Arrays.asList(dir, dir.resolve("missing"));
+		for (int i = 0; i < 2; i++) {
+			assertEquals("inode/directory", type(service.classify(dir, true)));
+			service.classifyAll(files, true);
+		}
+		assertEquals(0, service.getHitCount());
+		assertEquals(0, service.getSize());
+	}
+
+	@Test
+	public void testInvalidatedWhenBasesChange() throws Exception {
+		DefaultGlobService globService = new DefaultGlobService();
+		globService.addBase(TestServices.DEFAULT_MIME);
+		DefaultMagicService magicService = new DefaultMagicService();
+		magicService.addBase(TestServices.DEFAULT_MIME);
+		DefaultMIMEService mimeService = new DefaultMIMEService(globService, null, magicService);
+		mimeService.addBase(TestServices.DEFAULT_MIME);
+		CachingMIMEService service = new CachingMIMEService(mimeService, 10);
+		Path file = Files.write(Files.createTempDirectory("cache").resolve("x.xyzzy"),
+				"%PDF-1.4\n".getBytes(StandardCharsets.US_ASCII));
+		assertEquals("application/pdf", type(service.classify(file, true)));
+		assertEquals(1, service.getSize());
+		// A base added to a service the wrapped service uses
+		globService.addBase(DefaultGlobServiceTest.base("60:image/png:*.xyzzy"));
+		assertEquals("image/png", type(service.classify(file, true)));
+		assertEquals(0, service.getHitCount());
+		assertEquals("image/png", type(service.classify(file, true)));
+		assertEquals(1, service.getHitCount());
+	}
+
+	@Test
+	public void testGenerationOnlyIncreases() throws Exception {
+		DefaultMIMEService mimeService = new DefaultMIMEService(null, null, null);
+		DefaultTreeMagicService treeMagic1 = new DefaultTreeMagicService();
+		treeMagic1.addBase(TestServices.DEFAULT_MIME);
+		DefaultTreeMagicService treeMagic2 = new DefaultTreeMagicService();
+		treeMagic2.addBase(TestServices.DEFAULT_MIME);
+		long generation = mimeService.getGeneration();
+		assertEquals(generation, mimeService.getGeneration());
+		/*
+		 * Replacing a service with another of the same generation is still a
+		 * change, as is going back to an earlier one
+		 */
+		for (TreeMagicService treeMagic : new TreeMagicService[] { treeMagic1, treeMagic2, null, treeMagic1 }) {
+			mimeService.setTreeMagicService(treeMagic);
+			long next = mimeService.getGeneration();
+			assertTrue(next > generation);
+			generation = next;
+		}
+		treeMagic1.removeBase(TestServices.DEFAULT_MIME);
+		assertTrue(mimeService.getGeneration() > generation);
+	}
+}
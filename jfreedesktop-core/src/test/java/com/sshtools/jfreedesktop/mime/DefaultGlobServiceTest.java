@@ -0,0 +1,164 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Test;
+
+public class DefaultGlobServiceTest {
+
+	@Test
+	public void testWeights() throws Exception {
+		DefaultGlobService service = service(base("50:text/x-low:*.foo", "80:text/x-high:*.foo",
+				"50:text/x-a:*.tar.gz", "60:text/x-b:*.gz", "40:text/x-light:*.t??", "60:text/x-heavy:*.t{a,b}?",
+				"50:text/x-short:a*", "50:text/x-long:ab*"));
+		assertEquals("text/x-high", match(service, "x.foo"));
+		// The longest extension wins whatever its weight
+		assertEquals("text/x-a", match(service, "x.tar.gz"));
+		assertEquals("text/x-b", match(service, "x.gz"));
+		// Heavier patterns win, including those using groups
+		assertEquals("text/x-heavy", match(service, "x.tax"));
+		assertEquals("text/x-light", match(service, "x.tcx"));
+		// Then longer patterns
+		assertEquals("text/x-long", match(service, "abc"));
+	}
+
+	@Test
+	public void testConflictsRequireMagic() throws Exception {
+		DefaultGlobService service = service(base("50:text/x-a:*.dup", "50:text/x-b:*.dup", "50:text/x-c:*.dup"));
+		try {
+			service.match("x.dup");
+			fail("Expected conflict");
+		} catch (MagicRequiredException mre) {
+			List<String> types = new ArrayList<String>();
+			for (GlobEntry entry : mre.getAlternatives()) {
+				types.add(entry.getInternalName());
+			}
+			assertEquals(Arrays.asList("text/x-a", "text/x-b", "text/x-c"), types);
+		}
+	}
+
+	@Test
+	public void testCaseSensitive() throws Exception {
+		DefaultGlobService service = service(base("50:text/x-c++src:*.C:cs", "50:text/x-csrc:*.c",
+				"50:text/x-makefile:Makefile:cs", "50:text/x-readme:README*:cs"));
+		assertEquals("text/x-c++src", match(service, "x.C"));
+		assertEquals("text/x-csrc", match(service, "x.c"));
+		assertEquals("text/x-makefile", match(service, "Makefile"));
+		assertNull(match(service, "makefile"));
+		assertEquals("text/x-readme", match(service, "README.txt"));
+		assertNull(match(service, "readme.txt"));
+	}
+
+	@Test
+	public void testCaseSensitiveRepeated() throws Exception {
+		// As written by update-mime-database, for readers that ignore flags
+		DefaultGlobService service = service(base("50:text/x-c++src:*.C:cs", "50:text/x-c++src:*.C",
+				"50:text/x-csrc:*.c"));
+		assertEquals(1, service.getByMimeType("text/x-c++src").getGlobs().size());
+		assertEquals("text/x-c++src", match(service, "x.C"));
+		assertEquals("text/x-csrc", match(service, "x.c"));
+	}
+
+	@Test
+	public void testFoldsCase() throws Exception {
+		DefaultGlobService service = service(base("50:image/png:*.png", "50:text/x-readme:readme*",
+				"50:text/x-makefile:makefile", "50:text/x-iso:*.ISO"));
+		assertEquals("image/png", match(service, "X.PNG"));
+		assertEquals("image/png", match(service, "x.Png"));
+		assertEquals("text/x-readme", match(service, "ReadMe.1st"));
+		assertEquals("text/x-makefile", match(service, "MakeFile"));
+		assertEquals("text/x-iso", match(service, "disk.iso"));
+		assertEquals("text/x-iso", match(service, "DISK.ISO"));
+	}
+
+	@Test
+	public void testFoldsCaseWhateverTheLocale() throws Exception {
+		Locale locale = Locale.getDefault();
+		// Lower cases I as a dotless i
+		Locale.setDefault(new Locale("tr", "TR"));
+		try {
+			DefaultGlobService service = service(base("50:text/x-iso:*.ISO", "50:text/x-ini:INI*"));
+			assertEquals("text/x-iso", match(service, "disk.iso"));
+			assertEquals("text/x-iso", match(service, "DISK.ISO"));
+			assertEquals("text/x-ini", match(service, "ini.txt"));
+		} finally {
+			Locale.setDefault(locale);
+		}
+	}
+
+	@Test
+	public void testNoGlobs() throws Exception {
+		Path lower = base("50:text/x-a:*.aaa", "50:text/x-b:*.bbb");
+		Path upper = base("50:text/x-a:__NOGLOBS__", "50:text/x-a:*.ccc", "50:text/x-b:*.ddd");
+		DefaultGlobService service = service(lower, upper);
+		// Discarded by the later base
+		assertNull(match(service, "x.aaa"));
+		assertEquals("text/x-a", match(service, "x.ccc"));
+		assertEquals("__NOGLOBS__", service.getByMimeType("text/x-a").getPatterns().iterator().next());
+		// Merged otherwise
+		assertEquals("text/x-b", match(service, "x.bbb"));
+		assertEquals("text/x-b", match(service, "x.ddd"));
+		service.removeBase(upper);
+		assertEquals("text/x-a", match(service, "x.aaa"));
+	}
+
+	@Test
+	public void testLegacyGlobs() throws Exception {
+		Path base = Files.createTempDirectory("globs");
+		Files.write(base.resolve("globs"), "text/x-a:*.aaa\ntext/x-b:*.BBB\n".getBytes(StandardCharsets.UTF_8));
+		DefaultGlobService service = service(base);
+		assertEquals("text/x-a", match(service, "X.AAA"));
+		// Upper case patterns in the legacy format are case sensitive
+		assertEquals("text/x-b", match(service, "x.BBB"));
+		assertNull(match(service, "x.bbb"));
+	}
+
+	static Path base(String... globs2) throws IOException {
+		Path base = Files.createTempDirectory("globs2");
+		StringBuilder content = new StringBuilder("# Test\n");
+		for (String line : globs2) {
+			content.append(line).append('\n');
+		}
+		Files.write(base.resolve("globs2"), content.toString().getBytes(StandardCharsets.UTF_8));
+		return base;
+	}
+
+	private static DefaultGlobService service(Path... bases) throws IOException {
+		DefaultGlobService service = new DefaultGlobService();
+		for (Path base : bases) {
+			service.addBase(base);
+		}
+		return service;
+	}
+
+	private static String match(DefaultGlobService service, String name) throws MagicRequiredException {
+		GlobEntry entry = service.match(name);
+		return entry == null ? null : entry.getInternalName();
+	}
+}
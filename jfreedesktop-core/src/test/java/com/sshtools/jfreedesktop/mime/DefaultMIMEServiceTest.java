@@ -0,0 +1,131 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import static com.sshtools.jfreedesktop.mime.TestServices.type;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sshtools.jfreedesktop.mime.Classification.Stage;
+
+public class DefaultMIMEServiceTest {
+	private static DefaultMIMEService service;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		service = TestServices.mimeService(TestServices.DEFAULT_MIME);
+	}
+
+	@Test
+	public void testClassify() throws Exception {
+		Path dir = Files.createTempDirectory("classify");
+		Path png = write(dir.resolve("image.png"), new byte[] { 1, 2, 3 });
+		Path pdf = write(dir.resolve("document"), "%PDF-1.4\n".getBytes(StandardCharsets.US_ASCII));
+		Path text = write(dir.resolve("notes"), "Just some text".getBytes(StandardCharsets.US_ASCII));
+		Path folder = Files.createDirectory(dir.resolve("folder.png"));
+		assertClassified("image/png", Stage.GLOB, service.classify(png, true));
+		assertClassified("application/pdf", Stage.MAGIC, service.classify(pdf, true));
+		assertClassified("text/plain", Stage.FALLBACK, service.classify(text, true));
+		// A directory is never typed by its name
+		assertClassified("inode/directory", Stage.DIRECTORY, service.classify(folder, true));
+		assertClassified("inode/directory", Stage.DIRECTORY, service.classify(folder, false));
+		assertClassified("application/octet-stream", Stage.FALLBACK, service.classify(pdf, false));
+	}
+
+	@Test
+	public void testClassifyAll() throws Exception {
+		Path dir = Files.createTempDirectory("classify");
+		List<Path> files = Arrays.asList(write(dir.resolve("image.png"), new byte[] { 1, 2, 3 }),
+				write(dir.resolve("document"), "%PDF-1.4\n".getBytes(StandardCharsets.US_ASCII)),
+				Files.createDirectory(dir.resolve("folder.png")), dir.resolve("missing"),
+				dir.resolve("missing.png"));
+		for (boolean useMagic : new boolean[] { true, false }) {
+			List<Classification> results = service.classifyAll(files, useMagic);
+			assertEquals(files.size(), results.size());
+			for (int i = 0; i < files.size(); i++) {
+				Classification result = results.get(i);
+				assertEquals(files.get(i), result.getFile());
+				if (useMagic && files.get(i).getFileName().toString().equals("missing")) {
+					// Only reading the file fails
+					assertNotNull(result.getError());
+					assertNull(result.getEntry());
+				} else {
+					Classification expected = service.classify(files.get(i), useMagic);
+					assertClassified(type(expected), expected.getStage(), result);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testContent() throws Exception {
+		byte[] pdf = "%PDF-1.4\n".getBytes(StandardCharsets.US_ASCII);
+		assertEquals("application/pdf", service.getMimeTypeForContent(null, pdf).getInternalName());
+		assertEquals("application/pdf", service.getMimeTypeForContent("x.unknown", pdf).getInternalName());
+		assertEquals("image/png", service.getMimeTypeForContent("x.png", pdf).getInternalName());
+	}
+
+	@Test
+	public void testAliases() throws Exception {
+		assertEquals("application/pdf", service.getEntryForMimeType("application/x-pdf").getInternalName());
+	}
+
+	@Test
+	public void testIcons() throws Exception {
+		MIMEEntry pdf = service.getEntryForMimeType("application/pdf");
+		assertEquals("application-pdf", pdf.getIcon());
+		assertEquals("x-office-document", pdf.getGenericIcon());
+		assertEquals("virtualbox-vbox", service.getEntryForMimeType("application/x-virtualbox-vbox").getIcon());
+		// Without an icon listed, the name of the type is the icon
+		MIMEEntry png = new MIMEEntry("image", "png", TestServices.DEFAULT_MIME.resolve("image/png.xml"));
+		assertEquals("image-png", png.getIcon());
+		assertEquals("image-x-generic", png.getGenericIcon());
+	}
+
+	@Test
+	public void testDatabaseHash() throws Exception {
+		byte[] hash = service.getDatabaseHash();
+		assertEquals(MimeResultStore.HASH_LENGTH, hash.length);
+		assertArrayEquals(hash, TestServices.mimeService(TestServices.DEFAULT_MIME).getDatabaseHash());
+		// Only the services present are hashed
+		DefaultMIMEService types = new DefaultMIMEService();
+		types.addBase(TestServices.DEFAULT_MIME);
+		assertFalse(Arrays.equals(hash, types.getDatabaseHash()));
+	}
+
+	private static void assertClassified(String type, Stage stage, Classification result) {
+		assertNull(result.getError());
+		assertEquals(type, type(result));
+		assertEquals(stage, result.getStage());
+	}
+
+	private static Path write(Path file, byte[] content) throws Exception {
+		Files.write(file, content);
+		return file;
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sshtools.jfreedesktop.mime.MagicEntry.Pattern;
+
+public class DefaultMagicServiceTest {
+	private final static String ODT = "application/vnd.oasis.opendocument.text";
+
+	@Test
+	public void testSections() throws Exception {
+		// Shaped like the OpenDocument types, a type either side of another
+		DefaultMagicService service = service(base("[70:application/x-doc]", ">0=PK", "1>2=doc",
+				"[60:application/zip]", ">0=PK", "[50:application/x-doc]", ">0=DOC!"));
+		assertEquals(3, service.getAllEntities().size());
+		assertEquals("application/x-doc", type(service.match(MagicEntryTest.data("PKdoc"))));
+		assertEquals("application/zip", type(service.match(MagicEntryTest.data("PKzip"))));
+		assertEquals("application/x-doc", type(service.match(MagicEntryTest.data("DOC!"))));
+		// One entry for the type, that matches if any section does
+		MagicEntry entry = service.getEntity("application/x-doc");
+		assertEquals(70, entry.getPriority());
+		assertTrue(entry.match(MagicEntryTest.data("PKdoc")));
+		assertTrue(entry.match(MagicEntryTest.data("DOC!")));
+	}
+
+	@Test
+	public void testSectionsReplacedByLaterBase() throws Exception {
+		DefaultMagicService service = service(
+				base("[70:application/x-doc]", ">0=PK", "1>2=doc", "[50:application/x-doc]", ">0=DOC!"),
+				base("[40:application/x-doc]", ">0=NEWDOC"));
+		assertEquals(null, type(service.match(MagicEntryTest.data("PKdoc"))));
+		assertEquals(null, type(service.match(MagicEntryTest.data("DOC!"))));
+		assertEquals("application/x-doc", type(service.match(MagicEntryTest.data("NEWDOC"))));
+		assertEquals(40, service.getEntity("application/x-doc").getPriority());
+	}
+
+	@Test
+	public void testOpenDocument() throws Exception {
+		DefaultMagicService service = service(TestServices.DEFAULT_MIME);
+		assertEquals(ODT, type(service.match(openDocument(ODT))));
+		assertEquals("application/zip", type(service.match(openDocument("application/x-other"))));
+		// From the snapshot the build writes
+		BuiltInMagicService builtIn = new BuiltInMagicService();
+		assertNotNull(MimeSnapshot.get(builtIn.getBases().iterator().next()));
+		assertEquals(service.getAllEntities().size(), builtIn.getAllEntities().size());
+		assertEquals(ODT, type(builtIn.match(openDocument(ODT))));
+	}
+
+	@Test
+	public void testSameAsPriorityOrder() throws Exception {
+		DefaultMagicService service = service(TestServices.DEFAULT_MIME);
+		List<MagicEntry> ordered = new ArrayList<MagicEntry>(service.getAllEntities());
+		Collections.sort(ordered, new Comparator<MagicEntry>() {
+			public int compare(MagicEntry o1, MagicEntry o2) {
+				return Integer.compare(o2.getPriority(), o1.getPriority());
+			}
+		});
+		List<ByteBuffer> data = new ArrayList<ByteBuffer>();
+		data.add(openDocument(ODT));
+		// Something shaped like the rules of each section
+		for (MagicEntry entry : ordered) {
+			byte[] b = new byte[Math.min(entry.getExtent(), 4096)];
+			for (Pattern pattern : entry) {
+				byte[] value = pattern.getValue();
+				if (pattern.getOffset() + value.length <= b.length) {
+					System.arraycopy(value, 0, b, (int) pattern.getOffset(), value.length);
+				}
+			}
+			data.add(ByteBuffer.wrap(b));
+		}
+		for (ByteBuffer d : data) {
+			MagicEntry expected = null;
+			for (MagicEntry entry : ordered) {
+				if (entry.match(d)) {
+					expected = entry;
+					break;
+				}
+			}
+			assertEquals(type(expected), type(service.match(d)));
+		}
+	}
+
+	static ByteBuffer openDocument(String mimeType) {
+		byte[] b = new byte[38 + mimeType.length()];
+		System.arraycopy(new byte[] { 'P', 'K', 3, 4 }, 0, b, 0, 4);
+		System.arraycopy("mimetype".getBytes(StandardCharsets.US_ASCII), 0, b, 30, 8);
+		System.arraycopy(mimeType.getBytes(StandardCharsets.US_ASCII), 0, b, 38, mimeType.length());
+		return ByteBuffer.wrap(b);
+	}
+
+	/**
+	 * Write a magic database, with each rule given as
+	 * <i>[indent]&gt;offset=value</i>.
+	 */
+	static Path base(String... lines) throws IOException {
+		Path base = Files.createTempDirectory("magic");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write("MIME-Magic\0\n".getBytes(StandardCharsets.US_ASCII));
+		for (String line : lines) {
+			int eq = line.indexOf('=');
+			if (line.startsWith("[")) {
+				out.write(line.getBytes(StandardCharsets.US_ASCII));
+			} else {
+				byte[] value = line.substring(eq + 1).getBytes(StandardCharsets.ISO_8859_1);
+				out.write(line.substring(0, eq + 1).getBytes(StandardCharsets.US_ASCII));
+				out.write(value.length >> 8);
+				out.write(value.length);
+				out.write(value);
+			}
+			out.write('\n');
+		}
+		Files.write(base.resolve("magic"), out.toByteArray());
+		return base;
+	}
+
+	private static DefaultMagicService service(Path... bases) throws IOException {
+		DefaultMagicService service = new DefaultMagicService();
+		for (Path base : bases) {
+			service.addBase(base);
+		}
+		return service;
+	}
+
+	private static String type(MagicEntry entry) {
+		return entry == null ? null : entry.getInternalName();
+	}
+}
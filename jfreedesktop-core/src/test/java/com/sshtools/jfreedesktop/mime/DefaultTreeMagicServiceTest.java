@@ -0,0 +1,94 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class DefaultTreeMagicServiceTest {
+
+	@Test
+	public void testMatch() throws Exception {
+		DefaultTreeMagicService service = service(TestServices.DEFAULT_MIME);
+		Path root = Files.createTempDirectory("volume");
+		assertNull(service.match(root));
+		// Must not be empty
+		Path dcim = Files.createDirectory(root.resolve("DCIM"));
+		assertNull(service.match(root));
+		Files.createFile(dcim.resolve("IMG_0001.JPG"));
+		assertEquals("x-content/image-dcf", type(service.match(root)));
+	}
+
+	@Test
+	public void testMatchCase() throws Exception {
+		DefaultTreeMagicService service = service(TestServices.DEFAULT_MIME);
+		Path root = Files.createTempDirectory("volume");
+		Files.createFile(Files.createDirectory(root.resolve("pictures")).resolve("1.jpg"));
+		assertNull(service.match(root));
+		Path video = Files.createDirectory(root.resolve("video_ts"));
+		Files.createFile(video.resolve("Video_TS.ifo"));
+		assertEquals("x-content/video-dvd", type(service.match(root)));
+	}
+
+	@Test
+	public void testNested() throws Exception {
+		Path base = Files.createTempDirectory("mime");
+		Files.write(base.resolve("treemagic"),
+				("MIME-TreeMagic\0\n[60:x-content/test]\n>\"a\"=directory\n1>\"a/b\"=file\n1>\"a/c\"=file\n"
+						+ "[50:x-content/other]\n>\"a\"=directory\n").getBytes(StandardCharsets.UTF_8));
+		DefaultTreeMagicService service = service(base);
+		Path root = Files.createTempDirectory("volume");
+		Path a = Files.createDirectory(root.resolve("a"));
+		assertEquals("x-content/other", type(service.match(root)));
+		Files.createFile(a.resolve("c"));
+		assertEquals("x-content/test", type(service.match(root)));
+		assertEquals(2, service.matchAll(root).size());
+	}
+
+	@Test
+	public void testProbeConcurrency() throws Exception {
+		Path root = Files.createTempDirectory("volume");
+		Files.createFile(Files.createDirectory(root.resolve("dcim")).resolve("1.jpg"));
+		DefaultTreeMagicService service = service(TestServices.DEFAULT_MIME);
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			service.setProbePool(pool);
+			for (int concurrency : new int[] { 1, 2, 16 }) {
+				service.setProbeConcurrency(concurrency);
+				assertEquals("x-content/image-dcf", type(service.match(root)));
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static DefaultTreeMagicService service(Path base) throws Exception {
+		DefaultTreeMagicService service = new DefaultTreeMagicService();
+		service.addBase(base);
+		return service;
+	}
+
+	private static String type(TreeMagicEntry entry) {
+		return entry == null ? null : entry.getInternalName();
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class GlobAutomatonTest {
+
+	@Test
+	public void testWildcards() {
+		GlobAutomaton<String> automaton = automaton(true, "*.tar.*", "README*", "[Mm]akefile", "file?.txt",
+				"[!a-c]x", "a\\*b");
+		assertEquals(Arrays.asList("*.tar.*"), automaton.match("x.tar.gz"));
+		assertEquals(Arrays.asList("README*"), automaton.match("README.md"));
+		assertEquals(Arrays.asList("[Mm]akefile"), automaton.match("makefile"));
+		assertEquals(Arrays.asList("file?.txt"), automaton.match("file1.txt"));
+		assertEquals(Collections.emptyList(), automaton.match("file12.txt"));
+		assertEquals(Arrays.asList("[!a-c]x"), automaton.match("dx"));
+		assertEquals(Collections.emptyList(), automaton.match("bx"));
+		assertEquals(Arrays.asList("a\\*b"), automaton.match("a*b"));
+		assertEquals(Collections.emptyList(), automaton.match("axb"));
+	}
+
+	@Test
+	public void testFoldsCase() {
+		GlobAutomaton<String> automaton = automaton(false, "*.tar.*", "readme*");
+		assertEquals(Arrays.asList("*.tar.*"), automaton.match("X.TAR.GZ"));
+		assertEquals(Arrays.asList("readme*"), automaton.match("ReadMe"));
+		assertEquals(Collections.emptyList(), automaton(true, "readme*").match("ReadMe"));
+	}
+
+	@Test
+	public void testAllMatchesInOrder() {
+		GlobAutomaton<String> automaton = automaton(true, "*.a*", "*.*", "*");
+		assertEquals(Arrays.asList("*.a*", "*.*", "*"), automaton.match("x.ab"));
+		assertEquals(Arrays.asList("*.*", "*"), automaton.match("x.b"));
+	}
+
+	@Test
+	public void testGroupsAreSortedWithOtherMatches() {
+		GlobAutomaton<Integer> automaton = new GlobAutomaton<Integer>(true, null);
+		automaton.add("*.t{a,b}", 1);
+		automaton.add("*.t?", 2);
+		automaton.add("*.{ta,x}", 3);
+		automaton.compile();
+		assertEquals(Arrays.asList(1, 2, 3), automaton.match("x.ta"));
+		assertEquals(Arrays.asList(1, 2), automaton.match("x.tb"));
+		assertEquals(Arrays.asList(2), automaton.match("x.tc"));
+		assertEquals(Arrays.asList(3), automaton.match("y.x"));
+	}
+
+	@Test
+	public void testRandomNamesMatchExpressions() {
+		// Same results as the regular expressions for lots of different names
+		String[] patterns = { "*a*b*", "*b?c*", "*[cd]*[ef]*", "*a*", "*f*a*", "?*e?*d*" };
+		GlobAutomaton<String> automaton = automaton(true, patterns);
+		List<Pattern> expected = new ArrayList<Pattern>();
+		for (String pattern : patterns) {
+			expected.add(Pattern.compile(DefaultGlobService.globToRE(pattern)));
+		}
+		Random random = new Random(1);
+		for (int i = 0; i < 20000; i++) {
+			StringBuilder name = new StringBuilder();
+			for (int j = random.nextInt(24); j >= 0; j--) {
+				name.append((char) ('a' + random.nextInt(6)));
+			}
+			List<String> matches = new ArrayList<String>();
+			for (int j = 0; j < patterns.length; j++) {
+				if (expected.get(j).matcher(name).matches()) {
+					matches.add(patterns[j]);
+				}
+			}
+			assertEquals(name.toString(), matches, automaton.match(name));
+		}
+	}
+
+	private static GlobAutomaton<String> automaton(boolean caseSensitive, String... patterns) {
+		GlobAutomaton<String> automaton = new GlobAutomaton<String>(caseSensitive, null);
+		for (String pattern : patterns) {
+			automaton.add(pattern, pattern);
+		}
+		automaton.compile();
+		return automaton;
+	}
+}
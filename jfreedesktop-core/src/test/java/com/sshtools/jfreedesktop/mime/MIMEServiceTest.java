@@ -0,0 +1,150 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import static com.sshtools.jfreedesktop.mime.TestServices.type;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sshtools.jfreedesktop.mime.Classification.Stage;
+
+/**
+ * Uses the default methods of a service that only implements those
+ * {@link MIMEService} has always had.
+ */
+public class MIMEServiceTest {
+	private static MIMEService service;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		service = new MinimalService(TestServices.mimeService(TestServices.DEFAULT_MIME));
+	}
+
+	@Test
+	public void testClassify() throws Exception {
+		Path dir = Files.createTempDirectory("classify");
+		Path pdf = Files.write(dir.resolve("document.pdf"), "%PDF-1.4\n".getBytes(StandardCharsets.US_ASCII));
+		Path unnamed = Files.write(dir.resolve("document"), "%PDF-1.4\n".getBytes(StandardCharsets.US_ASCII));
+		List<Classification> results = service.classifyAll(Arrays.asList(pdf, unnamed, dir, dir.resolve("missing")),
+				true);
+		assertEquals("application/pdf", type(results.get(0)));
+		assertEquals(Stage.GLOB, results.get(0).getStage());
+		assertEquals("application/pdf", type(results.get(1)));
+		assertEquals(Stage.MAGIC, results.get(1).getStage());
+		assertEquals("inode/directory", type(results.get(2)));
+		assertEquals(Stage.DIRECTORY, results.get(2).getStage());
+		assertNotNull(results.get(3).getError());
+	}
+
+	@Test
+	public void testFileName() throws Exception {
+		assertEquals("text/plain", service.getMimeTypeForFileName("a/b/c.txt").getInternalName());
+	}
+
+	@Test
+	public void testContent() throws Exception {
+		byte[] pdf = "%PDF-1.4\n".getBytes(StandardCharsets.US_ASCII);
+		assertEquals("application/pdf", service.getMimeTypeForContent(null, pdf).getInternalName());
+		assertEquals("application/pdf",
+				service.getMimeTypeForContent("upload", new ByteArrayInputStream(pdf)).getInternalName());
+		assertEquals("text/plain", service.getMimeTypeForContent("../notes.txt", pdf).getInternalName());
+	}
+
+	@Test
+	public void testSubclasses() throws Exception {
+		assertTrue(service.isSubclassOf("text/x-csrc", "text/plain"));
+		assertFalse(service.isSubclassOf("text/plain", "text/x-csrc"));
+		assertEquals(Arrays.asList("text/plain"), service.getAncestors("text/x-csrc"));
+		// The same as the service that keeps an index
+		MIMEService delegate = ((MinimalService) service).delegate;
+		for (String type : new String[] { "application/x-php", "image/svg+xml", "application/x-unknown" }) {
+			assertEquals(delegate.getAncestors(type), service.getAncestors(type));
+		}
+	}
+
+	/**
+	 * Implements only the methods that do not have a default.
+	 */
+	private static class MinimalService implements MIMEService {
+		private final MIMEService delegate;
+
+		MinimalService(MIMEService delegate) {
+			this.delegate = delegate;
+		}
+
+		public void addBase(Path base) throws IOException {
+			delegate.addBase(base);
+		}
+
+		public void removeBase(Path base) {
+			delegate.removeBase(base);
+		}
+
+		public Collection<Path> getBases() {
+			return delegate.getBases();
+		}
+
+		public MIMEEntry getEntity(String name) {
+			return delegate.getEntity(name);
+		}
+
+		public Collection<MIMEEntry> getEntities(Path base) {
+			return delegate.getEntities(base);
+		}
+
+		public Collection<MIMEEntry> getAllEntities() {
+			return delegate.getAllEntities();
+		}
+
+		public MIMEEntry getEntryForMimeType(String mimeType) {
+			return delegate.getEntryForMimeType(mimeType);
+		}
+
+		public MIMEEntry getMimeTypeForFile(Path file, boolean useMagic) throws IOException {
+			return delegate.getMimeTypeForFile(file, useMagic);
+		}
+
+		public MIMEEntry getMimeTypeForPattern(String pattern) throws MagicRequiredException {
+			return delegate.getMimeTypeForPattern(pattern);
+		}
+
+		public String getDefaultExtension(MIMEEntry mimeEntry) {
+			return delegate.getDefaultExtension(mimeEntry);
+		}
+
+		public Collection<String> getExtensionsForMimeType(MIMEEntry mimeEntry) {
+			return delegate.getExtensionsForMimeType(mimeEntry);
+		}
+
+		public AliasEntry getAliasEntryForAlias(String alias) {
+			return delegate.getAliasEntryForAlias(alias);
+		}
+	}
+}
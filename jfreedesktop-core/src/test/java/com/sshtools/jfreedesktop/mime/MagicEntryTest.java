@@ -0,0 +1,155 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.sshtools.jfreedesktop.mime.MagicEntry.Pattern;
+
+public class MagicEntryTest {
+
+	@Test
+	public void testIndentTree() {
+		MagicEntry entry = new MagicEntry("test/tree", 50);
+		entry.add(pattern(0, 0, "AB"));
+		entry.add(pattern(1, 2, "CD"));
+		entry.add(pattern(1, 2, "EF"));
+		entry.add(pattern(0, 0, "XY"));
+		assertEquals(2, entry.rules().length);
+		assertEquals(2, entry.rules()[0].children.length);
+		assertTrue(entry.match(data("ABCD")));
+		assertTrue(entry.match(data("ABEF")));
+		// The parent alone is not enough when it has children
+		assertFalse(entry.match(data("ABGH")));
+		// A child is not tried unless its parent matches
+		assertFalse(entry.match(data("ZZCD")));
+		assertTrue(entry.match(data("XYGH")));
+	}
+
+	@Test
+	public void testDeepIndent() {
+		MagicEntry entry = new MagicEntry("test/tree", 50);
+		entry.add(pattern(0, 0, "A"));
+		entry.add(pattern(3, 1, "B"));
+		entry.add(pattern(1, 2, "C"));
+		// Indented too deeply, so attached to the deepest rule available
+		assertEquals(1, entry.rules().length);
+		assertEquals(2, entry.rules()[0].children.length);
+		assertTrue(entry.match(data("AB")));
+		assertTrue(entry.match(data("A_C")));
+		assertFalse(entry.match(data("A__")));
+	}
+
+	@Test
+	public void testRecompiledWhenChanged() {
+		MagicEntry entry = new MagicEntry("test/tree", 50);
+		entry.add(pattern(0, 0, "AB"));
+		assertTrue(entry.match(data("ABCD")));
+		entry.add(pattern(1, 2, "EF"));
+		assertFalse(entry.match(data("ABCD")));
+		entry.remove(1);
+		assertTrue(entry.match(data("ABCD")));
+	}
+
+	@Test
+	public void testWordSize() {
+		for (int wordSize : new int[] { 2, 4 }) {
+			Pattern p = new Pattern();
+			p.setWordSize(wordSize);
+			// Values are written big endian, but compared in host order
+			p.setValue(wordSize == 2 ? new byte[] { 0x12, 0x34 } : new byte[] { 0x12, 0x34, 0x56, 0x78 });
+			ByteBuffer host = ByteBuffer.allocate(wordSize).order(ByteOrder.nativeOrder());
+			ByteBuffer other = ByteBuffer.allocate(wordSize).order(opposite(ByteOrder.nativeOrder()));
+			if (wordSize == 2) {
+				host.putShort((short) 0x1234);
+				other.putShort((short) 0x1234);
+			} else {
+				host.putInt(0x12345678);
+				other.putInt(0x12345678);
+			}
+			host.flip();
+			other.flip();
+			assertTrue(p.match(host));
+			assertFalse(p.match(other));
+		}
+	}
+
+	@Test
+	public void testWordSizeMask() {
+		Pattern p = new Pattern();
+		p.setWordSize(2);
+		p.setValue(new byte[] { 0x12, 0x34 });
+		// Only the high byte of the word is significant
+		p.setMask(new byte[] { (byte) 0xff, 0x00 });
+		ByteBuffer data = ByteBuffer.allocate(2).order(ByteOrder.nativeOrder());
+		data.putShort((short) 0x12ff);
+		data.flip();
+		assertTrue(p.match(data));
+		data.putShort(0, (short) 0x13ff);
+		assertFalse(p.match(data));
+	}
+
+	@Test
+	public void testBytesAreNotSwapped() {
+		Pattern p = pattern(0, 0, "\u00124");
+		assertTrue(p.match(ByteBuffer.wrap(new byte[] { 0x12, 0x34 })));
+		assertFalse(p.match(ByteBuffer.wrap(new byte[] { 0x34, 0x12 })));
+	}
+
+	@Test
+	public void testLongValue() {
+		Pattern p = pattern(0, 3, "0123456789abcdefXYZ");
+		assertTrue(p.match(data("___0123456789abcdefXYZ")));
+		assertFalse(p.match(data("___0123456789abcdefXY!")));
+		assertFalse(p.match(data("___0123456789abcdef_YZ")));
+		// The value would extend past the end of the data
+		assertFalse(p.match(data("___0123456789abcdefXY")));
+		p.setMask(new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+				(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+				(byte) 0xff, (byte) 0xff, (byte) 0xff, 0, (byte) 0xff, (byte) 0xff });
+		assertTrue(p.match(data("___0123456789abcdef_YZ")));
+	}
+
+	@Test
+	public void testDataOrderIgnored() {
+		Pattern p = pattern(0, 0, "ABCDEFGHIJ");
+		assertTrue(p.match(data("ABCDEFGHIJ").order(ByteOrder.LITTLE_ENDIAN)));
+	}
+
+	static Pattern pattern(int indent, long offset, String value) {
+		Pattern p = new Pattern();
+		p.setIndent(indent);
+		p.setOffset(offset);
+		p.setValue(value.getBytes(StandardCharsets.ISO_8859_1));
+		return p;
+	}
+
+	static ByteBuffer data(String data) {
+		return ByteBuffer.wrap(data.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private static ByteOrder opposite(ByteOrder order) {
+		return order == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+	}
+}
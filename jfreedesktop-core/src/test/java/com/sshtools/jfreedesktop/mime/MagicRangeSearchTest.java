@@ -0,0 +1,106 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import static com.sshtools.jfreedesktop.mime.MagicEntryTest.data;
+import static com.sshtools.jfreedesktop.mime.MagicEntryTest.pattern;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.sshtools.jfreedesktop.mime.MagicEntry.Pattern;
+
+public class MagicRangeSearchTest {
+
+	@Test
+	public void testRangeEdges() {
+		// May start anywhere from offset 4 to 8
+		assertHit(true, ranged(4, 5, "XYZ"), "____XYZ____");
+		assertHit(true, ranged(4, 5, "XYZ"), "________XYZ");
+		assertHit(false, ranged(4, 5, "XYZ"), "___XYZ_____");
+		assertHit(false, ranged(4, 5, "XYZ"), "_________XYZ");
+		// Cut short by the end of the data
+		assertHit(false, ranged(4, 5, "XYZ"), "________XY");
+		assertHit(false, ranged(4, 5, "XYZ"), "XYZ");
+	}
+
+	@Test
+	public void testWideRangeEdges() {
+		// Wide enough to scan eight positions at a time
+		assertHit(true, ranged(2, 20, "XYZ"), "__XYZ_______________________");
+		assertHit(true, ranged(2, 20, "XYZ"), "_____________________XYZ____");
+		assertHit(false, ranged(2, 20, "XYZ"), "_XYZ________________________");
+		assertHit(false, ranged(2, 20, "XYZ"), "______________________XYZ___");
+		assertHit(true, ranged(2, 20, "XYZ"), "_____________________XYZ");
+		assertHit(false, ranged(2, 20, "XYZ"), "_____________________XY");
+		assertHit(true, ranged(0, 20, "XXY"), "XXXXXXXXXXXXXXXXXXXY");
+	}
+
+	@Test
+	public void testOverlappingPatterns() {
+		Pattern abc = ranged(0, 10, "ABC");
+		Pattern bc = ranged(0, 3, "BC");
+		Pattern bcd = ranged(5, 10, "BCD");
+		MagicRangeSearch search = new MagicRangeSearch();
+		int abcId = search.add(abc);
+		int bcId = search.add(bc);
+		int bcdId = search.add(bcd);
+		assertEquals(bcId, search.add(bc));
+		search.compile();
+		// "BC" inside "ABC" is found through a failure link, "BCD" is out of its window
+		MagicRangeSearch.Hits hits = search.search(data("_ABCD_"));
+		assertTrue(hits.getBits().get(abcId));
+		assertTrue(hits.getBits().get(bcId));
+		assertFalse(hits.getBits().get(bcdId));
+		hits = search.search(data("______ABCD"));
+		assertTrue(hits.getBits().get(abcId));
+		assertFalse(hits.getBits().get(bcId));
+		assertTrue(hits.getBits().get(bcdId));
+	}
+
+	@Test
+	public void testUnsearchedPatterns() {
+		Pattern masked = ranged(0, 4, "AB");
+		masked.setMask(new byte[] { (byte) 0xff, 0x0f });
+		assertFalse(MagicRangeSearch.isSearchable(masked));
+		MagicRangeSearch search = new MagicRangeSearch();
+		search.add(ranged(0, 4, "XY"));
+		search.compile();
+		// Patterns that were not part of the search are tested directly
+		ByteBuffer data = data("__A\u0002");
+		assertTrue(search.search(data).match(masked, data));
+	}
+
+	private static Pattern ranged(long offset, int rangeLength, String value) {
+		Pattern p = pattern(0, offset, value);
+		p.setRangeLength(rangeLength);
+		return p;
+	}
+
+	private static void assertHit(boolean expected, Pattern pattern, String data) {
+		ByteBuffer buf = data(data);
+		assertEquals(expected, pattern.match(buf));
+		MagicRangeSearch search = new MagicRangeSearch();
+		search.add(pattern);
+		search.compile();
+		assertEquals(expected, search.search(buf).match(pattern, buf));
+		assertEquals(0, buf.position());
+	}
+}
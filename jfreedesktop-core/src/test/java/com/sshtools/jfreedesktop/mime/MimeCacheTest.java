@@ -0,0 +1,94 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import static com.sshtools.jfreedesktop.mime.TestServices.CACHED_MIME;
+import static com.sshtools.jfreedesktop.mime.TestServices.aliases;
+import static com.sshtools.jfreedesktop.mime.TestServices.copy;
+import static com.sshtools.jfreedesktop.mime.TestServices.globMatches;
+import static com.sshtools.jfreedesktop.mime.TestServices.globs;
+import static com.sshtools.jfreedesktop.mime.TestServices.magic;
+import static com.sshtools.jfreedesktop.mime.TestServices.magicMatches;
+import static com.sshtools.jfreedesktop.mime.TestServices.types;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Loads a database written by <i>update-mime-database</i> once from its
+ * <i>mime.cache</i> and once from its text sources, and expects the same
+ * results from both.
+ */
+public class MimeCacheTest {
+	private static Path cached;
+	private static Path text;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		cached = copy(CACHED_MIME);
+		// Copied files are all new, so make sure the cache is not older
+		Files.setLastModifiedTime(cached.resolve("mime.cache"), FileTime.fromMillis(System.currentTimeMillis() + 60000));
+		text = copy(CACHED_MIME);
+		Files.delete(text.resolve("mime.cache"));
+		assertNotNull(MimeCache.open(cached));
+		assertNull(MimeCache.open(text));
+	}
+
+	@Test
+	public void testStale() throws Exception {
+		Path base = copy(CACHED_MIME);
+		Files.setLastModifiedTime(base.resolve("mime.cache"), FileTime.fromMillis(0));
+		assertNull(MimeCache.open(base));
+	}
+
+	@Test
+	public void testGlobs() throws Exception {
+		assertEquals(globs(text), globs(cached));
+		assertEquals(globMatches(text), globMatches(cached));
+	}
+
+	@Test
+	public void testAliases() throws Exception {
+		assertEquals(aliases(text), aliases(cached));
+	}
+
+	@Test
+	public void testMagic() throws Exception {
+		List<String> expected = magicMatches(text);
+		assertEquals("application/x-test-doc", expected.get(2));
+		// Both sections of the document are kept
+		assertEquals(4, magic(text).size());
+		assertEquals(magic(text), magic(cached));
+		assertEquals(expected, magicMatches(cached));
+	}
+
+	@Test
+	public void testTypes() throws Exception {
+		List<String> expected = types(text);
+		assertEquals(6, expected.size());
+		assertEquals("text/x-test-source subclasses=[text/plain] aliases=[application/x-tst, text/x-tst]"
+				+ " icon=test-source-icon generic=text-x-script comment=Test source", expected.get(5));
+		assertEquals(expected, types(cached));
+	}
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.sshtools.jfreedesktop.mime.Classification.Stage;
+
+public class MimeResultStoreTest {
+
+	private final static byte[] HASH = hash(1);
+
+	@Test
+	public void testReadBack() throws Exception {
+		Path file = Files.createTempDirectory("store").resolve("results");
+		MimeResultStore store = open(file);
+		for (int i = 0; i < 100; i++) {
+			put(store, i, "text/x-" + i);
+		}
+		store.close();
+		store = open(file);
+		assertEquals(100, store.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals("text/x-" + i, get(store, i));
+		}
+		// Different size or modification time
+		assertNull(store.get(1, 50, MimeResultStore.hash("50"), 51, 50));
+		assertNull(store.get(1, 50, MimeResultStore.hash("50"), 50, 51));
+		store.close();
+	}
+
+	@Test
+	public void testInUse() throws Exception {
+		Path file = Files.createTempDirectory("store").resolve("results");
+		MimeResultStore store = open(file);
+		try {
+			MimeResultStore.open(file);
+			fail("Opened twice");
+		} catch (IOException ioe) {
+		}
+		// Still locked while the file is replaced
+		store.setDatabaseHash(hash(2));
+		try {
+			MimeResultStore.open(file);
+			fail("Opened twice");
+		} catch (IOException ioe) {
+		}
+		store.close();
+		open(file).close();
+	}
+
+	@Test
+	public void testDamagedRecord() throws Exception {
+		Path file = Files.createTempDirectory("store").resolve("results");
+		MimeResultStore store = open(file);
+		for (int i = 0; i < 3; i++) {
+			put(store, i, "text/plain");
+		}
+		store.close();
+		// Damage the second record, so it and all after are dropped
+		int second = MimeResultStore.HEADER_SIZE + MimeResultStore.TYPE + "text/plain".length();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 1 }), second + MimeResultStore.TYPE);
+		}
+		store = open(file);
+		assertEquals(1, store.size());
+		assertEquals("text/plain", get(store, 0));
+		assertNull(get(store, 1));
+		assertNull(get(store, 2));
+		// Written over the damaged record
+		put(store, 3, "text/html");
+		store.close();
+		store = open(file);
+		assertEquals(2, store.size());
+		assertEquals("text/html", get(store, 3));
+		store.close();
+	}
+
+	@Test
+	public void testTruncatedRecord() throws Exception {
+		Path file = Files.createTempDirectory("store").resolve("results");
+		MimeResultStore store = open(file);
+		for (int i = 0; i < 3; i++) {
+			put(store, i, "text/plain");
+		}
+		store.close();
+		int length = MimeResultStore.TYPE + "text/plain".length();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(MimeResultStore.HEADER_SIZE + length * 2 + length / 2);
+		}
+		store = open(file);
+		assertEquals(2, store.size());
+		assertEquals("text/plain", get(store, 1));
+		assertNull(get(store, 2));
+		store.close();
+	}
+
+	@Test
+	public void testCompact() throws Exception {
+		Path file = Files.createTempDirectory("store").resolve("results");
+		MimeResultStore store = open(file);
+		for (int i = 0; i < 1000; i++) {
+			put(store, i % 10, "text/x-" + i);
+		}
+		store.compact();
+		for (int i = 990; i < 1000; i++) {
+			assertEquals("text/x-" + i, get(store, i % 10));
+		}
+		store.close();
+		// Only the live records are left
+		ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file));
+		int at = MimeResultStore.HEADER_SIZE;
+		for (int i = 0; i < 10; i++) {
+			at += buf.getInt(at);
+		}
+		assertEquals(0, buf.getInt(at));
+		store = open(file);
+		assertEquals(10, store.size());
+		assertEquals("text/x-999", get(store, 9));
+		store.close();
+	}
+
+	@Test
+	public void testDatabaseChanged() throws Exception {
+		Path file = Files.createTempDirectory("store").resolve("results");
+		MimeResultStore store = open(file);
+		put(store, 1, "text/plain");
+		store.setDatabaseHash(HASH);
+		assertEquals("text/plain", get(store, 1));
+		store.setDatabaseHash(hash(2));
+		assertEquals(0, store.size());
+		assertNull(get(store, 1));
+		put(store, 2, "text/html");
+		store.close();
+		store = MimeResultStore.open(file);
+		store.setDatabaseHash(hash(2));
+		assertEquals(1, store.size());
+		assertEquals("text/html", get(store, 2));
+		// Back to the first database
+		store.setDatabaseHash(HASH);
+		assertEquals(0, store.size());
+		store.close();
+	}
+
+	static MimeResultStore open(Path file) throws IOException {
+		MimeResultStore store = MimeResultStore.open(file);
+		store.setDatabaseHash(HASH);
+		return store;
+	}
+
+	static void put(MimeResultStore store, int file, String mimeType) throws IOException {
+		store.put(1, file, MimeResultStore.hash(String.valueOf(file)), file, file, mimeType, Stage.MAGIC);
+	}
+
+	static String get(MimeResultStore store, int file) {
+		MimeResultStore.Result result = store.get(1, file, MimeResultStore.hash(String.valueOf(file)), file, file);
+		return result == null ? null : result.mimeType;
+	}
+
+	static byte[] hash(int value) {
+		byte[] hash = new byte[MimeResultStore.HASH_LENGTH];
+		Arrays.fill(hash, (byte) value);
+		return hash;
+	}
+}
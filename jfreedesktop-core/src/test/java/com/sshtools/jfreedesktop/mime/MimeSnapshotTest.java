@@ -0,0 +1,120 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import static com.sshtools.jfreedesktop.mime.TestServices.CACHED_MIME;
+import static com.sshtools.jfreedesktop.mime.TestServices.aliases;
+import static com.sshtools.jfreedesktop.mime.TestServices.copy;
+import static com.sshtools.jfreedesktop.mime.TestServices.globMatches;
+import static com.sshtools.jfreedesktop.mime.TestServices.globs;
+import static com.sshtools.jfreedesktop.mime.TestServices.magic;
+import static com.sshtools.jfreedesktop.mime.TestServices.magicMatches;
+import static com.sshtools.jfreedesktop.mime.TestServices.types;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Writes a snapshot of a database, loads it back as a built-in database
+ * would be, and expects the same results as from the database itself.
+ */
+public class MimeSnapshotTest {
+	private static Path text;
+	private static Path snapshot;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		text = copy(CACHED_MIME);
+		Files.delete(text.resolve("mime.cache"));
+		Files.write(text.resolve("treemagic"),
+				"MIME-TreeMagic\0\n[50:x-content/test]\n>\"test\"=directory,non-empty\n".getBytes(StandardCharsets.UTF_8));
+		Path root = Files.createTempDirectory("classpath");
+		Files.move(copy(text), root.resolve("db"));
+		write(root.resolve("db"));
+		snapshot = load(root, "db");
+		assertNotNull(snapshot);
+		assertNotNull(MimeSnapshot.get(snapshot));
+	}
+
+	@Test
+	public void testGlobs() throws Exception {
+		assertEquals(globs(text), globs(snapshot));
+		assertEquals(globMatches(text), globMatches(snapshot));
+	}
+
+	@Test
+	public void testAliases() throws Exception {
+		assertEquals(aliases(text), aliases(snapshot));
+	}
+
+	@Test
+	public void testMagic() throws Exception {
+		assertEquals(magic(text), magic(snapshot));
+		assertEquals(magicMatches(text), magicMatches(snapshot));
+	}
+
+	@Test
+	public void testTreeMagic() throws Exception {
+		DefaultTreeMagicService service = new DefaultTreeMagicService();
+		service.addBase(snapshot);
+		Path root = Files.createTempDirectory("volume");
+		Files.createFile(Files.createDirectory(root.resolve("test")).resolve("file"));
+		assertEquals("x-content/test", service.match(root).getInternalName());
+	}
+
+	@Test
+	public void testTypes() throws Exception {
+		assertEquals(types(text), types(snapshot));
+	}
+
+	@Test
+	public void testStale() throws Exception {
+		Path root = Files.createTempDirectory("classpath");
+		Path base = Files.move(copy(text), root.resolve("db"));
+		write(base);
+		// Older than the sources it was written from
+		Files.setLastModifiedTime(base.resolve(MimeSnapshot.FILE_NAME), FileTime.fromMillis(0));
+		assertNull(load(root, "db"));
+		assertNull(MimeSnapshot.get(base));
+	}
+
+	private static void write(Path base) throws IOException {
+		Path f = base.resolve(MimeSnapshot.FILE_NAME);
+		try (OutputStream out = Files.newOutputStream(f)) {
+			MimeSnapshot.write(base, out);
+		}
+		// Copied files are all new, so make sure the snapshot is not older
+		Files.setLastModifiedTime(f, FileTime.fromMillis(System.currentTimeMillis() + 60000));
+	}
+
+	private static Path load(Path root, String set) throws IOException {
+		try (URLClassLoader loader = new URLClassLoader(new URL[] { root.toUri().toURL() }, null)) {
+			return MimeSnapshot.loadBuiltIn(loader, set);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class SubclassIndexTest {
+
+	@Test
+	public void testTransitive() {
+		SubclassIndex index = new SubclassIndex();
+		index.addType("application/vnd.oasis.opendocument.text");
+		index.setParents("application/vnd.oasis.opendocument.text", Arrays.asList("application/zip"));
+		index.setParents("application/zip", Collections.<String>emptyList());
+		index.setParents("text/x-csrc", Arrays.asList("text/plain"));
+		index.setParents("text/x-chdr", Arrays.asList("text/x-csrc"));
+		index.compile();
+		assertTrue(index.isSubclassOf("text/x-chdr", "text/x-csrc"));
+		assertTrue(index.isSubclassOf("text/x-chdr", "text/plain"));
+		assertTrue(index.isSubclassOf("text/x-chdr", "text/x-chdr"));
+		assertFalse(index.isSubclassOf("text/x-csrc", "text/x-chdr"));
+		assertTrue(index.isSubclassOf("application/vnd.oasis.opendocument.text", "application/octet-stream"));
+		// Nearest first
+		assertEquals(Arrays.asList("text/x-csrc", "text/plain"), index.getAncestors("text/x-chdr"));
+		assertEquals(Arrays.asList("application/zip", "application/octet-stream"),
+				index.getAncestors("application/vnd.oasis.opendocument.text"));
+	}
+
+	@Test
+	public void testAliasesAndCase() {
+		SubclassIndex index = new SubclassIndex();
+		index.addType("text/x-csrc");
+		index.addAlias("text/x-c", "text/x-csrc");
+		index.setParents("text/x-chdr", Arrays.asList("text/x-c"));
+		index.compile();
+		assertTrue(index.isSubclassOf("text/x-chdr", "text/x-csrc"));
+		assertTrue(index.isSubclassOf("TEXT/X-CHDR", "Text/X-C"));
+		assertTrue(index.isSubclassOf("text/x-c", "text/x-csrc"));
+		assertEquals(index.getAncestors("text/x-csrc"), index.getAncestors("text/x-c"));
+	}
+
+	@Test
+	public void testImplicitParents() {
+		SubclassIndex index = new SubclassIndex();
+		index.compile();
+		// Types that are not known still have the parent their family implies
+		assertTrue(index.isSubclassOf("text/x-unknown", "text/plain"));
+		assertTrue(index.isSubclassOf("application/x-unknown", "application/octet-stream"));
+		assertFalse(index.isSubclassOf("application/x-unknown", "text/plain"));
+		assertTrue(index.isSubclassOf("application/x-unknown", "application/x-unknown"));
+		assertEquals(Arrays.asList("text/plain"), index.getAncestors("text/x-unknown"));
+		assertEquals(Collections.<String>emptyList(), index.getAncestors("inode/x-unknown"));
+	}
+
+	@Test
+	public void testCycle() {
+		SubclassIndex index = new SubclassIndex();
+		index.setParents("application/x-a", Arrays.asList("application/x-b"));
+		index.setParents("application/x-b", Arrays.asList("application/x-a"));
+		index.compile();
+		assertTrue(index.isSubclassOf("application/x-a", "application/x-b"));
+		assertTrue(index.isSubclassOf("application/x-b", "application/x-a"));
+		assertFalse(index.getAncestors("application/x-a").contains("application/x-a"));
+	}
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SuffixTrieTest {
+
+	@Test
+	public void testLongestSuffix() {
+		SuffixTrie<String> trie = new SuffixTrie<String>();
+		trie.add(".gz", "gzip");
+		trie.add(".tar.gz", "tgz");
+		trie.add(".z", "compress");
+		assertEquals(Arrays.asList("tgz"), trie.match("x.tar.gz", false));
+		assertEquals(Arrays.asList("gzip"), trie.match("x.gz", false));
+		assertEquals(Arrays.asList("gzip"), trie.match("tar.gz", false));
+		assertNull(trie.match("x.bz2", false));
+		assertNull(trie.match("x.GZ", false));
+		assertEquals(Arrays.asList("gzip"), trie.match("x.GZ", true));
+	}
+
+	@Test
+	public void testExact() {
+		SuffixTrie<String> trie = new SuffixTrie<String>();
+		trie.add("makefile", "make");
+		assertEquals(Arrays.asList("make"), trie.matchExact("makefile", false));
+		assertEquals(Arrays.asList("make"), trie.matchExact("Makefile", true));
+		assertNull(trie.matchExact("gnumakefile", false));
+		assertNull(trie.matchExact("akefile", false));
+	}
+
+	@Test
+	public void testSortedValues() {
+		SuffixTrie<String> trie = new SuffixTrie<String>();
+		trie.add(".doc", "b");
+		trie.add(".doc", "a");
+		trie.add(".doc", "b");
+		trie.sort(null);
+		assertEquals(Arrays.asList("a", "b"), trie.match("x.doc", false));
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright © 2006 - 2021 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jfreedesktop.mime;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.sshtools.jfreedesktop.mime.GlobEntry.Glob;
+import com.sshtools.jfreedesktop.mime.MagicEntry.Pattern;
+
+/**
+ * Builds services from a database for tests.
+ */
+final class TestServices {
+	/* The text sources of the built-in database, relative to the module */
+	final static Path DEFAULT_MIME = Paths.get("src/main/resources/default-mime");
+	/* A small database, with the mime.cache written alongside it */
+	final static Path CACHED_MIME = Paths.get("src/test/resources/cached-mime");
+
+	private final static String[] NAMES = { "a.tst", "A.TST", "x.TSRC", "x.tsrc", "Testfile", "TESTFILE",
+			"test-1.a", "test-1.c", "x.tarc", "x.timg", "x.tdoc", "x.txt", "x.unknown" };
+
+	private TestServices() {
+	}
+
+	static DefaultMIMEService mimeService(Path base) throws IOException {
+		DefaultGlobService globService = new DefaultGlobService();
+		globService.addBase(base);
+		DefaultAliasService aliasService = new DefaultAliasService();
+		aliasService.addBase(base);
+		DefaultMagicService magicService = new DefaultMagicService();
+		magicService.addBase(base);
+		DefaultMIMEService mimeService = new DefaultMIMEService(globService, aliasService, magicService);
+		mimeService.addBase(base);
+		return mimeService;
+	}
+
+	static String type(Classification result) {
+		return result.getEntry() == null ? null : result.getEntry().getInternalName();
+	}
+
+	static List<String> globs(Path base) throws IOException {
+		DefaultGlobService service = new DefaultGlobService();
+		service.addBase(base);
+		List<String> l = new ArrayList<String>();
+		for (GlobEntry entry : service.getAllEntities()) {
+			for (Glob glob : entry.getGlobs()) {
+				l.add(entry.getInternalName() + ":" + glob.getPattern() + ":" + glob.getWeight() + ":"
+						+ glob.isCaseSensitive());
+			}
+		}
+		Collections.sort(l);
+		return l;
+	}
+
+	static List<String> globMatches(Path base) throws IOException {
+		DefaultGlobService service = new DefaultGlobService();
+		service.addBase(base);
+		List<String> l = new ArrayList<String>();
+		for (String name : NAMES) {
+			try {
+				GlobEntry entry = service.match(name);
+				l.add(name + "=" + (entry == null ? null : entry.getInternalName()));
+			} catch (MagicRequiredException mre) {
+				l.add(name + "=magic");
+			}
+		}
+		return l;
+	}
+
+	static List<String> aliases(Path base) throws IOException {
+		DefaultAliasService service = new DefaultAliasService();
+		service.addBase(base);
+		List<String> l = new ArrayList<String>();
+		for (AliasEntry entry : service.getAllEntities()) {
+			l.add(entry.getAlias() + "=" + entry.getInternalName());
+		}
+		Collections.sort(l);
+		return l;
+	}
+
+	static List<String> magic(Path base) throws IOException {
+		DefaultMagicService service = new DefaultMagicService();
+		service.addBase(base);
+		List<String> l = new ArrayList<String>();
+		for (MagicEntry entry : service.getAllEntities()) {
+			StringBuilder b = new StringBuilder(entry.getInternalName() + ":" + entry.getPriority());
+			for (Pattern p : entry) {
+				b.append(" ").append(p);
+			}
+			l.add(b.toString());
+		}
+		Collections.sort(l);
+		return l;
+	}
+
+	static List<String> magicMatches(Path base) throws IOException {
+		DefaultMagicService service = new DefaultMagicService();
+		service.addBase(base);
+		List<ByteBuffer> data = new ArrayList<ByteBuffer>();
+		data.add(ByteBuffer.wrap("TARCv2".getBytes("US-ASCII")));
+		data.add(ByteBuffer.wrap("TARCv3".getBytes("US-ASCII")));
+		// Matches both the archive and the higher priority section of the document
+		data.add(ByteBuffer.wrap("TARCv2DOC".getBytes("US-ASCII")));
+		data.add(ByteBuffer.wrap(new byte[] { 0x12, 0x34 }));
+		data.add(ByteBuffer.wrap("______\u0089IMG".getBytes("ISO-8859-1")));
+		data.add(ByteBuffer.wrap("______\u0089iMG".getBytes("ISO-8859-1")));
+		data.add(ByteBuffer.wrap("________________________________________DOCUMENT".getBytes("US-ASCII")));
+		data.add(ByteBuffer.wrap(new byte[] { 4, 3, 2, 1 }));
+		ByteBuffer host = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+		host.putShort((short) 0).putInt(0xcafe1234).flip();
+		data.add(host);
+		List<String> l = new ArrayList<String>();
+		for (ByteBuffer d : data) {
+			MagicEntry entry = service.match(d);
+			l.add(entry == null ? null : entry.getInternalName());
+		}
+		return l;
+	}
+
+	static List<String> types(Path base) throws IOException {
+		DefaultMIMEService service = new DefaultMIMEService(null, null, null);
+		service.addBase(base);
+		List<String> l = new ArrayList<String>();
+		for (MIMEEntry entry : service.getAllEntities()) {
+			List<String> aliases = new ArrayList<String>();
+			for (AliasEntry alias : entry.getAliases()) {
+				aliases.add(alias.getInternalName());
+			}
+			Collections.sort(aliases);
+			List<String> subclasses = new ArrayList<String>(entry.getSubclasses());
+			Collections.sort(subclasses);
+			l.add(entry.getInternalName() + " subclasses=" + subclasses + " aliases=" + aliases + " icon="
+					+ entry.getIcon() + " generic=" + entry.getGenericIcon() + " comment=" + entry.getComment());
+		}
+		Collections.sort(l);
+		return l;
+	}
+
+	static Path copy(final Path from) throws IOException {
+		final Path to = Files.createTempDirectory("mime");
+		Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Files.createDirectories(to.resolve(from.relativize(dir).toString()));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.copy(file, to.resolve(from.relativize(file).toString()));
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return to;
+	}
+}